@@ -21,6 +21,17 @@
  * - Line 4: new_len (decimal number, e.g., "1456")
  * - Binary data: old_len bytes of original class data
  * - Binary data: new_len bytes of transformed class data
+ *
+ * Ring Buffer Communication (ring=<MB>):
+ * - Maps /tmp/njvm<pid>.ring and appends the same records to it, without any syscall per transformation
+ * - Header (256 bytes, native byte order, counters on separate cache lines):
+ *   u32 magic "NJRB" (written last), u32 version, u64 capacity (power of two) at 8,
+ *   u64 head (bytes reserved by writers) at 64, u64 tail (bytes consumed by the reader) at 128,
+ *   u64 spilled (records written as files instead) at 192
+ * - Record at data[pos % capacity]: u32 length of the payload (0 until the record is committed),
+ *   u32 unused, payload in the file format above, padded to 8 bytes; the payload wraps around the end
+ * - The reader zeroes consumed records before advancing tail
+ * - Records larger than half of the ring, or that don't fit into the free space, are spilled into files
  */
 
 #define _GNU_SOURCE
@@ -33,16 +44,25 @@
 #include <dlfcn.h>
 #include <stdlib.h>
 #include <unistd.h>
+#include <sys/mman.h>
 #include <sys/stat.h>
 #include <sys/types.h>
+#include <fcntl.h>
+#include <stdint.h>
 #include <dirent.h>
 #include <errno.h>
+#include <pthread.h>
 
 /* Configuration constants */
 #define MAX_AGENTS 4096                  /* Maximum number of agents (sized for hex indexing: 0x000-0xFFF) */
 #define MAX_AGENT_NAME_LEN 256           /* Maximum length of agent name */
 #define MAX_PATH_LEN 1024                /* Maximum path length for file operations */
 #define COMM_DIR_PERMISSIONS 0755        /* Directory permissions for communication directory */
+#define RING_MAGIC 0x4E4A5242            /* "NJRB" */
+#define RING_VERSION 1
+#define RING_HEADER_SIZE 256
+#define RING_RECORD_HEADER_SIZE 8
+#define RING_ALIGN(n) (((n) + 7) & ~(uint64_t)7)
 
 /* Agent information structure - simplified, just stores original callback and name */
 typedef struct {
@@ -73,6 +93,26 @@ static int always_file = 0; // If 1, always generate diff files even when no tra
 static char skip_agents[MAX_SKIP_AGENTS][MAX_AGENT_NAME_LEN];
 static int skip_agents_count = 0;
 
+// Class filters (include=/exclude=), compiled once when parsing the options
+#define MAX_CLASS_FILTERS 64
+#define MAX_CLASS_FILTER_LEN 256
+typedef enum {
+    FILTER_EXACT,   /* no wildcards */
+    FILTER_PREFIX,  /* literal prefix followed by a single trailing '*' */
+    FILTER_GLOB     /* anything else, matched after checking the literal prefix */
+} ClassFilterKind;
+
+typedef struct {
+    char pattern[MAX_CLASS_FILTER_LEN]; /* internal class name form, '.' replaced by '/' */
+    size_t prefix_len;                  /* length of the literal prefix before the first wildcard */
+    ClassFilterKind kind;
+} ClassFilter;
+
+static ClassFilter include_filters[MAX_CLASS_FILTERS];
+static int include_filters_count = 0;
+static ClassFilter exclude_filters[MAX_CLASS_FILTERS];
+static int exclude_filters_count = 0;
+
 // Helper macros for configurable logging
 #define LOG_NORMAL(fmt, ...) do { if (log_level >= 1) printf(fmt, ##__VA_ARGS__); } while(0)
 #define LOG_VERBOSE(fmt, ...) do { if (log_level >= 2) printf(fmt, ##__VA_ARGS__); } while(0)
@@ -83,6 +123,54 @@ static char comm_dir[MAX_PATH_LEN];
 static char temp_dir[MAX_PATH_LEN];
 static volatile int file_counter = 0;  /* Thread-safe counter using atomic operations */
 
+// Ring buffer communication, shared with the Java reader via the mapped file
+typedef struct {
+    uint32_t magic;
+    uint32_t version;
+    uint64_t capacity;
+    char padding0[48];
+    uint64_t head;
+    char padding1[56];
+    uint64_t tail;
+    char padding2[56];
+    uint64_t spilled;
+    char padding3[56];
+} RingHeader;
+
+_Static_assert(sizeof(RingHeader) == RING_HEADER_SIZE, "ring header has to be 256 bytes");
+
+// Ring buffer in memory, the header is NULL if the ring is not used
+typedef struct {
+    RingHeader* header;
+    unsigned char* data;
+    uint64_t capacity;
+} Ring;
+
+#define RING_APPENDED 0
+#define RING_FULL 1
+#define RING_TOO_LARGE 2
+
+static size_t ring_size_mb = 0;        /* 0: files only */
+static char ring_path[MAX_PATH_LEN];
+static Ring shared_ring;
+
+// Queue of the writer thread that writes the files, same layout as the shared ring
+#define WRITER_MIN_IDLE_US 100
+#define WRITER_MAX_IDLE_US 10000
+static size_t queue_size_mb = 64;      /* 0: write files on the class loading thread */
+static Ring queue;
+static pthread_t writer_thread;
+static volatile int writer_running = 0;
+static int drop_when_full = 0;          /* 0: write the file on the class loading thread if the queue is full */
+static volatile uint64_t dropped_count = 0;
+static uint64_t reported_dropped_count = 0;
+
+// Part of a file that is written
+typedef struct {
+    const void* data;
+    size_t len;
+} FilePart;
+
 // Array to store original agent callbacks and their info
 static ClassFileLoadHookInfo agent_info[MAX_AGENTS];
 static int next_agent_slot = 0;
@@ -96,6 +184,16 @@ static WrapperFunc wrapper_functions[MAX_AGENTS];
 static void write_transformation_to_file(const char* agent_name, const char* class_name, 
                                          const unsigned char* old_data, jint old_len,
                                          const unsigned char* new_data, jint new_len);
+static void record_transformation(const char* agent_name, const char* class_name,
+                                  const unsigned char* old_data, jint old_len,
+                                  const unsigned char* new_data, jint new_len);
+static int ring_append(Ring* r, const char* agent_name, const char* class_name,
+                       const unsigned char* old_data, jint old_len,
+                       const unsigned char* new_data, jint new_len);
+static int setup_ring(pid_t pid);
+static void cleanup_ring(void);
+static int start_writer(void);
+static void stop_writer(void);
 static int is_agent_skipped(const char* agent_name);
 static void remove_directory(const char* path);
 static int setup_directories(pid_t pid);
@@ -103,6 +201,90 @@ static void log_configuration(void);
 static void cleanup_directories(void);
 static void extract_agent_name(char* dest, size_t dest_size, const char* library_path);
 
+// Compile a class name glob ('*' matches any sequence, '?' a single character)
+// Returns 0 on success, -1 if the pattern is empty or too long
+static int compile_class_filter(ClassFilter* filter, const char* glob) {
+    size_t len = strlen(glob);
+    if (len == 0 || len >= MAX_CLASS_FILTER_LEN) {
+        return -1;
+    }
+    for (size_t i = 0; i <= len; i++) {
+        filter->pattern[i] = glob[i] == '.' ? '/' : glob[i];
+    }
+    filter->prefix_len = strcspn(filter->pattern, "*?");
+    if (filter->prefix_len == len) {
+        filter->kind = FILTER_EXACT;
+    } else if (filter->prefix_len == len - 1 && filter->pattern[len - 1] == '*') {
+        filter->kind = FILTER_PREFIX;
+    } else {
+        filter->kind = FILTER_GLOB;
+    }
+    return 0;
+}
+
+// Iterative glob matching, backtracks only to the last '*'
+static int glob_matches(const char* pattern, const char* name) {
+    const char* star = NULL;
+    const char* retry = NULL;
+    while (*name != '\0') {
+        if (*pattern == '*') {
+            star = pattern++;
+            retry = name;
+        } else if (*pattern == '?' || *pattern == *name) {
+            pattern++;
+            name++;
+        } else if (star != NULL) {
+            pattern = star + 1;
+            name = ++retry;
+        } else {
+            return 0;
+        }
+    }
+    while (*pattern == '*') {
+        pattern++;
+    }
+    return *pattern == '\0';
+}
+
+static int class_filter_matches(const ClassFilter* filter, const char* name) {
+    if (strncmp(filter->pattern, name, filter->prefix_len) != 0) {
+        return 0;
+    }
+    switch (filter->kind) {
+        case FILTER_EXACT:
+            return name[filter->prefix_len] == '\0';
+        case FILTER_PREFIX:
+            return 1;
+        default:
+            return glob_matches(filter->pattern + filter->prefix_len, name + filter->prefix_len);
+    }
+}
+
+// Helper function to check if the transformations of a class should be recorded:
+// it has to match one include filter (if there are any) and no exclude filter
+static int is_class_captured(const char* class_name) {
+    if (include_filters_count == 0 && exclude_filters_count == 0) {
+        return 1;
+    }
+    if (class_name == NULL) {
+        // unnamed classes can't match an include filter
+        return include_filters_count == 0;
+    }
+    int included = include_filters_count == 0;
+    for (int i = 0; i < include_filters_count && !included; i++) {
+        included = class_filter_matches(&include_filters[i], class_name);
+    }
+    if (!included) {
+        return 0;
+    }
+    for (int i = 0; i < exclude_filters_count; i++) {
+        if (class_filter_matches(&exclude_filters[i], class_name)) {
+            return 0;
+        }
+    }
+    return 1;
+}
+
 // Helper function to check if an agent should be skipped
 static int is_agent_skipped(const char* agent_name) {
     if (agent_name == NULL) return 0;
@@ -144,6 +326,11 @@ static void wrapper_handler(int agent_index,
                       protection_domain, class_data_len, class_data,
                       new_class_data_len, new_class_data);
         
+        // Filtered classes cost only the name match, not the comparison or copy
+        if (!is_class_captured(name)) {
+            return;
+        }
+
         // Write diff if transformation occurred or always_file is set
         if (new_class_data != NULL && *new_class_data != NULL && 
             new_class_data_len != NULL && *new_class_data_len > 0 &&
@@ -154,10 +341,10 @@ static void wrapper_handler(int agent_index,
                 LOG_VERBOSE("[NATIVE_AGENT] No actual changes detected for class %s by agent %s\n",
                             name ? name : "NULL", info->name);
             }
-            write_transformation_to_file(info->name, name, old_data, old_len, 
-                                        *new_class_data, *new_class_data_len);
+            record_transformation(info->name, name, old_data, old_len,
+                                  *new_class_data, *new_class_data_len);
         } else if (always_file) {
-            write_transformation_to_file(info->name, name, old_data, old_len, old_data, old_len);
+            record_transformation(info->name, name, old_data, old_len, old_data, old_len);
         }
     }
 }
@@ -298,6 +485,41 @@ static int parse_agent_options(const char* options) {
                 } else {
                     LOG_ERROR("Invalid always value: %s (use true/1 or false/0)\n", value);
                 }
+            } else if (strcmp(key, "ring") == 0) {
+                char* end = NULL;
+                long size = strtol(value, &end, 10);
+                if (end != value && *end == '\0' && size >= 0 && size <= 1024) {
+                    ring_size_mb = (size_t) size;
+                } else {
+                    LOG_ERROR("Invalid ring size: %s (use 0 to 1024 MB)\n", value);
+                }
+            } else if (strcmp(key, "queue") == 0) {
+                char* end = NULL;
+                long size = strtol(value, &end, 10);
+                if (end != value && *end == '\0' && size >= 0 && size <= 1024) {
+                    queue_size_mb = (size_t) size;
+                } else {
+                    LOG_ERROR("Invalid queue size: %s (use 0 to 1024 MB)\n", value);
+                }
+            } else if (strcmp(key, "include") == 0 || strcmp(key, "exclude") == 0) {
+                int is_include = key[0] == 'i';
+                ClassFilter* filters = is_include ? include_filters : exclude_filters;
+                int* count = is_include ? &include_filters_count : &exclude_filters_count;
+                if (*count >= MAX_CLASS_FILTERS) {
+                    LOG_ERROR("Maximum number of %s filters (%d) reached\n", key, MAX_CLASS_FILTERS);
+                } else if (compile_class_filter(&filters[*count], value) != 0) {
+                    LOG_ERROR("Invalid %s pattern: %s\n", key, value);
+                } else {
+                    (*count)++;
+                }
+            } else if (strcmp(key, "drop") == 0) {
+                if (strcmp(value, "true") == 0 || strcmp(value, "1") == 0) {
+                    drop_when_full = 1;
+                } else if (strcmp(value, "false") == 0 || strcmp(value, "0") == 0) {
+                    drop_when_full = 0;
+                } else {
+                    LOG_ERROR("Invalid drop value: %s (use true/1 or false/0)\n", value);
+                }
             } else if (strcmp(key, "skip") == 0) {
                 // Add single agent to skip list
                 if (skip_agents_count < MAX_SKIP_AGENTS) {
@@ -323,6 +545,7 @@ static int parse_agent_options(const char* options) {
 
 // Clean up all directories (comm_dir and temp_dir)
 static void cleanup_directories(void) {
+    cleanup_ring();
     remove_directory(temp_dir);
     LOG_VERBOSE("[NATIVE_AGENT] Removed temp directory: %s\n", temp_dir);
     remove_directory(comm_dir);
@@ -371,8 +594,8 @@ static int setup_directories(pid_t pid) {
 
 // Log the current configuration
 static void log_configuration(void) {
-    LOG_VERBOSE("[NATIVE_AGENT] Loading native-agent (log_level=%d, always=%d, skip_count=%d, comm_dir=%s)...\n",
-               log_level, always_file, skip_agents_count, comm_dir);
+    LOG_VERBOSE("[NATIVE_AGENT] Loading native-agent (log_level=%d, always=%d, skip_count=%d, comm_dir=%s, ring=%zuMB, queue=%zuMB)...\n",
+               log_level, always_file, skip_agents_count, comm_dir, ring_size_mb, queue_size_mb);
     
     // Log skip list if any
     if (skip_agents_count > 0 && log_level >= 2) {
@@ -382,6 +605,14 @@ static void log_configuration(void) {
         }
         printf("\n");
     }
+    if (log_level >= 2) {
+        for (int i = 0; i < include_filters_count; i++) {
+            LOG_VERBOSE("[NATIVE_AGENT] Include classes: %s\n", include_filters[i].pattern);
+        }
+        for (int i = 0; i < exclude_filters_count; i++) {
+            LOG_VERBOSE("[NATIVE_AGENT] Exclude classes: %s\n", exclude_filters[i].pattern);
+        }
+    }
 }
 
 // Extract agent name from library path
@@ -440,6 +671,39 @@ static void display_help(void) {
     printf("              false (only when transformed, default)\n");
     printf("      Example: -agentpath:libnative_agent.dylib=always=true\n");
     printf("\n");
+    printf("  ring=<MB>\n");
+    printf("      Pass the transformations via a memory-mapped ring buffer of the given size\n");
+    printf("      (rounded up to a power of two) instead of one file per transformation.\n");
+    printf("      Large records and records that don't fit are still written as files.\n");
+    printf("      Values: 0 (files only, default) to 1024\n");
+    printf("      Example: -agentpath:libnative_agent.dylib=ring=16\n");
+    printf("\n");
+    printf("  queue=<MB>\n");
+    printf("      Size of the queue (rounded up to a power of two) from which a background\n");
+    printf("      thread writes the files, so that class loading threads only copy the\n");
+    printf("      class data. If the queue is full, the file is written on the class loading thread.\n");
+    printf("      Values: 0 (write files on the class loading thread) to 1024, default 64\n");
+    printf("      Example: -agentpath:libnative_agent.dylib=queue=256\n");
+    printf("\n");
+    printf("  drop=<value>\n");
+    printf("      Drop transformations instead of blocking the class loading thread when the queue\n");
+    printf("      is full. The number of dropped transformations is written to /tmp/njvm<pid>/dropped\n");
+    printf("      and shown by the meta-agent on /metrics.\n");
+    printf("      Values: true (drop)\n");
+    printf("              false (write the file synchronously, default)\n");
+    printf("      Example: -agentpath:libnative_agent.dylib=queue=16,drop=true\n");
+    printf("\n");
+    printf("  include=<glob>\n");
+    printf("      Only record transformations of classes matching the glob\n");
+    printf("      ('*' matches any sequence, '?' a single character, '.' and '/' are the same).\n");
+    printf("      Can be specified multiple times, a class has to match one of them.\n");
+    printf("      Example: -agentpath:libnative_agent.dylib=include=com.example.*\n");
+    printf("\n");
+    printf("  exclude=<glob>\n");
+    printf("      Don't record transformations of classes matching the glob (same syntax as include).\n");
+    printf("      Can be specified multiple times, takes precedence over include.\n");
+    printf("      Example: -agentpath:libnative_agent.dylib=exclude=java/*,exclude=jdk/*\n");
+    printf("\n");
     printf("  skip=<agent>\n");
     printf("      Skip wrapping the specified instrumentation agent.\n");
     printf("      Can be specified multiple times to skip multiple agents.\n");
@@ -462,7 +726,8 @@ static void display_help(void) {
     printf("\n");
     printf("FILE-BASED COMMUNICATION:\n");
     printf("  Creates /tmp/njvm<pid>/ directory for communication with the meta-agent.\n");
-    printf("  Each transformation creates a numbered file with diff data.\n");
+    printf("  Each transformation creates a numbered file with diff data,\n");
+    printf("  or a record in /tmp/njvm<pid>.ring with ring=<MB>.\n");
     printf("\n");
     printf("==============================================================================\n");
     printf("\n");
@@ -513,11 +778,9 @@ static void remove_directory(const char* path) {
     }
 }
 
-// Helper to write transformation data to file system for Java meta-agent to pick up
+// Helper to write the parts of a transformation record to file system for Java meta-agent to pick up
 // Thread-safe: uses atomic counter and atomic rename operation
-static void write_transformation_to_file(const char* agent_name, const char* class_name, 
-                                         const unsigned char* old_data, jint old_len,
-                                         const unsigned char* new_data, jint new_len) {
+static void write_file(const FilePart* parts, int part_count, const char* class_name) {
     char filepath[MAX_PATH_LEN];
     char temp_filepath[MAX_PATH_LEN];
     int current_counter = __sync_fetch_and_add(&file_counter, 1);
@@ -534,8 +797,8 @@ static void write_transformation_to_file(const char* agent_name, const char* cla
         return;
     }
 
-    LOG_VERBOSE("[NATIVE_AGENT] Writing transformation to temp file: %s (agent=%s, class=%s)\n",
-                temp_filepath, agent_name ? agent_name : "unknown", class_name ? class_name : "NULL");
+    LOG_VERBOSE("[NATIVE_AGENT] Writing transformation to temp file: %s (class=%s)\n",
+                temp_filepath, class_name ? class_name : "NULL");
     
     FILE* f = fopen(temp_filepath, "wb");
     if (f == NULL) {
@@ -543,18 +806,10 @@ static void write_transformation_to_file(const char* agent_name, const char* cla
         return;
     }
     
-    // Write header: agent_name, class_name, old_len, new_len (each on separate line)
-    fprintf(f, "%s\n%s\n%d\n%d\n", 
-            agent_name ? agent_name : "unknown",
-            class_name ? class_name : "unknown", 
-            old_len, new_len);
-    
-    // Write old and new class data
-    if (old_len > 0 && old_data != NULL) {
-        fwrite(old_data, 1, old_len, f);
-    }
-    if (new_len > 0 && new_data != NULL) {
-        fwrite(new_data, 1, new_len, f);
+    for (int i = 0; i < part_count; i++) {
+        if (parts[i].len > 0 && parts[i].data != NULL) {
+            fwrite(parts[i].data, 1, parts[i].len, f);
+        }
     }
     
     fclose(f);
@@ -566,9 +821,303 @@ static void write_transformation_to_file(const char* agent_name, const char* cla
         unlink(temp_filepath); // Clean up temp file on failure
         return;
     }
-    
-    LOG_VERBOSE("[NATIVE_AGENT] Successfully wrote diff file: %s (old_len=%d, new_len=%d)\n",
-                filepath, old_len, new_len);
+
+    if (shared_ring.header != NULL) {
+        // tell the reader to look for files
+        __atomic_fetch_add(&shared_ring.header->spilled, 1, __ATOMIC_RELEASE);
+    }
+
+    LOG_VERBOSE("[NATIVE_AGENT] Successfully wrote diff file: %s\n", filepath);
+}
+
+// Format the text header of a record (agent_name, class_name, old_len, new_len)
+// Returns the header length, or -1 if it doesn't fit
+static int format_record_header(char* header, size_t size, const char* agent_name, const char* class_name,
+                                jint old_len, jint new_len) {
+    int header_len = snprintf(header, size, "%s\n%s\n%d\n%d\n",
+                              agent_name ? agent_name : "unknown",
+                              class_name ? class_name : "unknown",
+                              old_len, new_len);
+    return header_len < 0 || header_len >= (int) size ? -1 : header_len;
+}
+
+// Write the transformation synchronously into a file
+static void write_transformation_to_file(const char* agent_name, const char* class_name,
+                                         const unsigned char* old_data, jint old_len,
+                                         const unsigned char* new_data, jint new_len) {
+    char header[MAX_AGENT_NAME_LEN + MAX_PATH_LEN];
+    int header_len = format_record_header(header, sizeof(header), agent_name, class_name, old_len, new_len);
+    if (header_len < 0) {
+        LOG_ERROR("Class name too long: %s\n", class_name);
+        return;
+    }
+    FilePart parts[] = {
+        {header, header_len},
+        {old_data, old_data != NULL ? old_len : 0},
+        {new_data, new_data != NULL ? new_len : 0}
+    };
+    write_file(parts, 3, class_name);
+}
+
+// Record a transformation: append it to the shared ring, or queue it for the writer thread,
+// or (if both are disabled or the record is too large for them) write it into a file directly
+static void record_transformation(const char* agent_name, const char* class_name,
+                                  const unsigned char* old_data, jint old_len,
+                                  const unsigned char* new_data, jint new_len) {
+    if (shared_ring.header != NULL && ring_append(&shared_ring, agent_name, class_name, old_data, old_len,
+                                                  new_data, new_len) == RING_APPENDED) {
+        return;
+    }
+    if (queue.header != NULL) {
+        int result = ring_append(&queue, agent_name, class_name, old_data, old_len, new_data, new_len);
+        if (result == RING_APPENDED) {
+            return;
+        }
+        if (result == RING_FULL && drop_when_full) {
+            uint64_t dropped = __atomic_add_fetch(&dropped_count, 1, __ATOMIC_RELAXED);
+            LOG_VERBOSE("[NATIVE_AGENT] Queue full, dropped transformation of %s (%llu dropped)\n",
+                        class_name ? class_name : "NULL", (unsigned long long) dropped);
+            return;
+        }
+        // too large or full: write the file synchronously, so that nothing is lost
+    }
+    write_transformation_to_file(agent_name, class_name, old_data, old_len, new_data, new_len);
+}
+
+// Round the size in MB up to a power of two (at least 1 MB)
+static uint64_t ring_capacity_for(size_t size_mb) {
+    uint64_t capacity = 1024 * 1024;
+    while (capacity < (uint64_t) size_mb * 1024 * 1024) {
+        capacity <<= 1;
+    }
+    return capacity;
+}
+
+// Create and map /tmp/njvm<pid>.ring if a ring size is configured
+// Returns 0 on success (or if no ring is configured), -1 on error
+static int setup_ring(pid_t pid) {
+    if (ring_size_mb == 0) {
+        return 0;
+    }
+    size_t path_len = snprintf(ring_path, sizeof(ring_path), "/tmp/njvm%d.ring", pid);
+    if (path_len >= sizeof(ring_path)) {
+        fprintf(stderr, "ERROR: Ring buffer path too long for PID %d\n", pid);
+        return -1;
+    }
+    uint64_t capacity = ring_capacity_for(ring_size_mb);
+    int fd = open(ring_path, O_RDWR | O_CREAT | O_TRUNC, 0644);
+    if (fd < 0) {
+        fprintf(stderr, "ERROR: Failed to create ring buffer %s: %s\n", ring_path, strerror(errno));
+        return -1;
+    }
+    size_t size = RING_HEADER_SIZE + capacity;
+    if (ftruncate(fd, size) != 0) {
+        fprintf(stderr, "ERROR: Failed to resize ring buffer %s: %s\n", ring_path, strerror(errno));
+        close(fd);
+        unlink(ring_path);
+        return -1;
+    }
+    void* mapped = mmap(NULL, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+    close(fd);
+    if (mapped == MAP_FAILED) {
+        fprintf(stderr, "ERROR: Failed to map ring buffer %s: %s\n", ring_path, strerror(errno));
+        unlink(ring_path);
+        return -1;
+    }
+    RingHeader* header = (RingHeader*) mapped;
+    header->version = RING_VERSION;
+    header->capacity = capacity;
+    shared_ring.data = (unsigned char*) mapped + RING_HEADER_SIZE;
+    shared_ring.capacity = capacity;
+    shared_ring.header = header;
+    // the reader only uses the ring once the magic is set
+    __atomic_store_n(&header->magic, RING_MAGIC, __ATOMIC_RELEASE);
+    LOG_VERBOSE("[NATIVE_AGENT] Created ring buffer %s (%llu bytes)\n", ring_path, (unsigned long long) capacity);
+    return 0;
+}
+
+static void cleanup_ring(void) {
+    if (shared_ring.header == NULL) {
+        return;
+    }
+    munmap(shared_ring.header, RING_HEADER_SIZE + shared_ring.capacity);
+    unlink(ring_path);
+    memset(&shared_ring, 0, sizeof(shared_ring));
+    LOG_VERBOSE("[NATIVE_AGENT] Removed ring buffer: %s\n", ring_path);
+}
+
+// Copy into the ring at the given (unwrapped) position, wrapping around its end
+static void ring_copy(Ring* r, uint64_t pos, const void* src, size_t len) {
+    uint64_t offset = pos & (r->capacity - 1);
+    size_t first = len < r->capacity - offset ? len : r->capacity - offset;
+    memcpy(r->data + offset, src, first);
+    if (first < len) {
+        memcpy(r->data, (const unsigned char*) src + first, len - first);
+    }
+}
+
+// Append a record to the ring, lock-free for multiple writers
+// Returns RING_APPENDED, RING_FULL if there is not enough free space or RING_TOO_LARGE
+static int ring_append(Ring* r, const char* agent_name, const char* class_name,
+                       const unsigned char* old_data, jint old_len,
+                       const unsigned char* new_data, jint new_len) {
+    char header[MAX_AGENT_NAME_LEN + MAX_PATH_LEN];
+    int header_len = format_record_header(header, sizeof(header), agent_name, class_name, old_len, new_len);
+    if (header_len < 0) {
+        return RING_TOO_LARGE;
+    }
+    uint64_t payload = (uint64_t) header_len + (old_data != NULL ? old_len : 0) + (new_data != NULL ? new_len : 0);
+    uint64_t total = RING_ALIGN(RING_RECORD_HEADER_SIZE + payload);
+    if (total > r->capacity / 2) {
+        return RING_TOO_LARGE;
+    }
+    // reserve the space
+    uint64_t head = __atomic_load_n(&r->header->head, __ATOMIC_RELAXED);
+    do {
+        uint64_t tail = __atomic_load_n(&r->header->tail, __ATOMIC_ACQUIRE);
+        if (head + total - tail > r->capacity) {
+            return RING_FULL;
+        }
+    } while (!__atomic_compare_exchange_n(&r->header->head, &head, head + total, 1,
+                                          __ATOMIC_ACQ_REL, __ATOMIC_RELAXED));
+    uint64_t pos = head + RING_RECORD_HEADER_SIZE;
+    ring_copy(r, pos, header, header_len);
+    pos += header_len;
+    if (old_len > 0 && old_data != NULL) {
+        ring_copy(r, pos, old_data, old_len);
+        pos += old_len;
+    }
+    if (new_len > 0 && new_data != NULL) {
+        ring_copy(r, pos, new_data, new_len);
+    }
+    // commit, the record header never wraps as records are aligned
+    __atomic_store_n((uint32_t*) (r->data + (head & (r->capacity - 1))), (uint32_t) payload, __ATOMIC_RELEASE);
+    return RING_APPENDED;
+}
+
+// Write the oldest committed record of the queue into a file and free its space
+// Returns 1 if a record was written, 0 if the queue is empty
+static int drain_queue_record(void) {
+    uint64_t tail = queue.header->tail;
+    uint64_t offset = tail & (queue.capacity - 1);
+    uint32_t payload = __atomic_load_n((uint32_t*) (queue.data + offset), __ATOMIC_ACQUIRE);
+    if (payload == 0) {
+        return 0;
+    }
+    uint64_t start = (offset + RING_RECORD_HEADER_SIZE) & (queue.capacity - 1);
+    size_t first = payload < queue.capacity - start ? payload : queue.capacity - start;
+    FilePart parts[] = {
+        {queue.data + start, first},
+        {queue.data, payload - first}
+    };
+    // the class name is only used for logging
+    write_file(parts, 2, NULL);
+    uint64_t total = RING_ALIGN(RING_RECORD_HEADER_SIZE + payload);
+    size_t zero_first = total < queue.capacity - offset ? total : queue.capacity - offset;
+    memset(queue.data + offset, 0, zero_first);
+    memset(queue.data, 0, total - zero_first);
+    __atomic_store_n(&queue.header->tail, tail + total, __ATOMIC_RELEASE);
+    return 1;
+}
+
+// Write the number of dropped transformations to <comm_dir>/dropped if it changed,
+// so that the meta-agent can show it
+static void report_dropped_count(void) {
+    uint64_t dropped = __atomic_load_n(&dropped_count, __ATOMIC_RELAXED);
+    if (dropped == reported_dropped_count) {
+        return;
+    }
+    char filepath[MAX_PATH_LEN];
+    char temp_filepath[MAX_PATH_LEN];
+    int written = snprintf(filepath, sizeof(filepath), "%s/dropped", comm_dir);
+    int temp_written = snprintf(temp_filepath, sizeof(temp_filepath), "%s/dropped", temp_dir);
+    if (written < 0 || written >= (int)sizeof(filepath) || temp_written < 0 || temp_written >= (int)sizeof(temp_filepath)) {
+        LOG_ERROR("Failed to format the path of the dropped count (truncated)\n");
+        return;
+    }
+    FILE* f = fopen(temp_filepath, "w");
+    if (f == NULL) {
+        LOG_ERROR("Failed to open %s: %s\n", temp_filepath, strerror(errno));
+        return;
+    }
+    fprintf(f, "%llu\n", (unsigned long long) dropped);
+    fclose(f);
+    if (rename(temp_filepath, filepath) != 0) {
+        LOG_ERROR("Failed to rename %s to %s: %s\n", temp_filepath, filepath, strerror(errno));
+        unlink(temp_filepath);
+        return;
+    }
+    reported_dropped_count = dropped;
+}
+
+// Writer thread: drains the queue in batches, backs off exponentially while it is empty
+static void* writer_loop(void* arg) {
+    useconds_t idle_us = WRITER_MIN_IDLE_US;
+    while (1) {
+        int written = 0;
+        while (drain_queue_record()) {
+            written++;
+        }
+        report_dropped_count();
+        if (written > 0) {
+            LOG_VERBOSE("[NATIVE_AGENT] Writer thread wrote %d files\n", written);
+            idle_us = WRITER_MIN_IDLE_US;
+            continue;
+        }
+        if (!__atomic_load_n(&writer_running, __ATOMIC_ACQUIRE)) {
+            // stopped and drained
+            break;
+        }
+        usleep(idle_us);
+        if (idle_us < WRITER_MAX_IDLE_US) {
+            idle_us *= 2;
+        }
+    }
+    return NULL;
+}
+
+// Allocate the queue and start the writer thread if a queue size is configured
+// Returns 0 on success (or if no queue is configured), -1 on error
+static int start_writer(void) {
+    if (queue_size_mb == 0) {
+        return 0;
+    }
+    uint64_t capacity = ring_capacity_for(queue_size_mb);
+    RingHeader* header = calloc(1, RING_HEADER_SIZE + capacity);
+    if (header == NULL) {
+        fprintf(stderr, "ERROR: Failed to allocate queue of %llu bytes\n", (unsigned long long) capacity);
+        return -1;
+    }
+    header->capacity = capacity;
+    queue.data = (unsigned char*) header + RING_HEADER_SIZE;
+    queue.capacity = capacity;
+    queue.header = header;
+    writer_running = 1;
+    int error = pthread_create(&writer_thread, NULL, writer_loop, NULL);
+    if (error != 0) {
+        fprintf(stderr, "ERROR: Failed to start writer thread: %s\n", strerror(error));
+        writer_running = 0;
+        free(header);
+        memset(&queue, 0, sizeof(queue));
+        return -1;
+    }
+    LOG_VERBOSE("[NATIVE_AGENT] Started writer thread with a queue of %llu bytes\n", (unsigned long long) capacity);
+    return 0;
+}
+
+// Stop the writer thread after it wrote all queued records
+static void stop_writer(void) {
+    if (queue.header == NULL) {
+        return;
+    }
+    __atomic_store_n(&writer_running, 0, __ATOMIC_RELEASE);
+    pthread_join(writer_thread, NULL);
+    if (dropped_count > 0) {
+        LOG_NORMAL("[NATIVE_AGENT] Dropped %llu transformations as the queue was full\n",
+                   (unsigned long long) dropped_count);
+    }
+    free(queue.header);
+    memset(&queue, 0, sizeof(queue));
 }
 
 // JVMTI function wrappers
@@ -654,6 +1203,12 @@ JNIEXPORT jint JNICALL Agent_OnLoad(JavaVM *vm, char *options, void *reserved) {
         return JNI_ERR;
     }
 
+    if (setup_ring(getpid()) != 0 || start_writer() != 0) {
+        cleanup_directories();
+        agent_already_loaded = 0;  // Reset flag
+        return JNI_ERR;
+    }
+
     // Log configuration
     log_configuration();
 
@@ -695,6 +1250,9 @@ JNIEXPORT void JNICALL Agent_OnUnload(JavaVM *vm) {
         LOG_VERBOSE("[NATIVE_AGENT] Restored original SetEventCallbacks function pointer\n");
     }
     
+    // Write the queued transformations
+    stop_writer();
+
     // Clean up communication directories
     cleanup_directories();
     
@@ -702,5 +1260,7 @@ JNIEXPORT void JNICALL Agent_OnUnload(JavaVM *vm) {
     memset(agent_info, 0, sizeof(agent_info));
     next_agent_slot = 0;
     file_counter = 0;
+    include_filters_count = 0;
+    exclude_filters_count = 0;
     agent_already_loaded = 0;
 }
\ No newline at end of file
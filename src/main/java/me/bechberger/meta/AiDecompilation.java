@@ -0,0 +1,394 @@
+package me.bechberger.meta;
+
+import me.bechberger.meta.runtime.BytecodeHashes;
+import me.bechberger.meta.runtime.DecompilationCache;
+import me.bechberger.meta.runtime.Klass;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Improves decompiled Java sources with a local AI model, by default {@code ollama run} {@value DEFAULT_MODEL}
+ * <p>
+ * The model command is run once per prompt on a bounded pool, so that multiple prompts (of one or multiple
+ * classes) are processed in parallel. Large classes are split at member boundaries into multiple prompts,
+ * the class header and closing brace are kept as they are. The results are cached in the
+ * {@link DecompilationCache}, keyed by the hash of the prompt (which contains the decompiled source)
+ * and the model command, and prompts whose command fails or is not done within the timeout
+ * keep the original source.
+ */
+public class AiDecompilation {
+
+    public static final String DEFAULT_MODEL = "deepseek-r1:14b";
+
+    /**
+     * Classes with longer sources are split into multiple prompts
+     */
+    static final int MAX_PROMPT_SOURCE_CHARS = 8000;
+
+    private static final String CLASS_PROMPT = """
+            please improve the following Java decompilation, only give me the decompiled code and give local variables proper names (only give fields and parameters different names if the names seem to be autogenerated), but keep them short, without explanations. Put the Java code in markdown code block:
+            """;
+
+    private static final String MEMBERS_PROMPT = """
+            please improve the following members of the decompiled Java class $CLASS, only give me these members and give local variables proper names (only give fields and parameters different names if the names seem to be autogenerated), but keep them short, without explanations. Put the Java code in markdown code block:
+            """;
+
+    /**
+     * Called with the improved parts of a class, in order
+     */
+    @FunctionalInterface
+    public interface PartListener {
+        void accept(String part) throws IOException;
+    }
+
+    /**
+     * Part of a class source
+     *
+     * @param improve whether the part is passed to the model or kept as it is
+     * @param members whether the part only contains members of the class, not the whole class
+     */
+    record Part(String source, boolean improve, boolean members) {
+    }
+
+    /**
+     * Part of a class source that is being improved
+     *
+     * @param source the original source of the part, used if the model does not finish in time
+     */
+    private record Pending(String source, Future<String> improved) {
+    }
+
+    private static volatile List<String> command = List.of("ollama", "run", DEFAULT_MODEL);
+    private static volatile ExecutorService executor = createExecutor(2);
+    private static volatile long timeoutNanos = TimeUnit.MINUTES.toNanos(5);
+
+    private static ExecutorService createExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "meta-agent-ai-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param command     command that reads the prompt from stdin and writes the answer to stdout,
+     *                    split at whitespace
+     * @param concurrency maximum number of commands running in parallel
+     */
+    public static void configure(String command, int concurrency) {
+        AiDecompilation.command = List.of(command.trim().split("\\s+"));
+        ExecutorService old = executor;
+        executor = createExecutor(concurrency);
+        old.shutdown();
+    }
+
+    /**
+     * @param timeoutMs time budget for improving the classes passed to one {@code improve} call,
+     *                  also the maximum run time of a single model command
+     */
+    public static void setTimeout(long timeoutMs) {
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    /**
+     * Whether the executable of the model command exists
+     */
+    public static boolean isAvailable() {
+        String executable = command.get(0);
+        if (executable.contains("/")) {
+            return Files.isExecutable(Path.of(executable));
+        }
+        String path = System.getenv("PATH");
+        return path != null && Arrays.stream(path.split(java.io.File.pathSeparator))
+                .anyMatch(dir -> Files.isExecutable(Path.of(dir, executable)));
+    }
+
+    /**
+     * Mode of the improved parts in the {@link DecompilationCache}, depends on the model command
+     */
+    private static String getCacheMode() {
+        return "java-ai-" + String.join("_", command).replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Improve the sources of multiple classes, all prompts are processed in parallel
+     *
+     * @return improved source per class
+     */
+    public static Map<Klass, String> improve(Map<Klass, String> sources) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        Map<Klass, List<Pending>> parts = new HashMap<>();
+        sources.forEach((klass, source) -> parts.put(klass, submit(klass, source)));
+        Map<Klass, String> result = new HashMap<>();
+        parts.forEach((klass, pending) -> {
+            try {
+                result.put(klass, join(klass, pending, deadline, part -> {
+                }));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Improve the source of a class, passing the parts to the listener as soon as they and all parts
+     * before them are ready
+     *
+     * @return the improved source
+     */
+    public static String improve(Klass klass, String source, PartListener listener) throws IOException {
+        return join(klass, submit(klass, source), System.nanoTime() + timeoutNanos, listener);
+    }
+
+    /**
+     * Wait for the improved parts, parts that are not ready at the deadline are cancelled
+     * and replaced by their original source
+     */
+    private static String join(Klass klass, List<Pending> parts, long deadline, PartListener listener)
+            throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Pending pending : parts) {
+            String part;
+            try {
+                part = pending.improved().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                parts.forEach(p -> p.improved().cancel(false));
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the model", e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } catch (TimeoutException e) {
+                if (pending.improved().cancel(true)) {
+                    System.err.println("Could not improve " + klass.getName() + " with "
+                            + String.join(" ", command) + ": timeout");
+                }
+                part = pending.source();
+            }
+            sb.append(part);
+            listener.accept(part);
+        }
+        return sb.toString();
+    }
+
+    private static List<Pending> submit(Klass klass, String source) {
+        List<String> currentCommand = command;
+        long currentTimeoutNanos = timeoutNanos;
+        String cacheMode = getCacheMode();
+        List<Pending> futures = new ArrayList<>();
+        for (Part part : split(source)) {
+            if (!part.improve()) {
+                futures.add(new Pending(part.source(), CompletableFuture.completedFuture(part.source())));
+                continue;
+            }
+            String prompt = (part.members() ? MEMBERS_PROMPT.replace("$CLASS", klass.getName()) : CLASS_PROMPT)
+                    + part.source();
+            String hash = BytecodeHashes.hash(prompt.getBytes(StandardCharsets.UTF_8));
+            String cached = DecompilationCache.get(hash, cacheMode);
+            if (cached != null) {
+                futures.add(new Pending(part.source(), CompletableFuture.completedFuture(cached)));
+                continue;
+            }
+            futures.add(new Pending(part.source(), executor.submit(() -> {
+                try {
+                    String improved = run(currentCommand, prompt, currentTimeoutNanos);
+                    if (part.members() && !improved.endsWith("\n")) {
+                        improved += "\n";
+                    }
+                    DecompilationCache.put(hash, cacheMode, improved);
+                    return improved;
+                } catch (IOException e) {
+                    if (!Thread.currentThread().isInterrupted()) { // otherwise cancelled after the timeout
+                        System.err.println("Could not improve " + klass.getName() + " with "
+                                + String.join(" ", currentCommand) + ": " + e.getMessage());
+                    }
+                    return part.source();
+                }
+            })));
+        }
+        return futures;
+    }
+
+    /**
+     * Run the model and collect the Java code blocks of its answer, the process is killed after the timeout
+     */
+    private static String run(List<String> command, String prompt, long timeoutNanos) throws IOException {
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        CompletableFuture.delayedExecutor(timeoutNanos, TimeUnit.NANOSECONDS).execute(process::destroyForcibly);
+        try (OutputStream in = process.getOutputStream()) {
+            in.write(prompt.getBytes(StandardCharsets.UTF_8));
+        }
+        List<String> lines = new ArrayList<>();
+        boolean inJava = false;
+        boolean hasJava = false;
+        try (var reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("```")) {
+                    inJava = line.startsWith("```java");
+                    hasJava |= inJava;
+                } else if (inJava) {
+                    lines.add(line);
+                }
+            }
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("exit code " + process.exitValue());
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        }
+        if (!hasJava) {
+            throw new IOException("no Java code block in the answer");
+        }
+        return String.join("\n", lines);
+    }
+
+    /**
+     * Split the source of a class into parts of at most {@value MAX_PROMPT_SOURCE_CHARS} characters
+     * (if no single member is larger), the top-level members of the outer class are never split
+     */
+    static List<Part> split(String source) {
+        if (source.length() <= MAX_PROMPT_SOURCE_CHARS) {
+            return List.of(new Part(source, true, false));
+        }
+        List<Integer> boundaries = findMemberBoundaries(source);
+        if (boundaries.size() < 3) {
+            return List.of(new Part(source, true, false));
+        }
+        List<Part> parts = new ArrayList<>();
+        parts.add(new Part(source.substring(0, boundaries.get(0)), false, false));
+        int start = boundaries.get(0);
+        for (int i = 1; i < boundaries.size(); i++) {
+            int previous = boundaries.get(i - 1);
+            if (boundaries.get(i) - start > MAX_PROMPT_SOURCE_CHARS && previous > start) {
+                parts.add(new Part(source.substring(start, previous), true, true));
+                start = previous;
+            }
+        }
+        int end = boundaries.get(boundaries.size() - 1);
+        if (end > start) {
+            parts.add(new Part(source.substring(start, end), true, true));
+        }
+        parts.add(new Part(source.substring(end), false, false));
+        return parts;
+    }
+
+    /**
+     * Positions after the opening brace of the outer class and after each of its members
+     * (including the rest of the line), the last position is the end of the last member
+     */
+    private static List<Integer> findMemberBoundaries(String source) {
+        List<Integer> boundaries = new ArrayList<>();
+        int depth = 0;
+        int parens = 0;
+        int n = source.length();
+        for (int i = 0; i < n; i++) {
+            char c = source.charAt(i);
+            switch (c) {
+                case '"' -> i = skipLiteral(source, i, '"');
+                case '\'' -> i = skipLiteral(source, i, '\'');
+                case '/' -> {
+                    if (i + 1 < n && source.charAt(i + 1) == '/') {
+                        int end = source.indexOf('\n', i);
+                        i = end == -1 ? n : end - 1;
+                    } else if (i + 1 < n && source.charAt(i + 1) == '*') {
+                        int end = source.indexOf("*/", i + 2);
+                        i = end == -1 ? n : end + 1;
+                    }
+                }
+                case '(' -> parens++;
+                case ')' -> parens--;
+                case '{' -> {
+                    depth++;
+                    if (depth == 1 && boundaries.isEmpty()) {
+                        boundaries.add(skipRestOfLine(source, i + 1));
+                    }
+                }
+                case '}' -> {
+                    depth--;
+                    if (depth == 0) {
+                        return boundaries;
+                    }
+                    if (depth == 1 && parens == 0 && !continuesExpression(source, i + 1)) {
+                        boundaries.add(skipRestOfLine(source, i + 1));
+                    }
+                }
+                case ';' -> {
+                    if (depth == 1 && parens == 0) {
+                        boundaries.add(skipRestOfLine(source, i + 1));
+                    }
+                }
+                default -> {
+                }
+            }
+        }
+        // unbalanced braces, don't split
+        return List.of();
+    }
+
+    /**
+     * @return the position of the closing quote
+     */
+    private static int skipLiteral(String source, int start, char quote) {
+        if (quote == '"' && source.startsWith("\"\"\"", start)) {
+            for (int i = start + 3; i < source.length(); i++) {
+                if (source.charAt(i) == '\\') {
+                    i++;
+                } else if (source.startsWith("\"\"\"", i)) {
+                    return i + 2;
+                }
+            }
+            return source.length();
+        }
+        for (int i = start + 1; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote || c == '\n') {
+                return i;
+            }
+        }
+        return source.length();
+    }
+
+    /**
+     * Whether the closing brace is part of an expression, like a lambda in a field initializer
+     * or an enum constant with a body
+     */
+    private static boolean continuesExpression(String source, int pos) {
+        for (int i = pos; i < source.length(); i++) {
+            char c = source.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == ';' || c == ',' || c == ')' || c == '.';
+            }
+        }
+        return false;
+    }
+
+    private static int skipRestOfLine(String source, int pos) {
+        int i = pos;
+        while (i < source.length() && (source.charAt(i) == ' ' || source.charAt(i) == '\t')) {
+            i++;
+        }
+        if (i < source.length() && source.charAt(i) == '\n') {
+            return i + 1;
+        }
+        return pos;
+    }
+}
@@ -1,69 +1,98 @@
 package me.bechberger.meta;
 
+import me.bechberger.meta.runtime.BytecodeHashes;
 import me.bechberger.meta.runtime.Klass;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Utility class for computing bytecode diffs using the decompiled source code and gnu-diff
+ * Utility class for computing bytecode diffs using the decompiled source code and an in-memory
+ * unified diff, see {@link UnifiedDiff}
+ * <p>
+ * By default, only the changed members of the classes are decompiled and diffed, see {@link MemberDiff}.
  */
 public class BytecodeDiffUtils {
 
-    public static String diff(Map<Klass, SimpleBytecodeDiff> diffPerClass, DiffSourceMode mode, boolean showAll) {
-        var oldSourcePerClass =
-                Decompilation.decompileClasses(
-                        diffPerClass.entrySet().stream()
-                                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().old())), mode);
-        var newSourcePerClass =
-                Decompilation.decompileClasses(
-                        diffPerClass.entrySet().stream()
-                                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().current())), mode);
-        Path tmp = null;
-        try {
-            tmp = Files.createTempDirectory("bytecode-diff");
-            var oldFolder = tmp.resolve("old");
-            var newFolder = tmp.resolve("new");
-            Files.createDirectories(oldFolder);
-            Files.createDirectories(newFolder);
-            for (var entry : diffPerClass.entrySet()) {
-                var oldFile = oldFolder.resolve(entry.getKey().getName() + mode.suffix);
-                var newFile = newFolder.resolve(entry.getKey().getName() + mode.suffix);
-                Files.writeString(oldFile, oldSourcePerClass.get(entry.getKey()));
-                Files.writeString(newFile, newSourcePerClass.get(entry.getKey()));
-            }
-            List<String> args = new ArrayList<>();
-            args.add("diff");
-            if (showAll) {
-                args.add("-U100000");
+    /**
+     * Versions of the class that are decompiled for the diff, the first of a pair is the old version
+     *
+     * @param collapse only keep the changed members
+     */
+    public static List<byte[]> getDecompiledVersions(SimpleBytecodeDiff diff, boolean collapse) {
+        MemberDiff.Reduced reduced = collapse ? MemberDiff.reduceCached(diff.old(), diff.current()) : null;
+        return reduced == null ? List.of(diff.old(), diff.current()) : List.of(reduced.old(), reduced.current());
+    }
+
+    /**
+     * Diff the classes, the diffs of single classes are cached in the {@link DiffCache}, so that only
+     * the classes whose versions have not been diffed before with these options are decompiled and diffed
+     *
+     * @param collapse only decompile and diff the changed members, the unchanged ones are summarized in a comment
+     */
+    public static String diff(Map<Klass, SimpleBytecodeDiff> diffPerClass, DiffSourceMode mode, boolean showAll,
+                              boolean collapse) {
+        Map<Klass, String> keys = new HashMap<>();
+        Map<Klass, String> diffs = new ConcurrentHashMap<>();
+        Map<Klass, SimpleBytecodeDiff> missing = new HashMap<>();
+        diffPerClass.forEach((klass, diff) -> {
+            String key = DiffCache.getKey(BytecodeHashes.hash(diff.old()), BytecodeHashes.hash(diff.current()),
+                    mode, showAll, collapse);
+            String cached = DiffCache.get(key);
+            if (cached != null) {
+                diffs.put(klass, cached);
             } else {
-                args.add("-U10");
+                keys.put(klass, key);
+                missing.put(klass, diff);
             }
-            args.add(tmp.relativize(oldFolder).toString());
-            args.add(tmp.relativize(newFolder).toString());
-            Process p = new ProcessBuilder(args).directory(tmp.toFile()).start();
-            // capture the output of the process and return it
-            String out = new String(p.getInputStream().readAllBytes());
-            // remove all time stamps from the output that come after the file names, but keep the file
-            // names
-            return out.lines()
-                    .map(
-                            l ->
-                                    (l.startsWith("---") || l.startsWith("+++"))
-                                            ? l.replaceAll(
-                                            "((---|\\+\\+\\+) .*)(\\t\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2})",
-                                            "$1")
-                                            : l)
-                    .collect(Collectors.joining("\n"));
-        } catch (IOException e) {
-            return "Error: " + e.getMessage();
-        } finally {
-            Decompilation.deleteFolder(tmp);
+        });
+        if (!missing.isEmpty()) {
+            diffUncached(missing, mode, showAll, collapse, keys, diffs);
         }
+        return UnifiedDiff.join(diffPerClass.keySet().stream()
+                .sorted(Comparator.comparing(k -> k.getName() + mode.suffix))
+                .map(diffs::get)
+                .toList());
+    }
+
+    private static void diffUncached(Map<Klass, SimpleBytecodeDiff> diffPerClass, DiffSourceMode mode, boolean showAll,
+                                     boolean collapse, Map<Klass, String> keys, Map<Klass, String> diffs) {
+        Map<Klass, byte[]> oldPerClass = new HashMap<>();
+        Map<Klass, byte[]> newPerClass = new HashMap<>();
+        Map<Klass, String> notePerClass = new HashMap<>();
+        diffPerClass.forEach((klass, diff) -> {
+            MemberDiff.Reduced reduced = collapse ? MemberDiff.reduceCached(diff.old(), diff.current()) : null;
+            if (reduced == null) {
+                oldPerClass.put(klass, diff.old());
+                newPerClass.put(klass, diff.current());
+                notePerClass.put(klass, "");
+            } else {
+                oldPerClass.put(klass, reduced.old());
+                newPerClass.put(klass, reduced.current());
+                notePerClass.put(klass, reduced.getNote());
+            }
+        });
+        var oldSourcePerClass = Decompilation.decompileClasses(oldPerClass, mode);
+        var newSourcePerClass = Decompilation.decompileClasses(newPerClass, mode);
+        diffPerClass.keySet().parallelStream().forEach(klass -> {
+            String note = notePerClass.get(klass);
+            String oldSource = oldSourcePerClass.get(klass);
+            String newSource = newSourcePerClass.get(klass);
+            String diff = UnifiedDiff.diff(new UnifiedDiff.File(klass.getName() + mode.suffix,
+                    note + oldSource, note + newSource), showAll ? 100000 : 10);
+            diffs.put(klass, diff);
+            // failed decompilations might succeed later, and AI improvements might fail temporarily
+            if (mode != DiffSourceMode.AI_JAVA && isFinal(oldSource) && isFinal(newSource)) {
+                DiffCache.put(keys.get(klass), diff);
+            }
+        });
+    }
+
+    private static boolean isFinal(@Nullable String source) {
+        return source != null && !Decompilation.isOverBudgetFallback(source);
     }
 }
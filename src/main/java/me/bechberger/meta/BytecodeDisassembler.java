@@ -0,0 +1,435 @@
+package me.bechberger.meta;
+
+import javassist.bytecode.*;
+import me.bechberger.meta.runtime.BytecodeHashes;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Disassembles class files in-process, with an output similar to {@code javap -p -c}
+ * and, in verbose mode, {@code javap -p -c -v}
+ * <p>
+ * Uses the bytecode API of javassist, so neither the JDK tools nor a separate process are needed.
+ * Generic signatures are not resolved, the declarations use the erased types of the descriptors.
+ * The output only depends on the bytecode, so it can be cached and diffed.
+ */
+public class BytecodeDisassembler {
+
+    record Flag(int mask, String name, String keyword) {
+    }
+
+    static final List<Flag> CLASS_FLAGS = List.of(
+            new Flag(AccessFlag.PUBLIC, "ACC_PUBLIC", "public"),
+            new Flag(AccessFlag.FINAL, "ACC_FINAL", "final"),
+            new Flag(AccessFlag.SUPER, "ACC_SUPER", ""),
+            new Flag(AccessFlag.INTERFACE, "ACC_INTERFACE", ""),
+            new Flag(AccessFlag.ABSTRACT, "ACC_ABSTRACT", "abstract"),
+            new Flag(AccessFlag.SYNTHETIC, "ACC_SYNTHETIC", ""),
+            new Flag(AccessFlag.ANNOTATION, "ACC_ANNOTATION", ""),
+            new Flag(AccessFlag.ENUM, "ACC_ENUM", ""),
+            new Flag(0x8000, "ACC_MODULE", ""));
+
+    static final List<Flag> FIELD_FLAGS = List.of(
+            new Flag(AccessFlag.PUBLIC, "ACC_PUBLIC", "public"),
+            new Flag(AccessFlag.PRIVATE, "ACC_PRIVATE", "private"),
+            new Flag(AccessFlag.PROTECTED, "ACC_PROTECTED", "protected"),
+            new Flag(AccessFlag.STATIC, "ACC_STATIC", "static"),
+            new Flag(AccessFlag.FINAL, "ACC_FINAL", "final"),
+            new Flag(AccessFlag.VOLATILE, "ACC_VOLATILE", "volatile"),
+            new Flag(AccessFlag.TRANSIENT, "ACC_TRANSIENT", "transient"),
+            new Flag(AccessFlag.SYNTHETIC, "ACC_SYNTHETIC", ""),
+            new Flag(AccessFlag.ENUM, "ACC_ENUM", ""));
+
+    static final List<Flag> METHOD_FLAGS = List.of(
+            new Flag(AccessFlag.PUBLIC, "ACC_PUBLIC", "public"),
+            new Flag(AccessFlag.PRIVATE, "ACC_PRIVATE", "private"),
+            new Flag(AccessFlag.PROTECTED, "ACC_PROTECTED", "protected"),
+            new Flag(AccessFlag.STATIC, "ACC_STATIC", "static"),
+            new Flag(AccessFlag.FINAL, "ACC_FINAL", "final"),
+            new Flag(AccessFlag.SYNCHRONIZED, "ACC_SYNCHRONIZED", "synchronized"),
+            new Flag(AccessFlag.BRIDGE, "ACC_BRIDGE", ""),
+            new Flag(AccessFlag.VARARGS, "ACC_VARARGS", ""),
+            new Flag(AccessFlag.NATIVE, "ACC_NATIVE", "native"),
+            new Flag(AccessFlag.ABSTRACT, "ACC_ABSTRACT", "abstract"),
+            new Flag(AccessFlag.STRICT, "ACC_STRICT", "strictfp"),
+            new Flag(AccessFlag.SYNTHETIC, "ACC_SYNTHETIC", ""));
+
+    private static final String[] REFERENCE_KINDS = {"", "REF_getField", "REF_getStatic", "REF_putField",
+            "REF_putStatic", "REF_invokeVirtual", "REF_invokeStatic", "REF_invokeSpecial", "REF_newInvokeSpecial",
+            "REF_invokeInterface"};
+
+    private static final Pattern CONSTANT_INDEX = Pattern.compile("#\\d+( = )?");
+
+    private final byte[] bytecode;
+    private final ClassFile classFile;
+    private final ConstPool pool;
+    private final boolean verbose;
+    private final StringBuilder out = new StringBuilder();
+
+    private BytecodeDisassembler(byte[] bytecode, ClassFile classFile, boolean verbose) {
+        this.bytecode = bytecode;
+        this.classFile = classFile;
+        this.pool = classFile.getConstPool();
+        this.verbose = verbose;
+    }
+
+    /**
+     * Disassemble the class
+     *
+     * @param verbose also print the constant pool, the flags and the attributes, like {@code javap -v}
+     * @throws IOException if the bytecode is not a valid class file
+     */
+    public static String disassemble(byte[] bytecode, boolean verbose) throws IOException {
+        ClassFile classFile = new ClassFile(new DataInputStream(new ByteArrayInputStream(bytecode)));
+        return new BytecodeDisassembler(bytecode, classFile, verbose).disassemble();
+    }
+
+    /**
+     * Verbose disassembly of every field ({@code field name:descriptor}) and method ({@code method name:descriptor})
+     * without constant pool indices, so that equal members of two versions of a class have the same text,
+     * even if the constant pool has been reordered
+     */
+    static Map<String, String> disassembleMembers(ClassFile classFile) {
+        BytecodeDisassembler disassembler = new BytecodeDisassembler(new byte[0], classFile, true);
+        Map<String, String> members = new LinkedHashMap<>();
+        for (FieldInfo field : classFile.getFields()) {
+            members.put(getKey(field), CONSTANT_INDEX.matcher(disassembler.field(field)).replaceAll("#"));
+        }
+        for (MethodInfo method : classFile.getMethods()) {
+            members.put(getKey(method), CONSTANT_INDEX.matcher(disassembler.method(method)).replaceAll("#"));
+        }
+        return members;
+    }
+
+    static String getKey(FieldInfo field) {
+        return "field " + field.getName() + ":" + field.getDescriptor();
+    }
+
+    static String getKey(MethodInfo method) {
+        return getMethodKey(method.getName(), method.getDescriptor());
+    }
+
+    static String getMethodKey(String name, String descriptor) {
+        return "method " + name + ":" + descriptor;
+    }
+
+    private String disassemble() {
+        if (verbose) {
+            out.append("Classfile ").append(classFile.getName()).append("\n");
+            out.append("  Size ").append(bytecode.length).append(" bytes\n");
+            out.append("  SHA-256 checksum ").append(BytecodeHashes.hash(bytecode)).append("\n");
+        }
+        if (classFile.getSourceFile() != null) {
+            out.append(verbose ? "  " : "").append("Compiled from \"").append(classFile.getSourceFile()).append("\"\n");
+        }
+        printClassDeclaration();
+        if (verbose) {
+            out.append("  minor version: ").append(classFile.getMinorVersion()).append("\n");
+            out.append("  major version: ").append(classFile.getMajorVersion()).append("\n");
+            out.append("  flags: ").append(flags(classFile.getAccessFlags(), CLASS_FLAGS)).append("\n");
+            out.append("  this_class: ").append(classFile.getName()).append("\n");
+            out.append("  super_class: ").append(classFile.getSuperclass()).append("\n");
+            out.append("  interfaces: ").append(classFile.getInterfaces().length)
+                    .append(", fields: ").append(classFile.getFields().size())
+                    .append(", methods: ").append(classFile.getMethods().size())
+                    .append(", attributes: ").append(classFile.getAttributes().size()).append("\n");
+            printConstantPool();
+        }
+        out.append("{\n");
+        List<String> members = new ArrayList<>();
+        for (FieldInfo field : classFile.getFields()) {
+            members.add(field(field));
+        }
+        for (MethodInfo method : classFile.getMethods()) {
+            members.add(method(method));
+        }
+        out.append(String.join("\n", members));
+        out.append("}\n");
+        if (verbose) {
+            for (AttributeInfo attribute : classFile.getAttributes()) {
+                out.append(attribute(attribute, ""));
+            }
+        }
+        return out.toString();
+    }
+
+    private void printClassDeclaration() {
+        int accessFlags = classFile.getAccessFlags();
+        String modifiers = modifiers(accessFlags, CLASS_FLAGS);
+        if (classFile.isInterface()) {
+            // interfaces are always abstract
+            modifiers = modifiers.replace("abstract ", "");
+        }
+        out.append(modifiers);
+        String superclass = classFile.getSuperclass();
+        String[] interfaces = classFile.getInterfaces();
+        if ((accessFlags & AccessFlag.ANNOTATION) != 0) {
+            out.append("@interface ").append(classFile.getName());
+        } else if (classFile.isInterface()) {
+            out.append("interface ").append(classFile.getName());
+        } else {
+            out.append("class ").append(classFile.getName());
+            if (superclass != null && !superclass.equals("java.lang.Object")) {
+                out.append(" extends ").append(superclass);
+            }
+        }
+        if (interfaces.length > 0) {
+            out.append(classFile.isInterface() ? " extends " : " implements ").append(String.join(", ", interfaces));
+        }
+        out.append("\n");
+    }
+
+    private String field(FieldInfo field) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("  ").append(modifiers(field.getAccessFlags(), FIELD_FLAGS))
+                .append(Descriptor.toClassName(field.getDescriptor())).append(" ").append(field.getName()).append(";\n");
+        if (verbose) {
+            sb.append("    descriptor: ").append(field.getDescriptor()).append("\n");
+            sb.append("    flags: ").append(flags(field.getAccessFlags(), FIELD_FLAGS)).append("\n");
+            for (AttributeInfo attribute : field.getAttributes()) {
+                sb.append(attribute(attribute, "    "));
+            }
+        }
+        return sb.toString();
+    }
+
+    private String method(MethodInfo method) {
+        StringBuilder sb = new StringBuilder();
+        int accessFlags = method.getAccessFlags();
+        String descriptor = method.getDescriptor();
+        sb.append("  ").append(modifiers(accessFlags, METHOD_FLAGS));
+        if (method.isStaticInitializer()) {
+            sb.append("{}");
+        } else {
+            if (!method.isConstructor()) {
+                sb.append(Descriptor.toClassName(descriptor.substring(descriptor.indexOf(')') + 1))).append(" ");
+            }
+            sb.append(method.isConstructor() ? classFile.getName() : method.getName()).append("(");
+            List<String> parameters = getParameterTypes(descriptor);
+            if ((accessFlags & AccessFlag.VARARGS) != 0 && !parameters.isEmpty()) {
+                String last = parameters.get(parameters.size() - 1);
+                parameters.set(parameters.size() - 1, last.substring(0, last.length() - 2) + "...");
+            }
+            sb.append(String.join(", ", parameters)).append(")");
+            ExceptionsAttribute exceptions = method.getExceptionsAttribute();
+            if (exceptions != null && exceptions.getExceptions() != null && exceptions.getExceptions().length > 0) {
+                sb.append(" throws ").append(String.join(", ", exceptions.getExceptions()));
+            }
+        }
+        sb.append(";\n");
+        if (verbose) {
+            sb.append("    descriptor: ").append(descriptor).append("\n");
+            sb.append("    flags: ").append(flags(accessFlags, METHOD_FLAGS)).append("\n");
+        }
+        CodeAttribute code = method.getCodeAttribute();
+        if (code != null) {
+            sb.append(code(code, descriptor, (accessFlags & AccessFlag.STATIC) != 0));
+        }
+        if (verbose) {
+            for (AttributeInfo attribute : method.getAttributes()) {
+                if (!(attribute instanceof CodeAttribute)) {
+                    sb.append(attribute(attribute, "    "));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private String code(CodeAttribute code, String descriptor, boolean isStatic) {
+        StringBuilder sb = new StringBuilder("    Code:\n");
+        if (verbose) {
+            sb.append("      stack=").append(code.getMaxStack())
+                    .append(", locals=").append(code.getMaxLocals())
+                    .append(", args_size=").append(Descriptor.paramSize(descriptor) + (isStatic ? 0 : 1)).append("\n");
+        }
+        CodeIterator iterator = code.iterator();
+        try {
+            while (iterator.hasNext()) {
+                int pos = iterator.next();
+                sb.append(String.format("      %4d: ", pos))
+                        .append(instruction(iterator, pos).replace("\n", "\n            ").replace("\t", "  "))
+                        .append("\n");
+            }
+        } catch (BadBytecode e) {
+            sb.append("      // invalid bytecode: ").append(e.getMessage()).append("\n");
+        }
+        ExceptionTable table = code.getExceptionTable();
+        if (table.size() > 0) {
+            sb.append("    Exception table:\n");
+            sb.append("       from    to  target type\n");
+            for (int i = 0; i < table.size(); i++) {
+                int catchType = table.catchType(i);
+                sb.append(String.format("      %5d %5d %5d   %s\n", table.startPc(i), table.endPc(i), table.handlerPc(i),
+                        catchType == 0 ? "any" : "Class " + pool.getClassInfo(catchType)));
+            }
+        }
+        if (verbose) {
+            for (AttributeInfo attribute : code.getAttributes()) {
+                sb.append(attribute(attribute, "      "));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * javassist cannot print the dynamic constants and the call sites of {@code invokedynamic}
+     */
+    private String instruction(CodeIterator iterator, int pos) {
+        int opcode = iterator.byteAt(pos);
+        String mnemonic = Mnemonic.OPCODE[opcode];
+        return switch (opcode) {
+            case Opcode.INVOKEDYNAMIC -> {
+                int index = iterator.u16bitAt(pos + 1);
+                yield mnemonic + " #" + index + " = " + constant(pool, index);
+            }
+            case Opcode.LDC -> mnemonic + " #" + iterator.byteAt(pos + 1) + " = " + constant(pool, iterator.byteAt(pos + 1));
+            case Opcode.LDC_W, Opcode.LDC2_W ->
+                    mnemonic + " #" + iterator.u16bitAt(pos + 1) + " = " + constant(pool, iterator.u16bitAt(pos + 1));
+            default -> InstructionPrinter.instructionString(iterator, pos, pool);
+        };
+    }
+
+    private void printConstantPool() {
+        out.append("Constant pool:\n");
+        for (int i = 1; i < pool.getSize(); i++) {
+            int tag = pool.getTag(i);
+            out.append(String.format("%6s = %s\n", "#" + i, constant(pool, i)));
+            // long and double entries take two slots
+            if (tag == ConstPool.CONST_Long || tag == ConstPool.CONST_Double) {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Describe the constant pool entry, including the entries it references
+     */
+    static String constant(ConstPool pool, int index) {
+        return switch (pool.getTag(index)) {
+            case ConstPool.CONST_Utf8 -> "Utf8 " + escape(pool.getUtf8Info(index));
+            case ConstPool.CONST_Integer -> "int " + pool.getIntegerInfo(index);
+            case ConstPool.CONST_Float -> "float " + pool.getFloatInfo(index) + "f";
+            case ConstPool.CONST_Long -> "long " + pool.getLongInfo(index) + "l";
+            case ConstPool.CONST_Double -> "double " + pool.getDoubleInfo(index) + "d";
+            case ConstPool.CONST_Class -> "Class " + pool.getClassInfo(index);
+            case ConstPool.CONST_String -> "String \"" + escape(pool.getStringInfo(index)) + "\"";
+            case ConstPool.CONST_Fieldref -> "Field " + member(pool, index);
+            case ConstPool.CONST_Methodref -> "Method " + member(pool, index);
+            case ConstPool.CONST_InterfaceMethodref -> "InterfaceMethod " + member(pool, index);
+            case ConstPool.CONST_NameAndType -> "NameAndType " + nameAndType(pool, index);
+            case ConstPool.CONST_MethodHandle -> "MethodHandle " + methodHandle(pool, index);
+            case ConstPool.CONST_MethodType -> "MethodType " + pool.getUtf8Info(pool.getMethodTypeInfo(index));
+            case ConstPool.CONST_Dynamic -> "Dynamic #" + pool.getDynamicBootstrap(index) + ":"
+                    + nameAndType(pool, pool.getDynamicNameAndType(index));
+            case ConstPool.CONST_InvokeDynamic -> "InvokeDynamic #" + pool.getInvokeDynamicBootstrap(index) + ":"
+                    + nameAndType(pool, pool.getInvokeDynamicNameAndType(index));
+            case ConstPool.CONST_Module -> "Module " + pool.getModuleInfo(index);
+            case ConstPool.CONST_Package -> "Package " + pool.getPackageInfo(index);
+            default -> "<tag " + pool.getTag(index) + ">";
+        };
+    }
+
+    static String member(ConstPool pool, int index) {
+        return pool.getClassInfo(pool.getMemberClass(index)) + "." + nameAndType(pool, pool.getMemberNameAndType(index));
+    }
+
+    static String nameAndType(ConstPool pool, int index) {
+        return pool.getUtf8Info(pool.getNameAndTypeName(index)) + ":" + pool.getUtf8Info(pool.getNameAndTypeDescriptor(index));
+    }
+
+    static String methodHandle(ConstPool pool, int index) {
+        int kind = pool.getMethodHandleKind(index);
+        String kindName = kind > 0 && kind < REFERENCE_KINDS.length ? REFERENCE_KINDS[kind] : "kind " + kind;
+        return kindName + " " + member(pool, pool.getMethodHandleIndex(index));
+    }
+
+    private String attribute(AttributeInfo attribute, String indent) {
+        StringBuilder sb = new StringBuilder(indent);
+        if (attribute instanceof SourceFileAttribute sourceFile) {
+            sb.append("SourceFile: \"").append(sourceFile.getFileName()).append("\"\n");
+        } else if (attribute instanceof SignatureAttribute signature) {
+            sb.append("Signature: ").append(signature.getSignature()).append("\n");
+        } else if (attribute instanceof ConstantAttribute constant) {
+            sb.append("ConstantValue: ").append(constant(pool, constant.getConstantValue())).append("\n");
+        } else if (attribute instanceof ExceptionsAttribute exceptions) {
+            sb.append("Exceptions:\n");
+            String[] names = exceptions.getExceptions();
+            for (String name : names == null ? new String[0] : names) {
+                sb.append(indent).append("  throws ").append(name).append("\n");
+            }
+        } else if (attribute instanceof LineNumberAttribute lines) {
+            sb.append("LineNumberTable:\n");
+            for (int i = 0; i < lines.tableLength(); i++) {
+                sb.append(indent).append("  line ").append(lines.lineNumber(i)).append(": ").append(lines.startPc(i)).append("\n");
+            }
+        } else if (attribute instanceof LocalVariableAttribute variables) {
+            sb.append(attribute.getName()).append(":\n");
+            sb.append(indent).append("  Start  Length  Slot  Name   Signature\n");
+            for (int i = 0; i < variables.tableLength(); i++) {
+                sb.append(indent).append(String.format("  %5d  %6d  %4d  %5s   %s\n", variables.startPc(i),
+                        variables.codeLength(i), variables.index(i), variables.variableName(i),
+                        variables.descriptor(i)));
+            }
+        } else if (attribute instanceof BootstrapMethodsAttribute bootstrapMethods) {
+            sb.append("BootstrapMethods:\n");
+            BootstrapMethodsAttribute.BootstrapMethod[] methods = bootstrapMethods.getMethods();
+            for (int i = 0; i < methods.length; i++) {
+                sb.append(indent).append("  ").append(i).append(": ").append(methodHandle(pool, methods[i].methodRef)).append("\n");
+                for (int argument : methods[i].arguments) {
+                    sb.append(indent).append("    #").append(argument).append(" = ").append(constant(pool, argument)).append("\n");
+                }
+            }
+        } else {
+            sb.append(attribute.getName()).append(": length = ").append(attribute.length()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    static String modifiers(int accessFlags, List<Flag> flags) {
+        StringBuilder sb = new StringBuilder();
+        for (Flag flag : flags) {
+            if ((accessFlags & flag.mask) != 0 && !flag.keyword.isEmpty()) {
+                sb.append(flag.keyword).append(" ");
+            }
+        }
+        return sb.toString();
+    }
+
+    static String flags(int accessFlags, List<Flag> flags) {
+        List<String> names = new ArrayList<>();
+        for (Flag flag : flags) {
+            if ((accessFlags & flag.mask) != 0) {
+                names.add(flag.name);
+            }
+        }
+        return String.format("(0x%04x) %s", accessFlags, String.join(", ", names));
+    }
+
+    /**
+     * Java types of the parameters of the method descriptor
+     */
+    static List<String> getParameterTypes(String descriptor) {
+        List<String> types = new ArrayList<>();
+        int pos = 1;
+        while (descriptor.charAt(pos) != ')') {
+            int start = pos;
+            while (descriptor.charAt(pos) == '[') {
+                pos++;
+            }
+            pos = descriptor.charAt(pos) == 'L' ? descriptor.indexOf(';', pos) + 1 : pos + 1;
+            types.add(Descriptor.toClassName(descriptor.substring(start, pos)));
+        }
+        return types;
+    }
+
+    static String escape(String str) {
+        return str.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+    }
+}
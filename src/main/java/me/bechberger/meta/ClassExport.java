@@ -0,0 +1,109 @@
+package me.bechberger.meta;
+
+import com.sun.net.httpserver.HttpExchange;
+import me.bechberger.meta.runtime.BytecodeDiff;
+import me.bechberger.meta.runtime.BytecodeHashes;
+import me.bechberger.meta.runtime.InstrumentationHandler;
+import me.bechberger.meta.runtime.Klass;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports the recorded diffs as a zip file that is streamed directly to the client
+ * <p>
+ * Layout:
+ * <pre>
+ * manifest.json
+ * {instrumentator}/{index}/old/{class path}.class
+ * {instrumentator}/{index}/new/{class path}.class
+ * </pre>
+ * The index is the index of the diff in the list of diffs of the class (as in the JSON API),
+ * so every {@code old} and {@code new} folder can be used as a class path.
+ * The manifest is written first, so it has to be computed in a separate pass over a snapshot of the
+ * matching diffs (diffs recorded during the export are not included), the bytecode itself is not copied.
+ */
+public class ClassExport {
+
+    static Response export(HttpExchange exchange) {
+        Map<String, String> params = MainLoop.getURLParameters(exchange);
+        Pattern instrPattern = params.containsKey("instr") ? MainLoop.getMatchPattern(params.get("instr")) : Pattern.compile(".*");
+        List<Klass> classes = MainLoop.classIndex.getPage(false, MainLoop.getPatternParameter(exchange), null, Integer.MAX_VALUE).classes();
+        return new Response("application/zip", out -> {
+            ZipOutputStream zip = new ZipOutputStream(out);
+            // class files are small, so speed matters more than the last few percent of compression
+            zip.setLevel(Deflater.BEST_SPEED);
+            zip.putNextEntry(new ZipEntry("manifest.json"));
+            // the JSON writer must not close the zip stream when flushing
+            JsonWriter json = new JsonWriter(new OutputStreamWriter(new FilterOutputStream(zip), StandardCharsets.UTF_8));
+            json.beginObject().field("version", JsonApi.VERSION).name("diffs").beginArray();
+            List<IndexedDiff> diffs = getDiffs(classes, instrPattern);
+            for (IndexedDiff d : diffs) {
+                json.beginObject()
+                        .field("class", d.diff.klass().getName())
+                        .field("index", d.index)
+                        .field("instrumentator", d.diff.instrumentator().name())
+                        .field("old", getPath(d.diff, d.index, "old"))
+                        .field("new", getPath(d.diff, d.index, "new"))
+                        .field("oldSize", d.diff.old().length)
+                        .field("newSize", d.diff.current().length)
+                        .field("oldHash", BytecodeHashes.hash(d.diff.old()))
+                        .field("newHash", BytecodeHashes.hash(d.diff.current()))
+                        .endObject();
+            }
+            json.endArray().endObject().flush();
+            zip.closeEntry();
+            for (IndexedDiff d : diffs) {
+                writeEntry(zip, getPath(d.diff, d.index, "old"), d.diff.old());
+                writeEntry(zip, getPath(d.diff, d.index, "new"), d.diff.current());
+            }
+            zip.finish();
+        }).withHeader("Content-Disposition", "attachment; filename=\"meta-agent-export.zip\"");
+    }
+
+    /**
+     * @param index index of the diff in the list of diffs of its class
+     */
+    private record IndexedDiff(BytecodeDiff diff, int index) {
+    }
+
+    /**
+     * Snapshot of the diffs of the classes whose instrumentator matches
+     */
+    private static List<IndexedDiff> getDiffs(List<Klass> classes, Pattern instrPattern) {
+        List<IndexedDiff> result = new ArrayList<>();
+        for (Klass klass : classes) {
+            // copy first, as new diffs might be added concurrently
+            List<BytecodeDiff> diffs = new ArrayList<>(InstrumentationHandler.getClassDiffs().get(klass).getDiffs());
+            for (int i = 0; i < diffs.size(); i++) {
+                BytecodeDiff diff = diffs.get(i);
+                if (instrPattern.matcher(diff.instrumentator().name()).matches()) {
+                    result.add(new IndexedDiff(diff, i));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String getPath(BytecodeDiff diff, int index, String version) {
+        // instrumentator names of hidden classes contain slashes
+        String instrumentator = diff.instrumentator().name().replace('/', '_');
+        return instrumentator + "/" + index + "/" + version + "/" + diff.klass().name() + ".class";
+    }
+
+    private static void writeEntry(ZipOutputStream zip, String path, byte[] bytecode) throws IOException {
+        zip.putNextEntry(new ZipEntry(path));
+        zip.write(bytecode);
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,182 @@
+package me.bechberger.meta;
+
+import me.bechberger.meta.runtime.InstrumentationHandler;
+import me.bechberger.meta.runtime.Klass;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.instrument.Instrumentation;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Sorted index of the transformed and of all loaded classes, used to page through
+ * the classes without calling {@link Instrumentation#getAllLoadedClasses()} and sorting
+ * them on every request.
+ * <p>
+ * The snapshot of all loaded classes is refreshed at most every {@value #MAX_SNAPSHOT_AGE_MS}ms,
+ * the transformed classes whenever new ones have been recorded.
+ * <p>
+ * Patterns only narrow the part of the index that is scanned by their literal prefix
+ * ({@code java.util.*} only visits the classes starting with {@code java.util.}), the rest of the
+ * pattern is matched against every class in this range. So a pattern that starts with a wildcard
+ * still walks all classes, and a page of all loaded classes that is requested after the snapshot
+ * expired first pays for {@link Instrumentation#getAllLoadedClasses()} and for sorting every loaded class.
+ */
+public class ClassIndex {
+
+    private static final long MAX_SNAPSHOT_AGE_MS = 5000;
+
+    /**
+     * A page of classes
+     *
+     * @param classes    classes of the page, sorted by name
+     * @param nextCursor cursor for the next page, {@code null} if this is the last page
+     */
+    public record Page(List<Klass> classes, @Nullable String nextCursor) {
+    }
+
+    private final Instrumentation inst;
+    private NavigableMap<String, Klass> loadedClasses = Collections.emptyNavigableMap();
+    private long loadedClassesTime = 0;
+    private NavigableMap<String, Klass> transformedClasses = Collections.emptyNavigableMap();
+    private int transformedClassesCount = -1;
+
+    public ClassIndex(Instrumentation inst) {
+        this.inst = inst;
+    }
+
+    private synchronized NavigableMap<String, Klass> getTransformedClasses() {
+        var classDiffs = InstrumentationHandler.getClassDiffs();
+        // classes are only ever added, so the size tells us whether anything changed
+        if (classDiffs.size() != transformedClassesCount) {
+            NavigableMap<String, Klass> classes = new TreeMap<>();
+            for (Klass klass : classDiffs.keySet()) {
+                classes.put(klass.getName(), klass);
+            }
+            transformedClasses = classes;
+            transformedClassesCount = classDiffs.size();
+        }
+        return transformedClasses;
+    }
+
+    private synchronized NavigableMap<String, Klass> getLoadedClasses() {
+        if (System.currentTimeMillis() - loadedClassesTime > MAX_SNAPSHOT_AGE_MS) {
+            NavigableMap<String, Klass> classes = new TreeMap<>();
+            for (Class<?> klass : inst.getAllLoadedClasses()) {
+                if (klass.isArray() || klass.isHidden()) {
+                    continue;
+                }
+                Klass k = new Klass(klass);
+                classes.putIfAbsent(k.getName(), k);
+            }
+            loadedClasses = classes;
+            loadedClassesTime = System.currentTimeMillis();
+        }
+        return loadedClasses;
+    }
+
+    /**
+     * Obtain a page of classes
+     *
+     * @param all     include all loaded classes, not just the transformed ones
+     * @param pattern only include classes whose name matches, see {@link MainLoop#getMatchPattern(String)}
+     * @param after   cursor, only classes whose name is larger are returned, {@code null} to start at the beginning
+     * @param limit   maximum number of classes on the page
+     */
+    public Page getPage(boolean all, String pattern, @Nullable String after, int limit) {
+        Pattern regexp = MainLoop.getMatchPattern(pattern);
+        String prefix = getLiteralPrefix(pattern);
+        var transformed = range(getTransformedClasses(), prefix, after);
+        Iterator<Klass> iterator = all
+                ? merge(transformed, range(getLoadedClasses(), prefix, after))
+                : transformed.values().iterator();
+        List<Klass> classes = new ArrayList<>();
+        while (iterator.hasNext()) {
+            Klass klass = iterator.next();
+            if (!regexp.matcher(klass.getName()).matches()) {
+                continue;
+            }
+            if (classes.size() == limit) {
+                return new Page(classes, classes.get(classes.size() - 1).getName());
+            }
+            classes.add(klass);
+        }
+        return new Page(classes, null);
+    }
+
+    /**
+     * Prefix that every name matching the pattern starts with, the part before the first wildcard
+     * or regular expression construct
+     */
+    static String getLiteralPrefix(String pattern) {
+        if (pattern.contains("|")) {
+            return "";
+        }
+        for (int i = 0; i < pattern.length(); i++) {
+            switch (pattern.charAt(i)) {
+                case '*', '+', '[', '(', '^', '\\' -> {
+                    return pattern.substring(0, i);
+                }
+                // the previous character is optional
+                case '?', '{' -> {
+                    return pattern.substring(0, Math.max(0, i - 1));
+                }
+                default -> {
+                }
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Classes that start with the prefix and whose name is larger than the cursor
+     */
+    private static NavigableMap<String, Klass> range(NavigableMap<String, Klass> map, String prefix,
+                                                     @Nullable String after) {
+        if (prefix.isEmpty()) {
+            return after == null ? map : map.tailMap(after, false);
+        }
+        String end = prefix + Character.MAX_VALUE;
+        if (after == null || after.compareTo(prefix) < 0) {
+            return map.subMap(prefix, true, end, false);
+        }
+        return after.compareTo(end) >= 0 ? Collections.emptyNavigableMap() : map.subMap(after, false, end, false);
+    }
+
+    /**
+     * Merge the two sorted maps, preferring the transformed classes on name clashes
+     */
+    private static Iterator<Klass> merge(NavigableMap<String, Klass> transformed, NavigableMap<String, Klass> loaded) {
+        var left = transformed.entrySet().iterator();
+        var right = loaded.entrySet().iterator();
+        return new Iterator<>() {
+            Map.Entry<String, Klass> nextLeft = left.hasNext() ? left.next() : null;
+            Map.Entry<String, Klass> nextRight = right.hasNext() ? right.next() : null;
+
+            @Override
+            public boolean hasNext() {
+                return nextLeft != null || nextRight != null;
+            }
+
+            @Override
+            public Klass next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int cmp = nextLeft == null ? 1 : nextRight == null ? -1 : nextLeft.getKey().compareTo(nextRight.getKey());
+                Klass result;
+                if (cmp <= 0) {
+                    result = nextLeft.getValue();
+                    nextLeft = left.hasNext() ? left.next() : null;
+                    if (cmp == 0) {
+                        nextRight = right.hasNext() ? right.next() : null;
+                    }
+                } else {
+                    result = nextRight.getValue();
+                    nextRight = right.hasNext() ? right.next() : null;
+                }
+                return result;
+            }
+        };
+    }
+}
@@ -1,15 +1,20 @@
 package me.bechberger.meta;
 
+import me.bechberger.meta.runtime.BytecodeHashes;
+import me.bechberger.meta.runtime.DecompilationCache;
 import me.bechberger.meta.runtime.Klass;
+import me.bechberger.meta.runtime.SimpleDecompilation;
 import org.jetbrains.annotations.Nullable;
-import org.jetbrains.java.decompiler.main.decompiler.ConsoleDecompiler;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 public class Decompilation {
 
@@ -25,210 +30,264 @@ public class Decompilation {
         }
     }
 
+    private static final int PREFETCH_CLASSES_PER_THREAD = 4;
+
+    private static final List<BiConsumer<Map<Klass, byte[]>, Map<Klass, String>>> javaSourceListeners =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Classes are not retried shortly after a timeout, so that a page that decompiles a class
+     * multiple times only waits once
+     */
+    private static final long RETRY_DELAY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * @param count    number of times that the decompilation exceeded its time budget
+     * @param lastTime {@link System#nanoTime()} of the last timeout
+     */
+    private record Timeouts(int count, long lastTime) {
+    }
+
+    private static final String OVER_BUDGET_HEADER = "// Decompilation exceeded its time budget ";
+
+    private static final Map<String, Timeouts> timeoutsPerHash = new ConcurrentHashMap<>();
+    private static volatile int maxTimeouts = 2;
+
+    /**
+     * Set after how many timeouts a bytecode is no longer decompiled but only disassembled
+     */
+    public static void setMaxTimeouts(int maxTimeouts) {
+        Decompilation.maxTimeouts = maxTimeouts;
+    }
+
+    /**
+     * Register a listener that is called with the bytecode and the resulting sources
+     * whenever classes are decompiled to Java, but not for sources that are taken from the cache
+     */
+    public static void addJavaSourceListener(BiConsumer<Map<Klass, byte[]>, Map<Klass, String>> listener) {
+        javaSourceListeners.add(listener);
+    }
+
+    /**
+     * Decompile the classes, the sources are cached in the {@link DecompilationCache}
+     * so that only classes whose bytecode has not been decompiled before are decompiled
+     * <p>
+     * Classes whose decompilation to Java exceeds the time budget (or exceeded it too often before)
+     * are disassembled instead, with a comment on top, these are not cached
+     */
     public static Map<Klass, String> decompileClasses(Map<Klass, byte[]> bytecodePerClass, DiffSourceMode mode) {
+        if (mode == DiffSourceMode.AI_JAVA) {
+            // cached per prompt and model by the AI decompilation, as the model can be changed
+            return decompileClassesToJavaWithAI(bytecodePerClass);
+        }
+        Map<Klass, String> result = new HashMap<>();
+        Map<Klass, String> hashes = new HashMap<>();
+        Map<Klass, byte[]> missing = new HashMap<>();
+        Set<Klass> overBudget = new HashSet<>();
+        bytecodePerClass.forEach((klass, bytecode) -> {
+            String hash = BytecodeHashes.hash(bytecode);
+            String source = DecompilationCache.get(hash, mode.param);
+            if (source != null) {
+                result.put(klass, source);
+            } else if (mode == DiffSourceMode.JAVA && !shouldRetry(hash)) {
+                overBudget.add(klass);
+            } else {
+                hashes.put(klass, hash);
+                missing.put(klass, bytecode);
+            }
+        });
+        if (!missing.isEmpty()) {
+            Map<Klass, String> decompiled = decompileClassesUncached(missing, mode);
+            decompiled.forEach((klass, source) -> DecompilationCache.put(hashes.get(klass), mode.param, source));
+            result.putAll(decompiled);
+            if (mode == DiffSourceMode.JAVA) {
+                missing.keySet().stream()
+                        .filter(k -> !decompiled.containsKey(k) && timeoutsPerHash.containsKey(hashes.get(k)))
+                        .forEach(overBudget::add);
+                javaSourceListeners.forEach(l -> l.accept(missing, decompiled));
+            }
+        }
+        for (Klass klass : overBudget) {
+            result.put(klass, disassembleOverBudgetClass(bytecodePerClass.get(klass)));
+        }
+        return result;
+    }
+
+    private static boolean shouldRetry(String hash) {
+        Timeouts timeouts = timeoutsPerHash.get(hash);
+        return timeouts == null
+                || (timeouts.count < maxTimeouts && System.nanoTime() - timeouts.lastTime > RETRY_DELAY_NANOS);
+    }
+
+    /**
+     * Whether the source is the disassembly that is shown instead of a class that exceeded its time budget
+     */
+    public static boolean isOverBudgetFallback(String source) {
+        return source.startsWith(OVER_BUDGET_HEADER);
+    }
+
+    private static String disassembleOverBudgetClass(byte[] bytecode) {
+        int count = timeoutsPerHash.get(BytecodeHashes.hash(bytecode)).count;
+        String header = OVER_BUDGET_HEADER + (count == 1 ? "once" : count + " times")
+                + (count >= maxTimeouts ? " and is not retried" : "")
+                + ", showing the disassembled bytecode instead\n";
+        try {
+            return header + BytecodeDisassembler.disassemble(bytecode, false);
+        } catch (IOException e) {
+            return header + "// Could not disassemble: " + e.getMessage() + "\n";
+        }
+    }
+
+    /**
+     * Decompiles the versions of a chunk of classes together, and therefore in parallel,
+     * when they are first needed, so that the rendering of the individual classes hits the cache
+     */
+    public static class Prefetch {
+        private final List<Klass> classes;
+        private final Function<Klass, List<byte[]>> versions;
+        private final DiffSourceMode mode;
+        private @Nullable Map<Klass, List<byte[]>> versionsPerClass = null;
+
+        private Prefetch(List<Klass> classes, Function<Klass, List<byte[]>> versions, DiffSourceMode mode) {
+            this.classes = classes;
+            this.versions = versions;
+            this.mode = mode;
+        }
+
+        /**
+         * Obtain the versions of the class, decompiling all versions of the chunk on the first call
+         */
+        public synchronized List<byte[]> getVersions(Klass klass) {
+            if (versionsPerClass == null) {
+                versionsPerClass = new HashMap<>();
+                for (Klass k : classes) {
+                    versionsPerClass.put(k, versions.apply(k));
+                }
+                // a call can only contain one version per class
+                for (int i = 0; ; i++) {
+                    Map<Klass, byte[]> layer = new HashMap<>();
+                    for (var entry : versionsPerClass.entrySet()) {
+                        if (i < entry.getValue().size() && entry.getValue().get(i) != null) {
+                            layer.put(entry.getKey(), entry.getValue().get(i));
+                        }
+                    }
+                    if (layer.isEmpty()) {
+                        break;
+                    }
+                    decompileClasses(layer, mode);
+                }
+            }
+            return versionsPerClass.getOrDefault(klass, List.of());
+        }
+    }
+
+    /**
+     * Split the classes into chunks that are decompiled together when the first class of the chunk is needed
+     *
+     * @param versions versions of the bytecode of a class that will be decompiled, might contain {@code null}
+     * @return prefetch per class
+     */
+    public static Map<Klass, Prefetch> prefetch(List<Klass> classes, Function<Klass, List<byte[]>> versions,
+                                                DiffSourceMode mode) {
+        int chunkSize = Math.max(1, SimpleDecompilation.getThreads() * PREFETCH_CLASSES_PER_THREAD);
+        Map<Klass, Prefetch> result = new HashMap<>();
+        for (int start = 0; start < classes.size(); start += chunkSize) {
+            List<Klass> chunk = classes.subList(start, Math.min(classes.size(), start + chunkSize));
+            Prefetch prefetch = new Prefetch(chunk, versions, mode);
+            chunk.forEach(k -> result.put(k, prefetch));
+        }
+        return result;
+    }
+
+    private static Map<Klass, String> decompileClassesUncached(Map<Klass, byte[]> bytecodePerClass, DiffSourceMode mode) {
         return switch (mode) {
             case JAVA -> decompileClassesToJava(bytecodePerClass);
             case VERBOSE_BYTECODE -> decompileClassesToVerboseBytecode(bytecodePerClass, false);
             case ULTRA_VERBOSE_BYTECODE -> decompileClassesToVerboseBytecode(bytecodePerClass, true);
+            case STRUCTURE -> decompileClassesToStructure(bytecodePerClass);
             case AI_JAVA -> decompileClassesToJavaWithAI(bytecodePerClass);
         };
     }
 
+    /**
+     * Decompiles the given classes to Java in memory, see {@link SimpleDecompilation},
+     * classes that exceed the time budget are missing and their timeouts are recorded,
+     * classes that were skipped because the batch budget ran out first are missing without a timeout
+     */
     public static Map<Klass, String> decompileClassesToJava(Map<Klass, byte[]> bytecodePerClass) {
-        Map<String, List<Klass>> classesPerSimpleName =
-                bytecodePerClass.keySet().stream().collect(Collectors.groupingBy(Klass::getSimpleName));
-        int maxIndex = classesPerSimpleName.values().stream().mapToInt(List::size).max().orElse(0);
-        Set<String> toProcess = new HashSet<>(classesPerSimpleName.keySet());
+        Map<String, byte[]> bytecodePerName = new HashMap<>();
+        bytecodePerClass.forEach((klass, bytecode) -> bytecodePerName.put(klass.name(), bytecode));
+        SimpleDecompilation.Result decompiled = SimpleDecompilation.decompile(bytecodePerName);
         Map<Klass, String> result = new HashMap<>();
-        for (int i = 0; i < maxIndex; i++) {
-            Map<Klass, byte[]> bytecodePerClassForPackage = new HashMap<>();
-            Set<String> removeFromProcess = new HashSet<>();
-            for (String className : toProcess) {
-                var classes = classesPerSimpleName.get(className);
-                if (i < classes.size()) {
-                    bytecodePerClassForPackage.put(classes.get(i), bytecodePerClass.get(classes.get(i)));
-                }
-                if (i >= classes.size() - 1) {
-                    removeFromProcess.add(className);
-                }
+        for (Klass klass : bytecodePerClass.keySet()) {
+            String source = decompiled.sources().get(klass.name());
+            if (source != null) {
+                result.put(klass, source);
+            } else if (decompiled.timedOut().contains(klass.name())) {
+                timeoutsPerHash.merge(BytecodeHashes.hash(bytecodePerClass.get(klass)), new Timeouts(1, System.nanoTime()),
+                        (old, t) -> new Timeouts(old.count + 1, t.lastTime));
+                System.err.println("Decompiling " + klass.getName() + " exceeded its time budget");
             }
-            result.putAll(decompileClassesWithoutClassNameDuplicates(bytecodePerClassForPackage));
-            toProcess.removeAll(removeFromProcess);
         }
         return result;
     }
 
     /**
-     * Decompiles the given classes to Java using the Fernflower decompiler and then improves the decompilation using the AI model {@value AI_MODEL}
+     * Decompiles the given classes to Java using the Fernflower decompiler and then improves the decompilation
+     * using the configured AI model, see {@link AiDecompilation}
      * <p/>
      * Might take some time as it runs locally
      * @param bytecodePerClass the classes to decompile
      * @return a map from the classes to their decompiled source code
      */
     public static Map<Klass, String> decompileClassesToJavaWithAI(Map<Klass, byte[]> bytecodePerClass) {
-        return improveDecompilationWithAI(decompileClassesToJava(bytecodePerClass));
+        return AiDecompilation.improve(decompileClasses(bytecodePerClass, DiffSourceMode.JAVA));
     }
 
-    public static final String AI_MODEL = "deepseek-r1:14b";
-    private static final String AI_PROMPT = """
-            please improve the following Java decompilation, only give me the decompiled code and give local variables proper names (only give fields and parameters different names if the names seem to be autogenerated), but keep them short, without explanations. Put the Java code in markdown code block:
-            """;
-
-    private static Map<Klass, String> improveDecompilationWithAI(Map<Klass, String> decompiledClasses) {
-        // essientially call `ollama run deepseek-r1:14b < input.txt > out.txt` for each klass and record the output
-        // then return the output
-        return decompiledClasses.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> {
-            try {
-                var process = new ProcessBuilder("ollama", "run", AI_MODEL)
-                        .redirectInput(ProcessBuilder.Redirect.PIPE)
-                        .redirectOutput(ProcessBuilder.Redirect.PIPE)
-                        .start();
-                process.getOutputStream().write((AI_PROMPT + e.getValue()).getBytes());
-                process.getOutputStream().close();
-                System.out.println("Running ollama for " + e.getKey().getName());
-                // read the lines, print them and return them
-                var in = new InputStreamReader(new BufferedInputStream(process.getInputStream()));
-                // read lines from the input stream
-                var lines = new ArrayList<String>();
-                var reader = new BufferedReader(in);
-                String line;
-                boolean hasJava = false;
-                while ((line = reader.readLine()) != null) {
-                    System.out.println(line);
-                    if (line.startsWith("```")) {
-                        hasJava = false;
-                    }
-                    if (hasJava) {
-                        lines.add(line);
-                    }
-                    if (line.startsWith("```java")) {
-                        hasJava = true;
-                    }
-                }
-                return String.join("\n", lines);
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
-            }
-        }));
+    /**
+     * Decompiles the class to Java and improves it with the AI model, passing the improved parts
+     * to the listener as soon as they are ready
+     *
+     * @return the improved source or {@code null} if the class cannot be decompiled
+     */
+    public static @Nullable String decompileClassToJavaWithAI(Klass klass, byte[] bytecode,
+                                                              AiDecompilation.PartListener listener) throws IOException {
+        String source = decompileClasses(Map.of(klass, bytecode), DiffSourceMode.JAVA).get(klass);
+        if (source == null) {
+            return null;
+        }
+        return AiDecompilation.improve(klass, source, listener);
     }
 
-    private static Map<Klass, String> decompileClassesWithoutClassNameDuplicates(
-            Map<Klass, byte[]> bytecodePerClass) {
-        var oldOut = System.out;
-        Path tmpDir = null;
-        try {
-            System.setOut(
-                    new java.io.PrintStream(
-                            new java.io.OutputStream() {
-                                @Override
-                                public void write(int b) {
-                                }
-                            }));
-            tmpDir = Files.createTempDirectory("classviewer");
-            Map<Klass, String> result = new HashMap<>();
-            List<Path> classPaths = new ArrayList<>();
-            for (Klass c : bytecodePerClass.keySet()) {
-                var packageName = c.getPackageName();
-                var path = packageName.isEmpty() ? tmpDir : tmpDir.resolve(packageName.replace(".", "/"));
-                var classPath = path.resolve(c.getSimpleName() + ".class");
-                Files.createDirectories(path);
-                Files.write(classPath, bytecodePerClass.get(c));
-                classPaths.add(classPath);
-            }
-            String[] addArgs = "-jrt=1 -rbr=0 -rsy=0".split(" ");
-            String[] args = new String[classPaths.size() + 1 + addArgs.length];
-            System.arraycopy(addArgs, 0, args, 0, addArgs.length);
-            for (int i = 0; i < classPaths.size(); i++) {
-                args[addArgs.length + i] = classPaths.get(i).toString();
-            }
-            args[args.length - 1] = tmpDir.toString();
-            ConsoleDecompiler.main(args);
-            for (Klass c : bytecodePerClass.keySet()) {
-                var path = tmpDir.resolve(c.getSimpleName() + ".java");
-                if (Files.exists(path)) {
-                    result.put(c, Files.readString(path));
-                }
+    /**
+     * Prints the normalized structure of the given classes, see {@link StructuralDisassembler}
+     */
+    public static Map<Klass, String> decompileClassesToStructure(Map<Klass, byte[]> bytecodePerClass) {
+        Map<Klass, String> result = new HashMap<>();
+        bytecodePerClass.forEach((klass, bytecode) -> {
+            try {
+                result.put(klass, StructuralDisassembler.disassemble(bytecode));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not disassemble " + klass.getName() + ": " + e.getMessage());
             }
-            return result;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            System.setOut(oldOut);
-            deleteFolder(tmpDir);
-        }
+        });
+        return result;
     }
 
+    /**
+     * Disassembles the given classes in-process, see {@link BytecodeDisassembler}
+     *
+     * @param ultraVerbose also print the constant pool and the attributes, like {@code javap -v}
+     */
     public static Map<Klass, String> decompileClassesToVerboseBytecode(Map<Klass, byte[]> bytecodePerClass, boolean ultraVerbose) {
-        Path tmpDir = null;
-        try {
-            tmpDir = Files.createTempDirectory("classviewer");
-            Map<Klass, String> result = new HashMap<>();
-            Map<String, Klass> classNameToClass = new HashMap<>();
-            int i = 0;
-            List<String> args = new ArrayList<>();
-            args.add("javap");
-            args.add("-cp");
-            args.add(".");
-            args.add("-p");
-            args.add("-c"); // show bytecode
-            if (ultraVerbose) {
-                args.add("-v");
-            }
-            // store class bytecode in temporary files
-            for (Map.Entry<Klass, byte[]> entry : bytecodePerClass.entrySet()) {
-                String synthClassName = "class" + i++;
-                Path classFile = tmpDir.resolve(synthClassName + ".class");
-                Files.write(classFile, entry.getValue());
-                args.add(synthClassName);
-                classNameToClass.put(entry.getKey().getName(), entry.getKey());
-            }
-            // run javap with the given arguments in the temporary directory and record the output
-            Process p = new ProcessBuilder(args).directory(tmpDir.toFile()).start();
-            String out = new String(p.getInputStream().readAllBytes());
-            // parse the output and store it in the result map
-            // ignore lines that start with "Warning: File "
-            // the output for each class starts with the line 'Compiled from "SynthName.java"'
-            var lines = out.lines().iterator();
-            var lastLine = "";
-            Pattern startPattern = Pattern.compile("(^|([a-z]+ )+)(class|interface|enum|record) [^()]+\\{");
-            if (ultraVerbose) {
-                startPattern = Pattern.compile("^Classfile .*" + tmpDir + "/class[0-9]+.class");
-            }
-            while (lines.hasNext()) {
-                var line = lastLine.isEmpty() ? lines.next() : lastLine;
-                if (line.startsWith("Warning: File ")) {
-                    continue;
-                }
-                if (startPattern.matcher(line).matches()) {
-                    if (ultraVerbose) {
-                        while ((line = lines.next()).startsWith(" "));
-                    }
-                    var matcher = Pattern.compile("(^|.* )(class|interface|enum|record) ([^ <]*).*").matcher(line);
-                    var className = "";
-                    if (matcher.find()) {
-                        className = matcher.group(3);
-                    } else {
-                        throw new RuntimeException("Could not parse class name from line: " + line);
-                    }
-                    var classOutput = new StringBuilder();
-                    classOutput.append(line).append("\n");
-                    classOutput.append(line).append("\n");
-                    while (lines.hasNext()) {
-                        line = lines.next();
-                        if (startPattern.matcher(line).matches()) {
-                            lastLine = line.trim();
-                            break;
-                        }
-                        classOutput.append(line).append("\n");
-                    }
-                    result.put(classNameToClass.get(className), classOutput.toString());
-                }
+        Map<Klass, String> result = new HashMap<>();
+        bytecodePerClass.forEach((klass, bytecode) -> {
+            try {
+                result.put(klass, BytecodeDisassembler.disassemble(bytecode, ultraVerbose));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Could not disassemble " + klass.getName() + ": " + e.getMessage());
             }
-            return result;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        } finally {
-            deleteFolder(tmpDir);
-        }
+        });
+        return result;
     }
 }
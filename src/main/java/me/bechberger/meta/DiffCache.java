@@ -0,0 +1,99 @@
+package me.bechberger.meta;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache for the unified diffs of single classes, shared by all pages
+ * <p>
+ * Keyed by the hashes of the old and new bytecode, the mode and the diff options, as many diffs
+ * (like repeated retransformations) have the same versions and the pages diff the same versions
+ * multiple times. The diffs are kept in memory up to the configured size, evicting the least
+ * recently used ones.
+ */
+public class DiffCache {
+
+    private static long maxSize = 16 * 1024 * 1024;
+
+    /**
+     * Access ordered, so that iteration starts with the least recently used entry
+     */
+    private static final LinkedHashMap<String, String> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long size = 0;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSizeBytes maximum size of the cache, in bytes
+     */
+    public static synchronized void configure(long maxSizeBytes) {
+        DiffCache.maxSize = maxSizeBytes;
+        evict();
+    }
+
+    /**
+     * @param oldHash  hash of the old bytecode, see {@link me.bechberger.meta.runtime.BytecodeHashes#hash(byte[])}
+     * @param newHash  hash of the new bytecode
+     * @param showAll  whether the diff contains the whole files as context
+     * @param collapse whether unchanged members are collapsed
+     */
+    public static String getKey(String oldHash, String newHash, DiffSourceMode mode, boolean showAll, boolean collapse) {
+        return oldHash + "-" + newHash + "-" + mode.param + (showAll ? "-all" : "") + (collapse ? "-collapsed" : "");
+    }
+
+    private static long getSize(String key, String diff) {
+        return key.length() + diff.length() * 2L;
+    }
+
+    /**
+     * @return the cached diff or {@code null} if it is not cached
+     */
+    public static synchronized @Nullable String get(String key) {
+        String diff = cache.get(key);
+        if (diff != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return diff;
+    }
+
+    public static synchronized void put(String key, String diff) {
+        String old = cache.put(key, diff);
+        if (old != null) {
+            size -= getSize(key, old);
+        }
+        size += getSize(key, diff);
+        evict();
+    }
+
+    private static synchronized void evict() {
+        Iterator<Map.Entry<String, String>> iterator = cache.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            var entry = iterator.next();
+            size -= getSize(entry.getKey(), entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    public static synchronized long getSize() {
+        return size;
+    }
+
+    public static synchronized int getEntryCount() {
+        return cache.size();
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+}
@@ -8,18 +8,21 @@ import java.util.function.Supplier;
 
 public enum DiffSourceMode {
     JAVA(".java", "java", """
-            <em>Decompiled bytecode using <a href="https://vineflower.org/">vineflower</a>, obtained
-             when ever this page is loaded. Might contain errors, please check with <code>?mode=javap</code> too.</em>""", "java"),
+            <em>Decompiled bytecode using <a href="https://vineflower.org/">vineflower</a>, cached
+             per bytecode. Might contain errors, please check with <code>?mode=javap</code> too.</em>""", "java"),
     VERBOSE_BYTECODE(".bytecode", "javap", """
-            <em>Decompiled bytecode using <code>javap</code></em>""", "javap"),
+            <em>Disassembled bytecode, similar to <code>javap -p -c</code></em>""", "javap"),
     ULTRA_VERBOSE_BYTECODE(".bytecode", "javap-verbose", """
-            <em>Decompiled bytecode using <code>javap -v</code></em>
+            <em>Disassembled bytecode with constant pool and attributes, similar to <code>javap -p -c -v</code></em>
             """, "javap-verbose"),
+    STRUCTURE(".bytecode", "structure", """
+            <em>Normalized class structure with resolved constants and labels instead of bytecode offsets,
+             diffs compare the members, instructions and attributes without decompiling</em>""", "structure"),
     AI_JAVA(".java", "java-ai", """
-            <em>Decompiled bytecode using <a href="https://vineflower.org/">vineflower</a> and then optimized using the locally running $MODEL with ollama, obtained
-             when ever this page is loaded. Might contain errors, please check with <code>?mode=javap</code> too.</em>""".replace("$MODEL", Decompilation.AI_MODEL),
-            "java-ai", "requires local ollama $MODEL model, is slow".replace("$MODEL", Decompilation.AI_MODEL),
-            () -> Runtime.getRuntime().exec("ollama").waitFor() == 0);
+            <em>Decompiled bytecode using <a href="https://vineflower.org/">vineflower</a> and then optimized using a locally running model
+             (by default $MODEL with ollama), cached per prompt and model. Might contain errors, please check with <code>?mode=javap</code> too.</em>""".replace("$MODEL", AiDecompilation.DEFAULT_MODEL),
+            "java-ai", "requires local ollama $MODEL model or ai-command, is slow".replace("$MODEL", AiDecompilation.DEFAULT_MODEL),
+            AiDecompilation::isAvailable);
     public final String suffix;
     public final String name;
     public final String description;
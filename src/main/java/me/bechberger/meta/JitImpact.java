@@ -0,0 +1,186 @@
+package me.bechberger.meta;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.MethodInfo;
+import me.bechberger.meta.runtime.BytecodeDiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Bytecode sizes of the methods before and after every recorded diff, to find instrumentations
+ * that prevent the JIT from inlining or compiling methods
+ * <p>
+ * HotSpot only inlines methods with at most {@code MaxInlineSize} bytes of bytecode
+ * ({@code FreqInlineSize} for hot call sites) and doesn't compile methods with more than
+ * {@code HugeMethodLimit} bytes (if {@code DontCompileHugeMethods} is set). A method crosses a threshold
+ * if it was within the limit before the diff and is above it afterward.
+ * Diffs are analyzed on a background thread whenever they are recorded.
+ */
+public class JitImpact {
+
+    /**
+     * Default of the develop flag {@code HugeMethodLimit}, which can't be queried in product builds
+     */
+    public static final int DEFAULT_HUGE_METHOD_LIMIT = 8000;
+
+    public enum Threshold {
+        MAX_INLINE_SIZE("MaxInlineSize"), FREQ_INLINE_SIZE("FreqInlineSize"), HUGE_METHOD_LIMIT("HugeMethodLimit");
+
+        public final String flag;
+
+        Threshold(String flag) {
+            this.flag = flag;
+        }
+    }
+
+    /**
+     * Size of a method with code that changed with a diff
+     *
+     * @param method  {@code name:descriptor}
+     * @param oldSize code length before the diff, -1 if the diff added the method
+     * @param crossed thresholds that the method crossed
+     */
+    public record MethodSize(BytecodeDiff diff, String method, int oldSize, int newSize, Set<Threshold> crossed) {
+
+        public int getDelta() {
+            return newSize - Math.max(0, oldSize);
+        }
+    }
+
+    private final Map<Threshold, Integer> thresholds;
+    /**
+     * Guarded by itself, appended to for every analyzed diff
+     */
+    private final List<MethodSize> methods = new ArrayList<>();
+    private final BlockingQueue<BytecodeDiff> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong analyzed = new AtomicLong();
+
+    /**
+     * @param thresholds values of the thresholds, missing thresholds use the values of the current JVM
+     */
+    public JitImpact(Map<Threshold, Integer> thresholds) {
+        Map<Threshold, Integer> values = new EnumMap<>(Threshold.class);
+        for (Threshold threshold : Threshold.values()) {
+            values.put(threshold, thresholds.containsKey(threshold) ? thresholds.get(threshold) : getJvmValue(threshold));
+        }
+        this.thresholds = Collections.unmodifiableMap(values);
+        Thread thread = new Thread(this::run, "meta-agent-jit-impact");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static int getJvmValue(Threshold threshold) {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return Integer.parseInt(bean.getVMOption(threshold.flag).getValue());
+        } catch (RuntimeException e) {
+            // not a HotSpot JVM or not a product flag
+            return switch (threshold) {
+                case MAX_INLINE_SIZE -> 35;
+                case FREQ_INLINE_SIZE -> 325;
+                case HUGE_METHOD_LIMIT -> DEFAULT_HUGE_METHOD_LIMIT;
+            };
+        }
+    }
+
+    /**
+     * Schedule the diff, called on the recording thread
+     */
+    public void onDiff(BytecodeDiff diff) {
+        queue.add(diff);
+    }
+
+    public Map<Threshold, Integer> getThresholds() {
+        return thresholds;
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public long getAnalyzedCount() {
+        return analyzed.get();
+    }
+
+    /**
+     * Methods whose size changed with a diff
+     *
+     * @param onlyCrossed only return the methods that crossed a threshold
+     */
+    public List<MethodSize> getMethods(Predicate<BytecodeDiff> filter, boolean onlyCrossed) {
+        synchronized (methods) {
+            return methods.stream()
+                    .filter(m -> !onlyCrossed || !m.crossed().isEmpty())
+                    .filter(m -> filter.test(m.diff()))
+                    .toList();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            BytecodeDiff diff;
+            try {
+                diff = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                List<MethodSize> sizes = analyze(diff);
+                synchronized (methods) {
+                    methods.addAll(sizes);
+                }
+            } catch (Exception e) {
+                System.err.println("Could not analyze the JIT impact of the diff of " + diff.klass().getName()
+                        + ": " + e.getMessage());
+            }
+            analyzed.incrementAndGet();
+        }
+    }
+
+    private List<MethodSize> analyze(BytecodeDiff diff) throws IOException {
+        Map<String, Integer> oldSizes = getCodeLengths(diff.old());
+        List<MethodSize> result = new ArrayList<>();
+        getCodeLengths(diff.current()).forEach((method, newSize) -> {
+            Integer oldSize = oldSizes.get(method);
+            if (oldSize != null && oldSize.equals(newSize)) {
+                return;
+            }
+            Set<Threshold> crossed = EnumSet.noneOf(Threshold.class);
+            if (oldSize != null) {
+                thresholds.forEach((threshold, value) -> {
+                    if (oldSize <= value && newSize > value) {
+                        crossed.add(threshold);
+                    }
+                });
+            }
+            result.add(new MethodSize(diff, method, oldSize == null ? -1 : oldSize, newSize, crossed));
+        });
+        return result;
+    }
+
+    /**
+     * Code length of every method with code, keyed by {@code name:descriptor}
+     */
+    static Map<String, Integer> getCodeLengths(byte[] bytecode) throws IOException {
+        ClassFile classFile = new ClassFile(new DataInputStream(new ByteArrayInputStream(bytecode)));
+        Map<String, Integer> lengths = new LinkedHashMap<>();
+        for (MethodInfo method : classFile.getMethods()) {
+            CodeAttribute code = method.getCodeAttribute();
+            if (code != null) {
+                lengths.put(method.getName() + ":" + method.getDescriptor(), code.getCodeLength());
+            }
+        }
+        return lengths;
+    }
+}
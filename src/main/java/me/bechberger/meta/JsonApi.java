@@ -0,0 +1,278 @@
+package me.bechberger.meta;
+
+import com.sun.net.httpserver.HttpExchange;
+import me.bechberger.meta.runtime.BytecodeDiff;
+import me.bechberger.meta.runtime.BytecodeHashes;
+import me.bechberger.meta.runtime.ClassFileStats;
+import me.bechberger.meta.runtime.InstrumentationHandler;
+import me.bechberger.meta.runtime.Klass;
+import me.bechberger.meta.runtime.PerClass;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Versioned JSON API for tools and dashboards
+ * <p>
+ * In contrast to the raw output of the other endpoints, it only decompiles classes
+ * if the decompiled sources are explicitly requested via the {@code fields} parameter.
+ */
+public class JsonApi {
+
+    public static final int VERSION = 1;
+    public static final String PREFIX = "/api/v" + VERSION;
+
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 10000;
+
+    /**
+     * Fields of a diff that are returned if the {@code fields} parameter is not given,
+     * bytecode and decompiled sources have to be requested explicitly
+     */
+    private static final Set<String> DEFAULT_DIFF_FIELDS =
+            Set.of("index", "instrumentator", "oldSize", "newSize", "sizeDelta", "oldHash", "newHash");
+
+    private static final Set<String> ALL_DIFF_FIELDS;
+
+    static {
+        Set<String> fields = new HashSet<>(DEFAULT_DIFF_FIELDS);
+        fields.addAll(List.of("old", "new", "oldSource", "newSource"));
+        ALL_DIFF_FIELDS = Collections.unmodifiableSet(fields);
+    }
+
+    private static int getPageSize(Map<String, String> params) {
+        if (!params.containsKey("limit")) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        return Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(params.get("limit"))));
+    }
+
+    private static Set<String> getDiffFields(Map<String, String> params) {
+        if (!params.containsKey("fields")) {
+            return DEFAULT_DIFF_FIELDS;
+        }
+        Set<String> fields = new HashSet<>(Arrays.asList(params.get("fields").split(",")));
+        for (String field : fields) {
+            if (!ALL_DIFF_FIELDS.contains(field)) {
+                throw new IllegalArgumentException("Unknown field " + field + ", supported: " + ALL_DIFF_FIELDS);
+            }
+        }
+        return fields;
+    }
+
+    static Response listInstrumentators(HttpExchange exchange) {
+        var pattern = MainLoop.getMatchPattern(exchange);
+        return Response.json(json -> {
+            json.beginObject().field("version", VERSION)
+                    .field("metaspaceUsed", MainLoop.getMetaspaceUsed())
+                    .field("metaspaceUsedAtStart", MainLoop.getMetaspaceUsedAtStart())
+                    .name("instrumentators").beginArray();
+            for (String name : InstrumentationHandler.getInstrumentatorNames(pattern)) {
+                var perInstrumentator = InstrumentationHandler.getInstrumentatorDiffs(name);
+                var diffs = perInstrumentator.getDiffs();
+                ClassFileStats growth = perInstrumentator.getGrowth();
+                json.beginObject()
+                        .field("name", name)
+                        .field("classes", diffs.size())
+                        .field("diffs", diffs.values().stream().mapToInt(List::size).sum())
+                        .name("growth").beginObject()
+                        .field("bytes", growth.bytes())
+                        .field("constantPoolEntries", growth.constantPoolEntries())
+                        .field("methods", growth.methods())
+                        .field("fields", growth.fields())
+                        .field("codeBytes", growth.codeBytes())
+                        .field("bootstrapMethods", growth.bootstrapMethods())
+                        .field("syntheticMembers", growth.syntheticMembers())
+                        .field("innerClasses", growth.innerClasses())
+                        .field("estimatedMetaspaceBytes", growth.estimateMetaspaceBytes())
+                        .field("unparsableDiffs", perInstrumentator.getUnparsableDiffs())
+                        .endObject()
+                        .endObject();
+            }
+            json.endArray().endObject();
+        });
+    }
+
+    static Response listClasses(HttpExchange exchange) {
+        Map<String, String> params = MainLoop.getURLParameters(exchange);
+        boolean all = Boolean.parseBoolean(params.getOrDefault("all", "false"));
+        var page = MainLoop.classIndex.getPage(all, MainLoop.getPatternParameter(exchange), params.get("after"),
+                getPageSize(params));
+        return Response.json(json -> {
+            json.beginObject().field("version", VERSION).name("classes").beginArray();
+            for (Klass klass : page.classes()) {
+                PerClass perClass = InstrumentationHandler.getClassDiffs().get(klass);
+                json.beginObject()
+                        .field("name", klass.getName())
+                        .field("transformed", perClass != null)
+                        .field("diffs", perClass == null ? 0 : perClass.getDiffs().size())
+                        .endObject();
+            }
+            json.endArray().field("next", page.nextCursor()).endObject();
+        });
+    }
+
+    /**
+     * Diff metadata per transformed class, the bytecode and decompiled sources are only
+     * included if requested via the {@code fields} parameter
+     */
+    static Response listDiffs(HttpExchange exchange) {
+        Map<String, String> params = MainLoop.getURLParameters(exchange);
+        Pattern instrPattern = params.containsKey("instr") ? MainLoop.getMatchPattern(params.get("instr")) : Pattern.compile(".*");
+        Set<String> fields = getDiffFields(params);
+        DiffSourceMode mode = MainLoop.getMode(exchange);
+        var page = MainLoop.classIndex.getPage(false, MainLoop.getPatternParameter(exchange), params.get("after"),
+                getPageSize(params));
+        Base64.Encoder base64 = Base64.getEncoder();
+        return Response.json(json -> {
+            json.beginObject().field("version", VERSION).name("classes").beginArray();
+            for (Klass klass : page.classes()) {
+                List<BytecodeDiff> diffs = InstrumentationHandler.getClassDiffs().get(klass).getDiffs();
+                json.beginObject()
+                        .field("name", klass.getName())
+                        .field("diffCount", diffs.size())
+                        .name("diffs").beginArray();
+                for (int i = 0; i < diffs.size(); i++) {
+                    BytecodeDiff diff = diffs.get(i);
+                    if (!instrPattern.matcher(diff.instrumentator().name()).matches()) {
+                        continue;
+                    }
+                    json.beginObject();
+                    if (fields.contains("index")) {
+                        json.field("index", i);
+                    }
+                    if (fields.contains("instrumentator")) {
+                        json.field("instrumentator", diff.instrumentator().name());
+                    }
+                    if (fields.contains("oldSize")) {
+                        json.field("oldSize", diff.old().length);
+                    }
+                    if (fields.contains("newSize")) {
+                        json.field("newSize", diff.current().length);
+                    }
+                    if (fields.contains("sizeDelta")) {
+                        json.field("sizeDelta", diff.current().length - diff.old().length);
+                    }
+                    if (fields.contains("oldHash")) {
+                        json.field("oldHash", BytecodeHashes.hash(diff.old()));
+                    }
+                    if (fields.contains("newHash")) {
+                        json.field("newHash", BytecodeHashes.hash(diff.current()));
+                    }
+                    if (fields.contains("old")) {
+                        json.field("old", base64.encodeToString(diff.old()));
+                    }
+                    if (fields.contains("new")) {
+                        json.field("new", base64.encodeToString(diff.current()));
+                    }
+                    if (fields.contains("oldSource")) {
+                        json.field("oldSource", Decompilation.decompileClasses(Map.of(klass, diff.old()), mode).get(klass));
+                    }
+                    if (fields.contains("newSource")) {
+                        json.field("newSource", Decompilation.decompileClasses(Map.of(klass, diff.current()), mode).get(klass));
+                    }
+                    json.endObject();
+                }
+                json.endArray().endObject();
+                json.flush();
+            }
+            json.endArray().field("next", page.nextCursor()).endObject();
+        });
+    }
+
+    static Response search(HttpExchange exchange) {
+        Map<String, String> params = MainLoop.getURLParameters(exchange);
+        String query = params.get("q");
+        if (query == null) {
+            throw new IllegalArgumentException("Parameter q is missing");
+        }
+        var hits = MainLoop.searchIndex.search(URLDecoder.decode(query, StandardCharsets.UTF_8), MainLoop.getMatchMode(params));
+        return Response.json(json -> {
+            json.beginObject().field("version", VERSION)
+                    .field("pending", MainLoop.searchIndex.getPendingCount())
+                    .name("classes").beginArray();
+            for (SearchIndex.Hit hit : hits) {
+                json.beginObject().field("name", hit.klass().getName()).name("bytecode").beginArray();
+                for (String token : hit.bytecodeTokens()) {
+                    json.value(token);
+                }
+                json.endArray().name("source").beginArray();
+                for (String token : hit.sourceTokens()) {
+                    json.value(token);
+                }
+                json.endArray().endObject();
+            }
+            json.endArray().endObject();
+        });
+    }
+
+    /**
+     * Thresholds and methods of the JIT impact analysis, see {@link JitImpact}
+     */
+    static Response getJitImpact(HttpExchange exchange) {
+        List<JitImpact.MethodSize> methods = MainLoop.getJitImpactMethods(MainLoop.getURLParameters(exchange));
+        return Response.json(json -> {
+            json.beginObject().field("version", VERSION)
+                    .field("analyzed", MainLoop.jitImpact.getAnalyzedCount())
+                    .field("pending", MainLoop.jitImpact.getPendingCount())
+                    .name("thresholds").beginObject();
+            for (var entry : MainLoop.jitImpact.getThresholds().entrySet()) {
+                json.field(entry.getKey().flag, entry.getValue());
+            }
+            json.endObject().name("methods").beginArray();
+            for (JitImpact.MethodSize method : methods) {
+                json.beginObject()
+                        .field("class", method.diff().klass().getName())
+                        .field("instrumentator", method.diff().instrumentator().name())
+                        .field("method", method.method())
+                        .field("oldSize", method.oldSize())
+                        .field("newSize", method.newSize())
+                        .name("crossed").beginArray();
+                for (JitImpact.Threshold threshold : method.crossed()) {
+                    json.value(threshold.flag);
+                }
+                json.endArray().endObject();
+            }
+            json.endArray().endObject();
+        });
+    }
+
+    /**
+     * The old or new bytecode of a single diff, either as a class file or as base64 encoded JSON
+     */
+    static Response getBytecode(HttpExchange exchange) {
+        Map<String, String> params = MainLoop.getURLParameters(exchange);
+        String className = params.get("class");
+        if (className == null) {
+            throw new IllegalArgumentException("Parameter class is missing");
+        }
+        Klass klass = new Klass(className.replace('.', '/'));
+        PerClass perClass = InstrumentationHandler.getClassDiffs().get(klass);
+        if (perClass == null) {
+            throw new IllegalArgumentException("Class " + className + " has not been transformed");
+        }
+        int index = Integer.parseInt(params.getOrDefault("index", "0"));
+        BytecodeDiff diff = perClass.getDiffs().get(index);
+        String version = params.getOrDefault("version", "new");
+        byte[] bytecode = switch (version) {
+            case "old" -> diff.old();
+            case "new" -> diff.current();
+            default -> throw new IllegalArgumentException("Unknown version " + version + ", use old or new");
+        };
+        if (params.getOrDefault("encoding", "binary").equals("base64")) {
+            return Response.json(json -> json.beginObject()
+                    .field("version", VERSION)
+                    .field("class", klass.getName())
+                    .field("index", index)
+                    .field("instrumentator", diff.instrumentator().name())
+                    .field("bytecodeVersion", version)
+                    .field("hash", BytecodeHashes.hash(bytecode))
+                    .field("bytecode", Base64.getEncoder().encodeToString(bytecode))
+                    .endObject());
+        }
+        return new Response("application/java-vm", out -> out.write(bytecode))
+                .withHeader("Content-Disposition", "attachment; filename=\"" + klass.getSimpleName() + ".class\"");
+    }
+}
@@ -27,10 +27,57 @@ public class Main {
             new Option("help", "Show this help", false, (o, a) -> o.help = true),
             new Option("server", "Start the server at the passed port (default 7071)", false, (o, a) -> o.server = true),
             new Option("disable-native", "Don't check for files created by the native wrapper agent", false, (o, a) -> o._native = false),
+            new Option("native-threads", "Number of threads adding the transformations of the native wrapper agent, default 2", true,
+                    (o, a) -> o.nativeThreads = Integer.parseInt(a)),
             new Option("port", "Port to start the server on, default 7071", true, (o, a) -> o.port = Integer.parseInt(a)),
             new Option("cb", "Callback class names, classes have to implement the InstrumentationCallback interface", true, (o, a) -> {
                 o.callbackClasses.add(a);
-            }));
+            }),
+            new Option("feed-buffer", "Number of recent transformations kept for the /events feed, default 1024", true,
+                    (o, a) -> o.feedBufferSize = Integer.parseInt(a)),
+            new Option("feed-client-queue", "Maximum number of pending events per /events client before events are dropped, default 256", true,
+                    (o, a) -> o.feedClientQueueSize = Integer.parseInt(a)),
+            new Option("job-threshold", "Pages with more classes to decompile or diff are rendered in the background, default 64", true,
+                    (o, a) -> o.renderJobThreshold = Integer.parseInt(a)),
+            new Option("job-ttl", "Seconds that pages rendered in the background are kept, default 600", true,
+                    (o, a) -> o.renderJobTtlSeconds = Integer.parseInt(a)),
+            new Option("job-cache-size", "Maximum size of the pages rendered in the background that are kept in MB, the oldest are dropped first, default 64", true,
+                    (o, a) -> o.renderJobCacheSize = Long.parseLong(a) * 1024 * 1024),
+            new Option("job-threads", "Number of threads rendering pages in the background, default: number of cores", true,
+                    (o, a) -> o.renderJobThreads = Integer.parseInt(a)),
+            new Option("decompile-cache-size", "Maximum size of the in-memory cache of decompiled classes in MB, default 64", true,
+                    (o, a) -> o.decompilationCacheSize = Long.parseLong(a) * 1024 * 1024),
+            new Option("decompile-cache-dir", "Directory to persist decompiled classes to, default: memory only", true,
+                    (o, a) -> o.decompilationCacheDir = a),
+            new Option("decompile-cache-dir-size", "Maximum size of the decompile-cache-dir in MB, least recently used files are deleted, default 512", true,
+                    (o, a) -> o.decompilationCacheDirSize = Long.parseLong(a) * 1024 * 1024),
+            new Option("diff-cache-size", "Maximum size of the cache of computed diffs in MB, default 16", true,
+                    (o, a) -> o.diffCacheSize = Long.parseLong(a) * 1024 * 1024),
+            new Option("decompile-threads", "Number of threads decompiling classes in parallel, default: number of cores", true,
+                    (o, a) -> o.decompilationThreads = Integer.parseInt(a)),
+            new Option("decompile-class-timeout", "Time budget in ms for decompiling a single class, slower classes are disassembled instead, default 30000", true,
+                    (o, a) -> o.decompilationClassTimeoutMs = Long.parseLong(a)),
+            new Option("decompile-batch-timeout", "Time budget in ms for decompiling the classes that are decompiled together, like a chunk of a page, default 120000", true,
+                    (o, a) -> o.decompilationBatchTimeoutMs = Long.parseLong(a)),
+            new Option("decompile-max-timeouts", "Number of timeouts after which a class is no longer decompiled, default 2", true,
+                    (o, a) -> o.decompilationMaxTimeouts = Integer.parseInt(a)),
+            new Option("prewarm", "Decompile the recorded diffs in the background while the CPU is idle", false, (o, a) -> o.prewarm = true),
+            new Option("prewarm-pattern", "Glob pattern of instrumentators whose diffs are prewarmed first, default: most recent first", true,
+                    (o, a) -> o.prewarmPattern = a),
+            new Option("prewarm-cpu-threshold", "Maximum system CPU load in percent to prewarm the next diff, default 50", true,
+                    (o, a) -> o.prewarmCpuThreshold = Integer.parseInt(a) / 100.0),
+            new Option("ai-command", "Command that improves decompiled code for mode=java-ai, reads the prompt from stdin, default: ollama run "
+                    + AiDecompilation.DEFAULT_MODEL, true, (o, a) -> o.aiCommand = a),
+            new Option("ai-concurrency", "Number of ai-command processes running in parallel, default 2", true,
+                    (o, a) -> o.aiConcurrency = Integer.parseInt(a)),
+            new Option("ai-timeout", "Time budget in ms for improving the classes of a page with ai-command, parts that are not done are shown unimproved, default 300000", true,
+                    (o, a) -> o.aiTimeoutMs = Long.parseLong(a)),
+            new Option("jit-max-inline-size", "MaxInlineSize used to find methods that are no longer inlined, default: value of the JVM", true,
+                    (o, a) -> o.jitMaxInlineSize = Integer.parseInt(a)),
+            new Option("jit-freq-inline-size", "FreqInlineSize used to find hot methods that are no longer inlined, default: value of the JVM", true,
+                    (o, a) -> o.jitFreqInlineSize = Integer.parseInt(a)),
+            new Option("jit-huge-method-limit", "HugeMethodLimit used to find methods that are no longer compiled, default "
+                    + JitImpact.DEFAULT_HUGE_METHOD_LIMIT, true, (o, a) -> o.jitHugeMethodLimit = Integer.parseInt(a)));
 
     private static String getHelp() {
         StringBuilder builder = new StringBuilder("Usage: java -javaagent:meta-agent.jar[=options] -jar your.jar\n");
@@ -85,7 +132,7 @@ public class Main {
             return;
         }
         if (options._native) {
-            NativeWrapperLoop.startThread();
+            NativeWrapperLoop.startThread(options.nativeThreads);
         }
         MainLoop.run(options, inst);
     }
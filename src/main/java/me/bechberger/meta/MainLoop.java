@@ -4,29 +4,38 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import me.bechberger.meta.NavigationUtils.Action;
+import me.bechberger.meta.runtime.BytecodeDiff;
+import me.bechberger.meta.runtime.ClassFileStats;
+import me.bechberger.meta.runtime.DecompilationCache;
 import me.bechberger.meta.runtime.InstrumentationHandler;
 import me.bechberger.meta.runtime.Klass;
 import me.bechberger.meta.runtime.Options;
-import org.jetbrains.annotations.NotNull;
+import me.bechberger.meta.runtime.PerInstrumentator;
+import me.bechberger.meta.runtime.SimpleDecompilation;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
-import java.nio.file.Files;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
-import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Takes care of the main loop of the agent, including the server
@@ -37,12 +46,56 @@ import java.util.stream.Stream;
 public class MainLoop {
 
     private static Instrumentation inst;
+    static ClassIndex classIndex;
+    private static TransformationFeed feed;
+    private static RenderJobs renderJobs;
+    static SearchIndex searchIndex;
+    static JitImpact jitImpact;
+    private static @Nullable Prewarmer prewarmer;
     private static int serverPort = 7071; // Track server port for navigation
+    private static long metaspaceUsedAtStart = -1;
 
     static void run(Options options, Instrumentation inst) {
         serverPort = options.port;
+        metaspaceUsedAtStart = getMetaspaceUsed();
         inst.addTransformer(new ClassTransformer(options.callbackClasses), true);
         MainLoop.inst = inst;
+        MainLoop.classIndex = new ClassIndex(inst);
+        DecompilationCache.configure(options.decompilationCacheSize,
+                options.decompilationCacheDir == null ? null : Path.of(options.decompilationCacheDir),
+                options.decompilationCacheDirSize);
+        SimpleDecompilation.setThreads(options.decompilationThreads);
+        DiffCache.configure(options.diffCacheSize);
+        SimpleDecompilation.setTimeouts(options.decompilationClassTimeoutMs, options.decompilationBatchTimeoutMs);
+        Decompilation.setMaxTimeouts(options.decompilationMaxTimeouts);
+        AiDecompilation.configure(options.aiCommand == null ? "ollama run " + AiDecompilation.DEFAULT_MODEL : options.aiCommand,
+                options.aiConcurrency);
+        AiDecompilation.setTimeout(options.aiTimeoutMs);
+        MainLoop.feed = new TransformationFeed(options.feedBufferSize, options.feedClientQueueSize);
+        InstrumentationHandler.addDiffListener(feed::publish);
+        MainLoop.searchIndex = new SearchIndex();
+        InstrumentationHandler.addDiffListener(searchIndex::onDiff);
+        searchIndex.addRecordedClasses();
+        Decompilation.addJavaSourceListener(searchIndex::addSources);
+        Map<JitImpact.Threshold, Integer> jitThresholds = new EnumMap<>(JitImpact.Threshold.class);
+        if (options.jitMaxInlineSize >= 0) {
+            jitThresholds.put(JitImpact.Threshold.MAX_INLINE_SIZE, options.jitMaxInlineSize);
+        }
+        if (options.jitFreqInlineSize >= 0) {
+            jitThresholds.put(JitImpact.Threshold.FREQ_INLINE_SIZE, options.jitFreqInlineSize);
+        }
+        if (options.jitHugeMethodLimit >= 0) {
+            jitThresholds.put(JitImpact.Threshold.HUGE_METHOD_LIMIT, options.jitHugeMethodLimit);
+        }
+        MainLoop.jitImpact = new JitImpact(jitThresholds);
+        InstrumentationHandler.addDiffListenerWithRecordedDiffs(jitImpact::onDiff);
+        MainLoop.renderJobs = new RenderJobs(options.renderJobThreshold, options.renderJobTtlSeconds, options.renderJobCacheSize,
+                options.renderJobThreads);
+        if (options.prewarm) {
+            MainLoop.prewarmer = new Prewarmer(options.prewarmPattern == null ? Pattern.compile("(?!)")
+                    : getMatchPattern(options.prewarmPattern), options.prewarmCpuThreshold);
+            InstrumentationHandler.addDiffListenerWithRecordedDiffs(prewarmer::onDiff);
+        }
         // transform all loaded classes
         triggerRetransformOfAllClasses(inst);
         // start server
@@ -69,8 +122,9 @@ public class MainLoop {
         }
     }
 
-    private record Response(String response, boolean html) {
-    }
+    private static final int DEFAULT_PAGE_SIZE = 500;
+    private static final int MAX_PAGE_SIZE = 10000;
+    private static final String NEXT_PAGE_HEADER = "X-Next-Page";
 
     private record Command(List<String> path, Function<HttpExchange, Response> handler, String description,
                            String example) {
@@ -114,6 +168,11 @@ public class MainLoop {
                             MainLoop::listClasses,
                             "List all classes matching the given glob pattern",
                             "/all/classes?pattern=java.util.*"),
+                    new Command(
+                            "/classes?pattern={pattern}&after={class}&limit={limit}",
+                            MainLoop::listClasses,
+                            "List the next page of classes after the given class, the URL of the next page is in the X-Next-Page header",
+                            "/all/classes?pattern=java.util.*&after=java.util.HashMap&limit=100"),
                     new Command(
                             "/diff/class?pattern={pattern}",
                             MainLoop::showClassDiffs,
@@ -143,7 +202,85 @@ public class MainLoop {
                             "/all/decompile?pattern={pattern}",
                             MainLoop::decompileClasses,
                             "Decompile all classes matching the given glob pattern",
-                            "/all/decompile?pattern=java.util.stream.*"));
+                            "/all/decompile?pattern=java.util.stream.*"),
+                    new Command(
+                            "/live?pattern={pattern}&instr={instr}",
+                            exchange -> TransformationFeed.livePage(exchange, getHTMLHeader(exchange)),
+                            "Show transformations of classes and instrumentators matching the glob patterns as they happen",
+                            "/live?pattern=java.util.*"),
+                    new Command(
+                            "/events?pattern={pattern}&instr={instr}&since={id}",
+                            exchange -> feed.events(exchange),
+                            "Server-sent events stream of the transformations, replays the buffered events after the given id",
+                            "/events?pattern=java.util.*"),
+                    new Command(
+                            "/search?q={query}&match={exact|prefix|substring}",
+                            MainLoop::search,
+                            "Find transformed classes that reference the given class, method (owner.name), field or string constant",
+                            "/search?q=org.mockito.internal.creation.bytebuddy.MockMethodDispatcher&match=prefix"),
+                    new Command(
+                            "/export?pattern={pattern}&instr={instr}",
+                            ClassExport::export,
+                            "Download the old and new class files of the diffs of the matching classes and instrumentators as a zip with a JSON manifest",
+                            "/export?pattern=java.util.*"),
+                    new Command(
+                            "/jobs",
+                            MainLoop::listJobs,
+                            "List the pages that are rendered in the background or have been rendered recently",
+                            "/jobs"),
+                    new Command(
+                            "/jobs?id={id}",
+                            MainLoop::showJob,
+                            "Show the progress or the result of a background render job",
+                            "/jobs?id=1"),
+                    new Command(
+                            "/metrics",
+                            MainLoop::showMetrics,
+                            "Show the sizes and hit rates of the decompilation and diff caches",
+                            "/metrics"),
+                    new Command(
+                            "/growth?pattern={pattern}",
+                            MainLoop::showGrowth,
+                            "Show the class file and estimated Metaspace growth caused by the instrumentators matching the given glob pattern",
+                            "/growth"),
+                    new Command(
+                            "/jit-impact?pattern={pattern}&instr={instr}&all={true|false}&sort={column}&order={asc|desc}",
+                            MainLoop::showJitImpact,
+                            "Show methods that crossed the MaxInlineSize, FreqInlineSize or HugeMethodLimit bytecode size " +
+                                    "with a diff, all=true shows all methods whose size changed, sort by instrumentator, " +
+                                    "class, method, old, new or delta",
+                            "/jit-impact?sort=delta"),
+                    new Command(
+                            JsonApi.PREFIX + "/instrumentators?pattern={pattern}",
+                            JsonApi::listInstrumentators,
+                            "JSON: instrumentators matching the given glob pattern with their class and diff counts and class growth",
+                            JsonApi.PREFIX + "/instrumentators?pattern=org.mockito.*"),
+                    new Command(
+                            JsonApi.PREFIX + "/classes?pattern={pattern}&all={true|false}&after={class}&limit={limit}",
+                            JsonApi::listClasses,
+                            "JSON: page of (transformed) classes, pass the returned next cursor as after",
+                            JsonApi.PREFIX + "/classes?pattern=java.util.*&all=true&limit=100"),
+                    new Command(
+                            JsonApi.PREFIX + "/diffs?pattern={pattern}&instr={instr}&fields={fields}&mode={mode}&after={class}&limit={limit}",
+                            JsonApi::listDiffs,
+                            "JSON: diff metadata per transformed class, fields can be index, instrumentator, oldSize, newSize, " +
+                                    "sizeDelta, oldHash, newHash, old and new (base64 bytecode), oldSource and newSource (decompiled)",
+                            JsonApi.PREFIX + "/diffs?pattern=java.util.*&fields=instrumentator,oldHash,newHash"),
+                    new Command(
+                            JsonApi.PREFIX + "/search?q={query}&match={exact|prefix|substring}",
+                            JsonApi::search,
+                            "JSON: transformed classes whose current bytecode or decompiled source contains a matching token",
+                            JsonApi.PREFIX + "/search?q=java.util.List&match=prefix"),
+                    new Command(
+                            JsonApi.PREFIX + "/jit-impact?pattern={pattern}&instr={instr}&all={true|false}",
+                            JsonApi::getJitImpact,
+                            "JSON: thresholds and the methods that crossed them with a diff (or all methods whose size changed)",
+                            JsonApi.PREFIX + "/jit-impact?instr=org.mockito.*"),
+                    new Command(
+                            JsonApi.PREFIX + "/bytecode?class={class}&index={index}&version={old|new}&encoding={binary|base64}",
+                            JsonApi::getBytecode,
+                            "Old or new bytecode of the diff with the given index of a transformed class",
+                            JsonApi.PREFIX + "/bytecode?class=java.util.List&version=new"));
 
     /**
      * Generate HTML header with navigation for a specific page
@@ -191,35 +328,19 @@ public class MainLoop {
                     server.createContext(actualPath, new MyHandler(command.handler));
                 }
             }
-            server.createContext("/file/", getFileHTTPHandler());
-            server.setExecutor(null); // creates a default executor
+            server.createContext("/file/", StaticResources.handler());
+            // handlers stream their output, so don't let a slow client block the dispatcher thread
+            server.setExecutor(Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "meta-agent-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
             server.start();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static final Map<String, String> suffixToMime = Map.of("css", "text/css", "js", "text/javascript");
-
-    @NotNull
-    private static HttpHandler getFileHTTPHandler() {
-        return exchange -> {
-            String name = exchange.getRequestURI().getPath().substring("/file/".length());
-            Path file = extractFile(name);
-            if (!Files.exists(file)) {
-                exchange.sendResponseHeaders(404, 0);
-                exchange.getResponseBody().close();
-                return;
-            }
-
-            var suffix = name.substring(name.lastIndexOf(".") + 1);
-            exchange.getResponseHeaders().add("Content-Type", suffixToMime.getOrDefault(suffix, "text/plain"));
-            exchange.sendResponseHeaders(200, Files.size(file));
-            Files.copy(file, exchange.getResponseBody());
-            exchange.getResponseBody().close();
-        };
-    }
-
     static class MyHandler implements HttpHandler {
         private final Function<HttpExchange, Response> handler;
 
@@ -241,16 +362,36 @@ public class MainLoop {
                 os.close();
                 return;
             }
-            if (response.html) {
-                t.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
-            } else {
-                t.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
+            t.getResponseHeaders().add("Content-Type", response.contentType());
+            response.headers().forEach(t.getResponseHeaders()::add);
+            boolean gzip = response.isCompressible() && StaticResources.acceptsGzip(t);
+            if (gzip) {
+                t.getResponseHeaders().add("Content-Encoding", "gzip");
+                t.getResponseHeaders().add("Vary", "Accept-Encoding");
+            }
+            // length 0 selects chunked transfer encoding, every flush sends the data written so far
+            t.sendResponseHeaders(200, 0);
+            OutputStream body = t.getResponseBody();
+            if (gzip) {
+                // sync flush, so that every section is sent as soon as it is written
+                body = new GZIPOutputStream(body, 1 << 16, true);
+            }
+            OutputStream os = new BufferedOutputStream(body, 1 << 16);
+            try {
+                response.writeTo(os);
+            } catch (IOException e) {
+                // client closed the connection
+            } catch (Throwable e) {
+                // the headers are already sent, so the best we can do is append the error
+                e.printStackTrace();
+                Response.writeError(os, e);
+            } finally {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    // client closed the connection
+                }
             }
-            byte[] responseBytes = response.response.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-            t.sendResponseHeaders(200, responseBytes.length);
-            OutputStream os = t.getResponseBody();
-            os.write(responseBytes);
-            os.close();
         }
     }
 
@@ -287,6 +428,7 @@ public class MainLoop {
                 .map(m -> "<code>?mode=" + m.param + "</code>")
                 .collect(Collectors.joining(", ")) + "</p>" +
                 "<p><strong>Raw output:</strong> Add <code>?output=raw</code> to get plain text output instead of HTML</p>" +
+                "<p><strong>Collapsed members:</strong> Diffs only show the changed fields and methods, add <code>?collapse=false</code> to diff the whole classes</p>" +
                 "</div></body></html>", true);
     }
 
@@ -307,15 +449,16 @@ public class MainLoop {
                 .collect(Collectors.joining(", "));
         String outputHelp = "?output=raw";
         return new Response(
-                "Commands of Meta-Agent\n" + commandHelp + "\nDecompile modes: " + modeHelp + "\nGet raw version of the output: " + outputHelp, false);
+                "Commands of Meta-Agent\n" + commandHelp + "\nDecompile modes: " + modeHelp + "\nGet raw version of the output: " + outputHelp
+                        + "\nDiff the whole classes instead of only the changed members: ?collapse=false", false);
     }
 
-    private static Pattern getMatchPattern(String pattern) {
+    static Pattern getMatchPattern(String pattern) {
         String regexp = pattern.replace(".", "\\.").replace("$", "\\$").replace("*", ".*");
         return Pattern.compile(regexp);
     }
 
-    private static Pattern getMatchPattern(HttpExchange exchange) {
+    static Pattern getMatchPattern(HttpExchange exchange) {
         Map<String, String> params = getURLParameters(exchange);
         if (params.containsKey("pattern")) {
             return getMatchPattern(params.get("pattern"));
@@ -323,11 +466,25 @@ public class MainLoop {
         return Pattern.compile(".*");
     }
 
+    /**
+     * The {@code pattern} parameter, matching everything if it is missing
+     */
+    static String getPatternParameter(HttpExchange exchange) {
+        return getURLParameters(exchange).getOrDefault("pattern", "*");
+    }
+
     private static List<String> getInstrumentatorNames(HttpExchange exchange) {
         var pattern = getMatchPattern(exchange);
         return InstrumentationHandler.getInstrumentatorNames(pattern);
     }
 
+    /**
+     * Only decompile and diff the changed members, unless {@code collapse=false} is passed
+     */
+    private static boolean collapseUnchangedMembers(HttpExchange exchange) {
+        return !"false".equals(getURLParameters(exchange).get("collapse"));
+    }
+
     private static boolean outputRaw(HttpExchange exchange) {
         return getURLParameters(exchange).containsKey("output") && getURLParameters(exchange).get("output").equals("raw");
     }
@@ -366,96 +523,180 @@ public class MainLoop {
                         + "</div></body></html>", true);
     }
 
-    @SuppressWarnings("unchecked")
     private static List<Klass> getClasses(HttpExchange exchange) {
         boolean all = exchange.getRequestURI().getPath().contains("/all/");
-        var pattern = getMatchPattern(exchange);
-        Predicate<Klass> classPredicate = c -> pattern.matcher(c.getName()).matches();
-        Comparator<Klass> classComparator = Comparator.comparing(Klass::getName);
-        var instrumented =
-                InstrumentationHandler.getClassDiffs().keySet().stream()
-                        .filter(classPredicate)
-                        .sorted(classComparator)
-                        .toList();
-        if (!all) {
-            return instrumented;
-        }
-        return (List<Klass>)
-                (Object)
-                        Stream.concat(
-                                        instrumented.stream(),
-                                        Arrays.stream(inst.getAllLoadedClasses())
-                                                .map(Klass::new)
-                                                .filter(classPredicate)
-                                                .sorted(classComparator))
-                                .toList();
+        return classIndex.getPage(all, getPatternParameter(exchange), null, Integer.MAX_VALUE).classes();
     }
 
-    private static Response listClasses(HttpExchange exchange) {
-        boolean raw = outputRaw(exchange);
-        List<Klass> classes = getClasses(exchange);
+    private static int getPageSize(Map<String, String> params) {
+        if (!params.containsKey("limit")) {
+            return DEFAULT_PAGE_SIZE;
+        }
+        try {
+            return Math.max(1, Math.min(MAX_PAGE_SIZE, Integer.parseInt(params.get("limit").trim())));
+        } catch (NumberFormatException e) {
+            return DEFAULT_PAGE_SIZE;
+        }
+    }
 
-        String listWithLinks =
-                classes.stream()
-                        .map(
-                                clazz -> {
-                                    boolean instrumented = InstrumentationHandler.isInstrumented(clazz);
-                                    if (instrumented) {
-                                        if (raw) {
-                                            return clazz.getName() + ", /full-diff/class?pattern="
-                                                    + clazz.getName();
-                                        }
-                                        return "<li><a href='/full-diff/class?pattern="
-                                                + clazz.getName()
-                                                + "'>"
-                                                + clazz.getName()
-                                                + "</a> <span class='text-muted'>→ View diffs</span></li>";
-                                    } else {
-                                        if (clazz.getName().startsWith("[")) {
-                                            return "";
-                                        }
-                                        if (clazz.klass() == null || inst.isModifiableClass(clazz.klass())) {
-                                            if (raw) {
-                                                return clazz.getName() + ", /all/decompile?pattern="
-                                                        + clazz.getName();
-                                            }
-                                            return "<li><a href='/all/decompile?pattern="
-                                                    + clazz.getName()
-                                                    + "'>"
-                                                    + clazz.getName()
-                                                    + "</a> <span class='text-muted'>→ Decompile only</span></li>";
-                                        }
-                                        if (raw) {
-                                            return clazz.getName();
-                                        }
-                                        return "<li>" + clazz.getName() + " <span class='text-muted'>(not modifiable)</span></li>";
-                                    }
-                                })
-                        .collect(Collectors.joining());
+    private static String formatClassListEntry(Klass clazz, boolean raw) {
+        if (InstrumentationHandler.isInstrumented(clazz)) {
+            if (raw) {
+                return clazz.getName() + ", /full-diff/class?pattern=" + clazz.getName();
+            }
+            return "<li><a href='/full-diff/class?pattern="
+                    + clazz.getName()
+                    + "'>"
+                    + clazz.getName()
+                    + "</a> <span class='text-muted'>→ View diffs</span></li>";
+        }
+        if (clazz.klass() == null || inst.isModifiableClass(clazz.klass())) {
+            if (raw) {
+                return clazz.getName() + ", /all/decompile?pattern=" + clazz.getName();
+            }
+            return "<li><a href='/all/decompile?pattern="
+                    + clazz.getName()
+                    + "'>"
+                    + clazz.getName()
+                    + "</a> <span class='text-muted'>→ Decompile only</span></li>";
+        }
         if (raw) {
-            return new Response(listWithLinks, false);
+            return clazz.getName();
         }
+        return "<li>" + clazz.getName() + " <span class='text-muted'>(not modifiable)</span></li>";
+    }
 
-        String breadcrumbs = NavigationUtils.getBreadcrumbs(exchange);
+    /**
+     * Lists the classes page by page, the cursor of the next page is passed via the {@code after} parameter
+     * and the URL of the next page is returned in the {@value #NEXT_PAGE_HEADER} header.
+     * <p>
+     * {@code output=rows} only returns the list items of the page, which is used to load
+     * more rows on the client.
+     */
+    private static Response listClasses(HttpExchange exchange) {
+        boolean raw = outputRaw(exchange);
         Map<String, String> params = getURLParameters(exchange);
-        List<Action> quickActions = NavigationUtils.buildQuickActions(exchange.getRequestURI().getPath(), params);
-        String contextBar = NavigationUtils.getContextBar(exchange, classes.size(), quickActions);
-
+        boolean rows = "rows".equals(params.get("output"));
         boolean all = exchange.getRequestURI().getPath().contains("/all/");
-        String title = all ? "All Classes" : "Transformed Classes";
+        var page = classIndex.getPage(all, getPatternParameter(exchange), params.get("after"), getPageSize(params));
 
-        return new Response(
-                getHTMLHeader(exchange)
-                        + breadcrumbs
-                        + contextBar
-                        + "<h1>" + title + "</h1>"
-                        + "<ul>"
-                        + listWithLinks
-                        + "</ul>"
-                        + "</div></body></html>", true);
+        String nextPage = null;
+        if (page.nextCursor() != null) {
+            Map<String, String> nextParams = new HashMap<>(params);
+            nextParams.put("after", page.nextCursor());
+            if (!raw) {
+                nextParams.put("output", "rows");
+            }
+            nextPage = combineURL(exchange, nextParams);
+        }
+
+        String list = page.classes().stream()
+                .map(c -> formatClassListEntry(c, raw))
+                .collect(Collectors.joining(raw ? "\n" : ""));
+        Response response;
+        if (raw) {
+            response = new Response(list + (nextPage == null ? "" : "\n##### next " + nextPage), false);
+        } else if (rows) {
+            response = new Response(list, true);
+        } else {
+            String breadcrumbs = NavigationUtils.getBreadcrumbs(exchange);
+            List<Action> quickActions = NavigationUtils.buildQuickActions(exchange.getRequestURI().getPath(), params);
+            String contextBar = NavigationUtils.getContextBar(exchange, page.classes().size(), quickActions);
+
+            String title = all ? "All Classes" : "Transformed Classes";
+            String loadMore = "";
+            if (nextPage != null) {
+                loadMore = """
+                        <button id='load-more' data-next='NEXT'>Load more</button>
+                        <script>
+                        (function() {
+                            var button = document.getElementById('load-more');
+                            var loading = false;
+                            async function loadMore() {
+                                if (loading || !button.dataset.next) {
+                                    return;
+                                }
+                                loading = true;
+                                var response = await fetch(button.dataset.next);
+                                document.getElementById('class-list').insertAdjacentHTML('beforeend', await response.text());
+                                var next = response.headers.get('HEADER');
+                                if (next) {
+                                    button.dataset.next = next;
+                                } else {
+                                    button.remove();
+                                }
+                                loading = false;
+                            }
+                            button.onclick = loadMore;
+                            new IntersectionObserver(function(entries) {
+                                if (entries[0].isIntersecting) {
+                                    loadMore();
+                                }
+                            }).observe(button);
+                        })();
+                        </script>
+                        """
+                        .replace("HEADER", NEXT_PAGE_HEADER)
+                        .replace("NEXT", NavigationUtils.escapeHtml(nextPage));
+            }
+            response = new Response(
+                    getHTMLHeader(exchange)
+                            + breadcrumbs
+                            + contextBar
+                            + "<h1>" + title + "</h1>"
+                            + "<form method='get'><input name='pattern' placeholder='Filter, e.g. java.util.*' value='"
+                            + NavigationUtils.escapeHtml(params.getOrDefault("pattern", "")) + "'/></form>"
+                            + "<ul id='class-list'>"
+                            + list
+                            + "</ul>"
+                            + loadMore
+                            + "</div></body></html>", true);
+        }
+        if (nextPage != null) {
+            response = response.withHeader(NEXT_PAGE_HEADER, nextPage);
+        }
+        return response;
+    }
+
+    static SearchIndex.MatchMode getMatchMode(Map<String, String> params) {
+        return SearchIndex.MatchMode.valueOf(params.getOrDefault("match", "prefix").toUpperCase());
+    }
+
+    private static Response search(HttpExchange exchange) {
+        Map<String, String> params = getURLParameters(exchange);
+        String query = URLDecoder.decode(params.getOrDefault("q", ""), StandardCharsets.UTF_8);
+        SearchIndex.MatchMode match = getMatchMode(params);
+        List<SearchIndex.Hit> hits = query.isEmpty() ? List.of() : searchIndex.search(query, match);
+        if (outputRaw(exchange)) {
+            return new Response(hits.stream()
+                    .map(h -> h.klass().getName() + ", " + String.join(" ", h.bytecodeTokens())
+                            + (h.sourceTokens().isEmpty() ? "" : ", source: " + String.join(" ", h.sourceTokens())))
+                    .collect(Collectors.joining("\n")), false);
+        }
+        String options = Stream.of(SearchIndex.MatchMode.values())
+                .map(m -> "<option value='" + m.name().toLowerCase() + "'" + (m == match ? " selected" : "") + ">"
+                        + m.name().toLowerCase() + "</option>")
+                .collect(Collectors.joining());
+        return new Response(getHTMLHeader(exchange)
+                + NavigationUtils.getBreadcrumbs(exchange)
+                + "<h1>Search</h1>"
+                + "<form method='get'><input name='q' size='80' placeholder='Class, owner.method, owner.field or string' value='"
+                + NavigationUtils.escapeHtml(query) + "'/> <select name='match'>" + options + "</select></form>"
+                + "<p class='text-muted'>" + searchIndex.getIndexedCount() + " classes indexed, "
+                + searchIndex.getPendingCount() + " pending</p>"
+                + (query.isEmpty() ? "" : "<p><strong>" + hits.size() + "</strong> matching classes</p>")
+                + "<ul>"
+                + hits.stream().map(h -> "<li><a href='/full-diff/class?pattern=" + h.klass().getName() + "'>"
+                        + h.klass().getName() + "</a> <span class='text-muted'>"
+                        + NavigationUtils.escapeHtml(String.join(", ", h.bytecodeTokens()))
+                        + (h.sourceTokens().isEmpty() ? "" : " (source: "
+                        + NavigationUtils.escapeHtml(String.join(", ", h.sourceTokens())) + ")")
+                        + "</span></li>")
+                .collect(Collectors.joining())
+                + "</ul></div></body></html>", true);
     }
 
-    private static Map<String, String> getURLParameters(HttpExchange exchange) {
+    static Map<String, String> getURLParameters(HttpExchange exchange) {
         String query = exchange.getRequestURI().getQuery();
         if (query == null) {
             return Map.of();
@@ -465,15 +706,26 @@ public class MainLoop {
                 .collect(Collectors.toMap(a -> a[0], a -> a[1]));
     }
 
+    /**
+     * URL of the current page with the passed (decoded) parameters, which are URL-encoded
+     */
     private static String combineURL(HttpExchange exchange, Map<String, String> parameters) {
         String url = exchange.getRequestURI().toString();
         String query = parameters.entrySet().stream().sorted(
                 Comparator.comparing((Entry<String, String> e) -> e.getKey().equals("mode"))
                         .thenComparing(e -> e.getKey().equals("output"))
-        ).map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining("&"));
+        ).map(e -> encodeURLComponent(e.getKey()) + "=" + encodeURLComponent(e.getValue()))
+                .collect(Collectors.joining("&"));
         return url.split("\\?")[0] + "?" + query;
     }
 
+    /**
+     * Percent-encode a query parameter, with {@code %20} for spaces, as the parameters are not decoded as forms
+     */
+    private static String encodeURLComponent(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
     private static String getDecompiledHtmlHeader(HttpExchange exchange, DiffSourceMode mode, int classCount) {
         String breadcrumbs = NavigationUtils.getBreadcrumbs(exchange);
         Map<String, String> params = getURLParameters(exchange);
@@ -512,59 +764,359 @@ public class MainLoop {
 
     private static Response decompileClasses(HttpExchange exchange) {
         boolean raw = outputRaw(exchange);
-        List<Klass> classes = getClasses(exchange);
         DiffSourceMode mode = getMode(exchange);
-        Map<Klass, byte[]> bytecodes =
-                classes.stream()
+        List<Klass> classes =
+                getClasses(exchange).stream()
                         .filter(k -> k.klass() == null || inst.isModifiableClass(k.klass()))
                         .distinct()
-                        .collect(
-                                Collectors.toMap(
-                                        c -> c,
-                                        c -> {
-                                            if (InstrumentationHandler.isInstrumented(c)) {
-                                                return InstrumentationHandler.getCurrentBytecode(c);
-                                            }
-                                            return getBytecodeOfUnmodified(c);
-                                        }));
-        System.out.println("Decompiling " + bytecodes.size() + " classes");
-        Map<Klass, String> decompiledClasses = Decompilation.decompileClasses(bytecodes, mode);
-        StringBuilder sb = new StringBuilder();
-        if (!raw) {
-            sb.append(getDecompiledHtmlHeader(exchange, mode, decompiledClasses.size()));
+                        .toList();
+        System.out.println("Decompiling " + classes.size() + " classes");
+        // the AI improves the classes one by one while the page is streamed, only the decompilation is prefetched
+        var prefetch = Decompilation.prefetch(classes, c -> Collections.singletonList(InstrumentationHandler.isInstrumented(c)
+                ? InstrumentationHandler.getCurrentBytecode(c)
+                : getBytecodeOfUnmodified(c)), mode == DiffSourceMode.AI_JAVA ? DiffSourceMode.JAVA : mode);
+        List<Callable<String>> sections =
+                classes.stream()
+                        .<Callable<String>>map(c -> mode == DiffSourceMode.AI_JAVA ? streamImprovedClass(c, prefetch.get(c), raw) : () -> {
+                            byte[] bytecode = prefetch.get(c).getVersions(c).get(0);
+                            if (bytecode == null) {
+                                return "";
+                            }
+                            String code = Decompilation.decompileClasses(Map.of(c, bytecode), mode).get(c);
+                            if (code == null) {
+                                return "";
+                            }
+                            return formatDecompiledClass(c, code, raw);
+                        })
+                        .toList();
+        if (raw) {
+            return Response.sections(false, "", sections, "");
         }
-        for (Klass c : classes) {
-            String code = decompiledClasses.get(c);
-            if (code == null) {
-                continue;
-            }
-            if (raw) {
-                sb.append("##### ").append(c.getName()).append("\n");
-                sb.append(code).append("\n");
-                continue;
-            }
-            sb.append("<h2>").append(c.getName()).append("</h2>");
-            if (InstrumentationHandler.isInstrumented(c)) {
-                sb.append(
-                        "<p><a href='LINK'>View bytecode diffs for this class</a></p>"
-                                .replace("LINK", "/full-diff/class?pattern=" + c.getName()));
-            }
-            sb.append("<pre><code class='language-java'>");
-            sb.append(makeCodeHtmlFriendly(code));
-            sb.append("</code></pre>");
+        return renderSections(exchange, classes.size(), getDecompiledHtmlHeader(exchange, mode, classes.size()), sections,
+                "<script>hljs.highlightAll();</script></div></body></html>");
+    }
+
+    /**
+     * Render the sections of an HTML page, directly if the page is cheap or {@code sync=true} is passed,
+     * as a background job otherwise
+     * <p>
+     * @param cost number of classes that have to be decompiled and diffed
+     */
+    private static Response renderSections(HttpExchange exchange, int cost, String header, List<Callable<String>> sections,
+                                           String footer) {
+        Map<String, String> params = new TreeMap<>(getURLParameters(exchange));
+        boolean sync = "true".equals(params.remove("sync"));
+        String key = exchange.getRequestURI().getPath() + "?" + params.entrySet().stream()
+                .map(e -> e.getKey() + "=" + e.getValue())
+                .collect(Collectors.joining("&"));
+        // new diffs change the rendered pages, so they make finished jobs outdated
+        long generation = InstrumentationHandler.getDiffCount();
+        RenderJobs.Job job = renderJobs.getByKey(key, generation);
+        if (job == null && (sync || !renderJobs.isExpensive(cost))) {
+            return Response.sections(true, header, sections, footer);
+        }
+        if (job == null) {
+            job = renderJobs.submit(key, generation, exchange.getRequestURI().toString(), header, sections, footer);
+        }
+        return formatJob(exchange, job);
+    }
+
+    private static Response formatJob(HttpExchange exchange, RenderJobs.Job job) {
+        byte[] result = job.result();
+        if (job.state() == RenderJobs.State.DONE && result != null) {
+            return new Response(Response.HTML, out -> out.write(result));
+        }
+        StringBuilder sb = new StringBuilder(getHTMLHeader(exchange));
+        sb.append(NavigationUtils.getBreadcrumbs(exchange));
+        if (job.state() == RenderJobs.State.FAILED) {
+            sb.append("<h1>Rendering failed</h1>")
+                    .append("<p>").append(NavigationUtils.escapeHtml(String.valueOf(job.error()))).append("</p>")
+                    .append("<p><a href='").append(job.url()).append("'>Retry</a></p>");
+        } else {
+            // reload until the job is finished, the page is then served from the job result
+            sb.append("<meta http-equiv='refresh' content='1'>")
+                    .append("<h1>Rendering in the background</h1>")
+                    .append("<p><progress value='").append(job.done()).append("' max='").append(job.total())
+                    .append("'></progress> ").append(job.done()).append(" of ").append(job.total())
+                    .append(" sections after ").append(job.runtimeMs() / 1000).append("s</p>")
+                    .append("<p>The page reloads automatically, you can also come back later or share the ")
+                    .append("<a href='/jobs?id=").append(job.id()).append("'>job link</a>.</p>");
+        }
+        return new Response(sb.append("</div></body></html>").toString(), true);
+    }
+
+    private static Response showJob(HttpExchange exchange) {
+        String id = getURLParameters(exchange).get("id");
+        if (id == null) {
+            return listJobs(exchange);
+        }
+        RenderJobs.Job job = renderJobs.get(id);
+        if (job == null) {
+            throw new IllegalArgumentException("Unknown or expired job " + id);
+        }
+        return formatJob(exchange, job);
+    }
+
+    private static Response listJobs(HttpExchange exchange) {
+        if (getURLParameters(exchange).containsKey("id")) {
+            return showJob(exchange);
+        }
+        List<RenderJobs.Job> jobs = renderJobs.getJobs();
+        if (outputRaw(exchange)) {
+            return new Response(jobs.stream()
+                    .map(j -> j.id() + ", " + j.state() + ", " + j.done() + "/" + j.total() + ", " + j.url())
+                    .collect(Collectors.joining("\n")), false);
+        }
+        String prewarmStatus = prewarmer == null ? ""
+                : "<p>Prewarming: <strong>" + prewarmer.getProcessedCount() + "</strong> diffs done, <strong>"
+                + prewarmer.getPendingCount() + "</strong> pending</p>";
+        return new Response(getHTMLHeader(exchange)
+                + NavigationUtils.getBreadcrumbs(exchange)
+                + "<h1>Render Jobs</h1>"
+                + prewarmStatus
+                + "<table><tr><th>Job</th><th>Page</th><th>State</th><th>Progress</th><th>Time</th></tr>"
+                + jobs.stream().map(j -> "<tr><td><a href='/jobs?id=" + j.id() + "'>" + j.id() + "</a></td>"
+                        + "<td><a href='" + j.url() + "'>" + NavigationUtils.escapeHtml(j.url()) + "</a></td>"
+                        + "<td>" + j.state().name().toLowerCase() + "</td>"
+                        + "<td>" + j.done() + " / " + j.total() + "</td>"
+                        + "<td>" + j.runtimeMs() / 1000 + "s</td></tr>")
+                .collect(Collectors.joining())
+                + "</table></div></body></html>", true);
+    }
+
+    private static Response showMetrics(HttpExchange exchange) {
+        Map<String, String> metrics = new LinkedHashMap<>();
+        metrics.put("Decompilation cache entries", String.valueOf(DecompilationCache.getEntryCount()));
+        metrics.put("Decompilation cache size", formatMegabytes(DecompilationCache.getSize()));
+        metrics.put("Decompilation cache directory size", formatMegabytes(DecompilationCache.getDirectorySize()));
+        metrics.put("Decompilation cache hits", String.valueOf(DecompilationCache.getHits()));
+        metrics.put("Decompilation cache disk hits", String.valueOf(DecompilationCache.getDiskHits()));
+        metrics.put("Decompilation cache misses", String.valueOf(DecompilationCache.getMisses()));
+        metrics.put("Decompilation cache hit rate", formatHitRate(
+                DecompilationCache.getHits() + DecompilationCache.getDiskHits(), DecompilationCache.getMisses()));
+        metrics.put("Diff cache entries", String.valueOf(DiffCache.getEntryCount()));
+        metrics.put("Diff cache size", formatMegabytes(DiffCache.getSize()));
+        metrics.put("Diff cache hits", String.valueOf(DiffCache.getHits()));
+        metrics.put("Diff cache misses", String.valueOf(DiffCache.getMisses()));
+        metrics.put("Diff cache hit rate", formatHitRate(DiffCache.getHits(), DiffCache.getMisses()));
+        metrics.put("Render job results size", formatMegabytes(renderJobs.getResultSize()));
+        long nativeDropped = NativeWrapperLoop.getDroppedCount();
+        if (nativeDropped > 0) {
+            metrics.put("Transformations dropped by the native agent", String.valueOf(nativeDropped));
+        }
+        if (outputRaw(exchange)) {
+            return new Response(metrics.entrySet().stream()
+                    .map(e -> e.getKey() + ": " + e.getValue())
+                    .collect(Collectors.joining("\n")), false);
+        }
+        return new Response(getHTMLHeader(exchange)
+                + NavigationUtils.getBreadcrumbs(exchange)
+                + "<h1>Metrics</h1>"
+                + "<table><tr><th>Metric</th><th>Value</th></tr>"
+                + metrics.entrySet().stream()
+                .map(e -> "<tr><td>" + e.getKey() + "</td><td>" + e.getValue() + "</td></tr>")
+                .collect(Collectors.joining())
+                + "</table></div></body></html>", true);
+    }
+
+    /**
+     * Used Metaspace in bytes, -1 if the JVM has no Metaspace memory pool
+     */
+    static long getMetaspaceUsed() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getName().equals("Metaspace"))
+                .mapToLong(pool -> pool.getUsage().getUsed())
+                .findFirst().orElse(-1);
+    }
+
+    static long getMetaspaceUsedAtStart() {
+        return metaspaceUsedAtStart;
+    }
+
+    private static Response showGrowth(HttpExchange exchange) {
+        List<PerInstrumentator> instrumentators = getInstrumentatorNames(exchange).stream()
+                .map(InstrumentationHandler::getInstrumentatorDiffs)
+                .sorted(Comparator.comparingLong((PerInstrumentator p) -> p.getGrowth().estimateMetaspaceBytes()).reversed())
+                .toList();
+        long estimated = instrumentators.stream().mapToLong(p -> p.getGrowth().estimateMetaspaceBytes()).sum();
+        long used = getMetaspaceUsed();
+        Map<String, String> metaspace = new LinkedHashMap<>();
+        metaspace.put("Estimated Metaspace growth of the listed instrumentators", formatKilobytes(estimated));
+        if (used >= 0) {
+            metaspace.put("Metaspace used", formatKilobytes(used));
+            metaspace.put("Metaspace growth since the agent started (includes all loaded classes)",
+                    formatKilobytes(used - metaspaceUsedAtStart));
+        }
+        if (outputRaw(exchange)) {
+            return new Response(metaspace.entrySet().stream()
+                    .map(e -> "# " + e.getKey() + ": " + e.getValue())
+                    .collect(Collectors.joining("\n")) + "\n"
+                    + "instrumentator\tclasses\tbytes\tconstantPoolEntries\tmethods\tfields\tcodeBytes\t"
+                    + "bootstrapMethods\tsyntheticMembers\tinnerClasses\testimatedMetaspaceBytes\n"
+                    + instrumentators.stream().map(p -> {
+                        ClassFileStats g = p.getGrowth();
+                        return p.getInstrumentator().name() + "\t" + p.getDiffs().size() + "\t" + g.bytes() + "\t"
+                                + g.constantPoolEntries() + "\t" + g.methods() + "\t" + g.fields() + "\t"
+                                + g.codeBytes() + "\t" + g.bootstrapMethods() + "\t" + g.syntheticMembers() + "\t"
+                                + g.innerClasses() + "\t" + g.estimateMetaspaceBytes();
+                    }).collect(Collectors.joining("\n")), false);
+        }
+        return new Response(getHTMLHeader(exchange)
+                + NavigationUtils.getBreadcrumbs(exchange)
+                + "<h1>Class growth</h1>"
+                + "<p>Growth of the current versions of the transformed classes, compared to the versions "
+                + "before each instrumentator</p>"
+                + "<table><tr><th>Metric</th><th>Value</th></tr>"
+                + metaspace.entrySet().stream()
+                .map(e -> "<tr><td>" + e.getKey() + "</td><td>" + e.getValue() + "</td></tr>")
+                .collect(Collectors.joining())
+                + "</table>"
+                + "<table><tr><th>Instrumentator</th><th>Classes</th><th>Class file bytes</th>"
+                + "<th>Constant pool entries</th><th>Methods</th><th>Fields</th><th>Code bytes</th>"
+                + "<th>Bootstrap methods</th><th>Synthetic members</th><th>Inner classes</th>"
+                + "<th>Estimated Metaspace</th></tr>"
+                + instrumentators.stream().map(p -> {
+                    ClassFileStats g = p.getGrowth();
+                    String name = p.getInstrumentator().name();
+                    return "<tr><td><a href='/diff/instrumentator?pattern=" + name + "'>" + name + "</a></td><td>"
+                            + p.getDiffs().size() + "</td><td>" + g.bytes() + "</td><td>" + g.constantPoolEntries()
+                            + "</td><td>" + g.methods() + "</td><td>" + g.fields() + "</td><td>" + g.codeBytes()
+                            + "</td><td>" + g.bootstrapMethods() + "</td><td>" + g.syntheticMembers() + "</td><td>"
+                            + g.innerClasses() + "</td><td>" + g.estimateMetaspaceBytes() + " B</td></tr>";
+                })
+                .collect(Collectors.joining())
+                + "</table></div></body></html>", true);
+    }
+
+    private static final Map<String, Comparator<JitImpact.MethodSize>> JIT_IMPACT_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        JIT_IMPACT_COLUMNS.put("instrumentator", Comparator.comparing(m -> m.diff().instrumentator().name()));
+        JIT_IMPACT_COLUMNS.put("class", Comparator.comparing(m -> m.diff().klass().getName()));
+        JIT_IMPACT_COLUMNS.put("method", Comparator.comparing(JitImpact.MethodSize::method));
+        JIT_IMPACT_COLUMNS.put("old", Comparator.comparingInt(JitImpact.MethodSize::oldSize));
+        JIT_IMPACT_COLUMNS.put("new", Comparator.comparingInt(JitImpact.MethodSize::newSize));
+        JIT_IMPACT_COLUMNS.put("delta", Comparator.comparingInt(JitImpact.MethodSize::getDelta));
+    }
+
+    static List<JitImpact.MethodSize> getJitImpactMethods(Map<String, String> params) {
+        Pattern classPattern = getMatchPattern(params.getOrDefault("pattern", "*"));
+        Pattern instrPattern = getMatchPattern(params.getOrDefault("instr", "*"));
+        return jitImpact.getMethods(diff -> classPattern.matcher(diff.klass().getName()).matches()
+                        && instrPattern.matcher(diff.instrumentator().name()).matches(),
+                !Boolean.parseBoolean(params.getOrDefault("all", "false")));
+    }
+
+    private static Response showJitImpact(HttpExchange exchange) {
+        Map<String, String> params = getURLParameters(exchange);
+        String sort = params.getOrDefault("sort", "delta");
+        if (!JIT_IMPACT_COLUMNS.containsKey(sort)) {
+            throw new IllegalArgumentException("Unknown sort column " + sort + ", expected one of "
+                    + String.join(", ", JIT_IMPACT_COLUMNS.keySet()));
+        }
+        boolean ascending = params.getOrDefault("order", "desc").equals("asc");
+        Comparator<JitImpact.MethodSize> comparator = JIT_IMPACT_COLUMNS.get(sort);
+        List<JitImpact.MethodSize> methods = getJitImpactMethods(params).stream()
+                .sorted(ascending ? comparator : comparator.reversed())
+                .toList();
+        String thresholds = jitImpact.getThresholds().entrySet().stream()
+                .map(e -> e.getKey().flag + "=" + e.getValue())
+                .collect(Collectors.joining(", "));
+        if (outputRaw(exchange)) {
+            return new Response("# " + thresholds + "\n" + methods.stream()
+                    .map(m -> m.diff().instrumentator().name() + "\t" + m.diff().klass().getName() + "\t" + m.method()
+                            + "\t" + m.oldSize() + "\t" + m.newSize() + "\t" + formatCrossed(m))
+                    .collect(Collectors.joining("\n")), false);
+        }
+        String header = JIT_IMPACT_COLUMNS.keySet().stream()
+                .map(column -> {
+                    Map<String, String> sortParams = new HashMap<>(params);
+                    sortParams.put("sort", column);
+                    sortParams.put("order", column.equals(sort) && !ascending ? "asc" : "desc");
+                    return "<th><a href='" + combineURL(exchange, sortParams) + "'>" + column
+                            + (column.equals(sort) ? (ascending ? " &#9650;" : " &#9660;") : "") + "</a></th>";
+                })
+                .collect(Collectors.joining());
+        return new Response(getHTMLHeader(exchange)
+                + NavigationUtils.getBreadcrumbs(exchange)
+                + "<h1>JIT impact</h1>"
+                + "<p>" + thresholds + "</p>"
+                + "<p class='text-muted'>" + jitImpact.getAnalyzedCount() + " diffs analyzed, "
+                + jitImpact.getPendingCount() + " pending</p>"
+                + "<p><strong>" + methods.size() + "</strong> methods"
+                + (Boolean.parseBoolean(params.getOrDefault("all", "false")) ? " changed their size" : " crossed a threshold")
+                + "</p>"
+                + "<table><tr>" + header + "<th>crossed</th></tr>"
+                + methods.stream()
+                .map(m -> "<tr><td>" + m.diff().instrumentator().name() + "</td><td><a href='/full-diff/class?pattern="
+                        + m.diff().klass().getName() + "'>" + m.diff().klass().getName() + "</a></td><td>"
+                        + NavigationUtils.escapeHtml(m.method()) + "</td><td>" + (m.oldSize() < 0 ? "-" : m.oldSize())
+                        + "</td><td>" + m.newSize() + "</td><td>" + m.getDelta() + "</td><td>" + formatCrossed(m)
+                        + "</td></tr>")
+                .collect(Collectors.joining())
+                + "</table></div></body></html>", true);
+    }
+
+    private static String formatCrossed(JitImpact.MethodSize method) {
+        return method.crossed().stream().map(t -> t.flag).collect(Collectors.joining(","));
+    }
+
+    private static String formatMegabytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    private static String formatKilobytes(long bytes) {
+        return String.format("%.1f KB", bytes / 1024.0);
+    }
+
+    private static String formatHitRate(long hits, long misses) {
+        return hits + misses == 0 ? "-" : String.format("%.1f%%", 100.0 * hits / (hits + misses));
+    }
+
+    private static String formatDecompiledClass(Klass c, String code, boolean raw) {
+        return getDecompiledClassHeader(c, raw) + (raw ? code : makeCodeHtmlFriendly(code)) + getDecompiledClassFooter(raw);
+    }
+
+    private static String getDecompiledClassHeader(Klass c, boolean raw) {
+        if (raw) {
+            return "##### " + c.getName() + "\n";
         }
-        if (!raw) {
-            sb.append("<script>hljs.highlightAll();</script>");
-            sb.append("</div></body></html>");
+        StringBuilder sb = new StringBuilder();
+        sb.append("<h2>").append(c.getName()).append("</h2>");
+        if (InstrumentationHandler.isInstrumented(c)) {
+            sb.append(
+                    "<p><a href='LINK'>View bytecode diffs for this class</a></p>"
+                            .replace("LINK", "/full-diff/class?pattern=" + c.getName()));
         }
-        return new Response(sb.toString(), !raw);
+        sb.append("<pre><code class='language-java'>");
+        return sb.toString();
+    }
+
+    private static String getDecompiledClassFooter(boolean raw) {
+        return raw ? "\n" : "</code></pre>";
+    }
+
+    /**
+     * Section that streams the parts of the class that the AI improved, as soon as they are ready
+     */
+    private static Response.StreamingSection streamImprovedClass(Klass c, Decompilation.Prefetch prefetch, boolean raw) {
+        return writer -> {
+            byte[] bytecode = prefetch.getVersions(c).get(0);
+            if (bytecode == null) {
+                return;
+            }
+            writer.write(getDecompiledClassHeader(c, raw));
+            Decompilation.decompileClassToJavaWithAI(c, bytecode,
+                    part -> writer.write(raw ? part : makeCodeHtmlFriendly(part)));
+            writer.write(getDecompiledClassFooter(raw));
+        };
     }
 
     private static String makeCodeHtmlFriendly(String code) {
         return code.replace("<", "&lt;").replace(">", "&gt;");
     }
 
-    private static DiffSourceMode getMode(HttpExchange exchange) {
+    static DiffSourceMode getMode(HttpExchange exchange) {
         Map<String, String> params = getURLParameters(exchange);
         String modeParam = params.get("mode");
         if (modeParam == null) {
@@ -585,21 +1137,57 @@ public class MainLoop {
         boolean raw = outputRaw(exchange);
         boolean fullDiff = exchange.getRequestURI().getPath().contains("full-diff/");
         DiffSourceMode mode = getMode(exchange);
+        boolean collapse = collapseUnchangedMembers(exchange);
         var instrumentators = getInstrumentatorNames(exchange);
 
-        StringBuilder sb = new StringBuilder();
-        if (!raw) {
-            int totalClasses = instrumentators.stream()
-                    .mapToInt(i -> InstrumentationHandler.getInstrumentatorDiffs(i).getDiffs().size())
-                    .sum();
-            sb.append(getDecompiledHtmlHeader(exchange, mode, totalClasses));
-        }
-
+        List<Callable<String>> sections = new ArrayList<>();
         for (String instrumentator : instrumentators) {
             var diffs = InstrumentationHandler.getInstrumentatorDiffs(instrumentator);
+            // the combined patch is streamed class by class, in the order that diff -r would use
+            List<Klass> classes = diffs.getDiffs().keySet().stream()
+                    .sorted(Comparator.comparing(Klass::getName))
+                    .toList();
+            var prefetch = Decompilation.prefetch(classes, clazz -> {
+                var classDiffs = diffs.getDiffs().get(clazz);
+                var first = classDiffs.get(0);
+                var versions = new ArrayList<>(BytecodeDiffUtils.getDecompiledVersions(
+                        new SimpleBytecodeDiff(first.old(), first.current()), collapse));
+                if (raw) {
+                    var current = classDiffs.get(classDiffs.size() - 1).current();
+                    versions.addAll(BytecodeDiffUtils.getDecompiledVersions(
+                            new SimpleBytecodeDiff(first.old(), current), collapse));
+                    versions.addAll(List.of(first.old(), current));
+                }
+                return versions;
+            }, mode);
+            Function<Klass, String> firstDiff = clazz -> {
+                prefetch.get(clazz).getVersions(clazz);
+                var val = diffs.getDiffs().get(clazz).get(0);
+                return BytecodeDiffUtils.diff(
+                        Map.of(clazz, new SimpleBytecodeDiff(val.old(), val.current())), mode, fullDiff, collapse);
+            };
             if (raw) {
-                sb.append("##### ").append(instrumentator).append("\n");
-            } else {
+                sections.add(() -> "##### " + instrumentator + "\n"
+                        + "##### patch instrumentator " + instrumentator + "\n");
+                for (var clazz : classes) {
+                    sections.add(() -> firstDiff.apply(clazz) + "\n");
+                }
+                for (var clazz : classes) {
+                    sections.add(() -> {
+                        prefetch.get(clazz).getVersions(clazz);
+                        var classDiffs = diffs.getDiffs().get(clazz);
+                        var old = classDiffs.get(0).old();
+                        var current = classDiffs.get(classDiffs.size() - 1).current();
+                        return "##### patch class " + clazz.getName() + "\n"
+                                + BytecodeDiffUtils.diff(
+                                Map.of(clazz, new SimpleBytecodeDiff(old, current)), mode, fullDiff, collapse) + "\n"
+                                + formatRawClassVersions(clazz, old, current, mode);
+                    });
+                }
+                continue;
+            }
+            sections.add(() -> {
+                StringBuilder sb = new StringBuilder();
                 sb.append("<h2>").append(instrumentator).append("</h2>");
                 sb.append("<p>Affects <strong>").append(diffs.getDiffs().size()).append("</strong> ")
                   .append(diffs.getDiffs().size() == 1 ? "class" : "classes").append("</p>");
@@ -621,108 +1209,103 @@ public class MainLoop {
                     }
                     sb.append("</ul>");
                 }
+                return sb.toString();
+            });
+            long id = diffIdCounter.getAndIncrement();
+            sections.add(() -> formatDiffStart(id));
+            for (var clazz : classes) {
+                sections.add(() -> {
+                    String diff = firstDiff.apply(clazz);
+                    return diff.isEmpty() ? "" : makeCodeHtmlFriendly(diff) + "\n";
+                });
             }
-
-            Map<Klass, SimpleBytecodeDiff> firstDiffs =
-                    diffs.getDiffs().entrySet().stream()
-                            .collect(
-                                    Collectors.toMap(
-                                            Entry::getKey,
-                                            e -> {
-                                                var val = e.getValue().get(0);
-                                                return new SimpleBytecodeDiff(val.old(), val.current());
-                                            }));
-            var diff = BytecodeDiffUtils.diff(firstDiffs, mode, fullDiff);
-            if (raw) {
-                sb.append("##### patch instrumentator ").append(instrumentator).append("\n");
-                sb.append(diff).append("\n");
-                for (var clazz : diffs.getDiffs().keySet()) {
-                    var old = diffs.getDiffs().get(clazz).get(0).old();
-                    var current = diffs.getDiffs().get(clazz).get(diffs.getDiffs().get(clazz).size() - 1).current();
-                    sb.append("##### patch class ").append(clazz.getName()).append("\n");
-                    sb.append(BytecodeDiffUtils.diff(
-                            Map.of(clazz, new SimpleBytecodeDiff(old, current)),
-                            mode, fullDiff)).append("\n");
-                    sb.append("##### old class ").append(clazz.getName()).append("\n");
-                    sb.append(Decompilation.decompileClasses(Map.of(clazz, old), mode).get(clazz)).append("\n");
-                    sb.append("##### new class ").append(clazz.getName()).append("\n");
-                    sb.append(Decompilation.decompileClasses(Map.of(clazz, current), mode).get(clazz)).append("\n");
-                }
-            } else {
-                sb.append(formatDiff(diff, true));
-            }
+            sections.add(() -> formatDiffEnd(id, true));
         }
-        if (!raw) {
-            sb.append("<script>hljs.highlightAll();</script>");
-            sb.append("</div></body></html>");
+        if (raw) {
+            return Response.sections(false, "", sections, "");
         }
-        return new Response(sb.toString(), !raw);
+        int totalClasses = instrumentators.stream()
+                .mapToInt(i -> InstrumentationHandler.getInstrumentatorDiffs(i).getDiffs().size())
+                .sum();
+        return renderSections(exchange, totalClasses, getDecompiledHtmlHeader(exchange, mode, totalClasses), sections,
+                "<script>hljs.highlightAll();</script></div></body></html>");
+    }
+
+    private static String formatRawClassVersions(Klass clazz, byte[] old, byte[] current, DiffSourceMode mode) {
+        return "##### old class " + clazz.getName() + "\n"
+                + Decompilation.decompileClasses(Map.of(clazz, old), mode).get(clazz) + "\n"
+                + "##### new class " + clazz.getName() + "\n"
+                + Decompilation.decompileClasses(Map.of(clazz, current), mode).get(clazz) + "\n";
     }
 
     private static Response showClassDiffs(HttpExchange exchange) {
         boolean fullDiff = exchange.getRequestURI().getPath().contains("full-diff/");
         DiffSourceMode mode = getMode(exchange);
+        boolean collapse = collapseUnchangedMembers(exchange);
         Map<String, String> params = getURLParameters(exchange);
         Pattern instrPattern = params.containsKey("instr") ? getMatchPattern(params.get("instr")) : Pattern.compile(".*");
         boolean raw = outputRaw(exchange);
         List<Klass> classes = getClasses(exchange);
 
-        StringBuilder sb = new StringBuilder();
-        if (!raw) {
-            int totalDiffs = classes.stream()
-                    .mapToInt(c -> (int) InstrumentationHandler.getClassDiffs().get(c).getDiffs().stream()
-                            .filter(d -> instrPattern.matcher(d.instrumentator().name()).matches())
-                            .count())
-                    .sum();
-            sb.append(getDecompiledHtmlHeader(exchange, mode, classes.size()));
-        }
-
+        Function<Klass, List<BytecodeDiff>> getClassDiffs = clazz ->
+                InstrumentationHandler.getClassDiffs().get(clazz).getDiffs().stream()
+                        .filter(d -> instrPattern.matcher(d.instrumentator().name()).matches())
+                        .toList();
+        var prefetch = Decompilation.prefetch(classes, clazz -> getClassDiffs.apply(clazz).stream()
+                .flatMap(d -> {
+                    var versions = BytecodeDiffUtils.getDecompiledVersions(new SimpleBytecodeDiff(d.old(), d.current()), collapse);
+                    return raw ? Stream.concat(versions.stream(), Stream.of(d.old(), d.current())) : versions.stream();
+                })
+                .toList(), mode);
+        List<Callable<String>> sections = new ArrayList<>();
         for (Klass clazz : classes) {
-            var classDiffs = InstrumentationHandler.getClassDiffs().get(clazz).getDiffs().stream()
-                    .filter(d -> instrPattern.matcher(d.instrumentator().name()).matches())
-                    .toList();
+            var classDiffs = getClassDiffs.apply(clazz);
 
             if (classDiffs.isEmpty()) {
                 continue;
             }
 
             if (raw) {
-                sb.append("##### ").append(clazz.getName()).append("\n");
+                sections.add(() -> "##### " + clazz.getName() + "\n");
             } else {
-                sb.append("<h2>").append(clazz.getName()).append("</h2>");
-                sb.append("<p>Modified by <strong>").append(classDiffs.size()).append("</strong> ")
-                  .append(classDiffs.size() == 1 ? "instrumentator" : "instrumentators").append("</p>");
+                sections.add(() -> "<h2>" + clazz.getName() + "</h2>"
+                        + "<p>Modified by <strong>" + classDiffs.size() + "</strong> "
+                        + (classDiffs.size() == 1 ? "instrumentator" : "instrumentators") + "</p>");
             }
 
             for (var diff : classDiffs) {
-                if (raw) {
-                    sb.append("##### patch instrumentator ").append(diff.instrumentator().name()).append("\n");
-                    sb.append(BytecodeDiffUtils.diff(
-                            Map.of(clazz, new SimpleBytecodeDiff(diff.old(), diff.current())), mode, fullDiff)).append("\n");
-                    sb.append("##### old class ").append(clazz.getName()).append("\n");
-                    sb.append(Decompilation.decompileClasses(Map.of(clazz, diff.old()), mode).get(clazz)).append("\n");
-                    sb.append("##### new class ").append(clazz.getName()).append("\n");
-                    sb.append(Decompilation.decompileClasses(Map.of(clazz, diff.current()), mode).get(clazz)).append("\n");
-                } else {
-                    sb.append("<h3>").append(diff.instrumentator().name()).append("</h3>");
-                    sb.append(
-                            formatDiff(
-                                    BytecodeDiffUtils.diff(
-                                            Map.of(clazz, new SimpleBytecodeDiff(diff.old(), diff.current())), mode, fullDiff),
-                                    false));
-                }
+                sections.add(() -> {
+                    prefetch.get(clazz).getVersions(clazz);
+                    String patch = BytecodeDiffUtils.diff(
+                            Map.of(clazz, new SimpleBytecodeDiff(diff.old(), diff.current())), mode, fullDiff, collapse);
+                    if (raw) {
+                        return "##### patch instrumentator " + diff.instrumentator().name() + "\n"
+                                + patch + "\n"
+                                + formatRawClassVersions(clazz, diff.old(), diff.current(), mode);
+                    }
+                    return "<h3>" + diff.instrumentator().name() + "</h3>" + formatDiff(patch, false);
+                });
             }
         }
-        if (!raw) {
-            sb.append("</div></body></html>");
+        if (raw) {
+            return Response.sections(false, "", sections, "");
         }
-        return new Response(sb.toString(), !raw);
+        return renderSections(exchange, classes.size(), getDecompiledHtmlHeader(exchange, mode, classes.size()), sections,
+                "</div></body></html>");
     }
 
     private static final AtomicLong diffIdCounter = new AtomicLong(0);
 
     private static String formatDiff(String diff, boolean drawFileList) {
         long id = diffIdCounter.getAndIncrement();
+        return formatDiffStart(id) + makeCodeHtmlFriendly(diff) + "\n" + formatDiffEnd(id, drawFileList);
+    }
+
+    /**
+     * Start of a diff view, the escaped diff has to be written after it, followed by
+     * {@link #formatDiffEnd(long, boolean)}
+     */
+    private static String formatDiffStart(long id) {
         return """
                 Output format:
                 <select onchange='showID()' id='output-mode-ID'>
@@ -731,7 +1314,12 @@ public class MainLoop {
                 </select>
                 <div style='display: none'>
                 <pre id="diff-ID">
-                DIFF
+                """
+                .replace("ID", Long.toString(id));
+    }
+
+    private static String formatDiffEnd(long id, boolean drawFileList) {
+        return """
                 </pre>
                 </div>
                 <script>
@@ -759,7 +1347,6 @@ public class MainLoop {
                 </script>
                 <div id="show-ID"></div>
                 """
-                .replace("DIFF", makeCodeHtmlFriendly(diff))
                 .replace("ID", Long.toString(id))
                 .replace("DRAW_FILE_LIST", Boolean.toString(drawFileList));
     }
@@ -803,20 +1390,4 @@ public class MainLoop {
         inst.removeTransformer(transformer);
         return bytes[0];
     }
-
-    private static Path extractFile(String name) {
-        try {
-            Path path = Files.createTempFile("meta-agent", name);
-            path.toFile().deleteOnExit();
-            try (InputStream in = MainLoop.class.getClassLoader().getResourceAsStream(name)) {
-                if (in == null) {
-                    throw new RuntimeException("Could not find " + name);
-                }
-                Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
-            }
-            return path;
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
 }
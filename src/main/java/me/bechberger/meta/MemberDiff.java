@@ -0,0 +1,229 @@
+package me.bechberger.meta;
+
+import javassist.bytecode.*;
+import me.bechberger.meta.runtime.BytecodeHashes;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Strips the fields and methods that are equal in two versions of a class, so that only the changed
+ * members have to be decompiled and diffed
+ * <p>
+ * Members are compared by their disassembly without constant pool indices, as transformations might
+ * rebuild the constant pool. Synthetic methods (like lambda bodies) of the class that are used by a
+ * changed method are kept as context, so that the decompiler can still inline them.
+ * The class itself, with its attributes, is always kept.
+ */
+public class MemberDiff {
+
+    private static final long MAX_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Recently reduced versions by the hashes of the versions, access ordered, so that iteration starts
+     * with the least recently used entry
+     */
+    private static final LinkedHashMap<String, Optional<Reduced>> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cacheSize = 0;
+
+    /**
+     * Versions of the class that only contain the changed members
+     *
+     * @param collapsedFields  number of unchanged fields that have been removed
+     * @param collapsedMethods number of unchanged methods that have been removed
+     */
+    public record Reduced(byte[] old, byte[] current, int collapsedFields, int collapsedMethods) {
+
+        /**
+         * Comment that is placed above the decompiled versions
+         */
+        public String getNote() {
+            List<String> parts = new ArrayList<>();
+            if (collapsedMethods > 0) {
+                parts.add(collapsedMethods + (collapsedMethods == 1 ? " unchanged method" : " unchanged methods"));
+            }
+            if (collapsedFields > 0) {
+                parts.add(collapsedFields + (collapsedFields == 1 ? " unchanged field" : " unchanged fields"));
+            }
+            return "// " + String.join(" and ", parts) + " collapsed, use collapse=false to show them\n";
+        }
+    }
+
+    /**
+     * Like {@link #reduce(byte[], byte[])}, but reuses the result for recently reduced versions,
+     * as pages reduce the same versions first to prefetch their decompilations and then again to diff them
+     */
+    public static @Nullable Reduced reduceCached(byte[] old, byte[] current) {
+        String key = BytecodeHashes.hash(old) + "-" + BytecodeHashes.hash(current);
+        synchronized (cache) {
+            Optional<Reduced> cached = cache.get(key);
+            if (cached != null) {
+                return cached.orElse(null);
+            }
+        }
+        Reduced reduced = reduce(old, current);
+        synchronized (cache) {
+            if (cache.put(key, Optional.ofNullable(reduced)) == null) {
+                cacheSize += getCacheSize(key, reduced);
+            }
+            Iterator<Map.Entry<String, Optional<Reduced>>> iterator = cache.entrySet().iterator();
+            while (cacheSize > MAX_CACHE_SIZE && iterator.hasNext()) {
+                var entry = iterator.next();
+                cacheSize -= getCacheSize(entry.getKey(), entry.getValue().orElse(null));
+                iterator.remove();
+            }
+        }
+        return reduced;
+    }
+
+    private static long getCacheSize(String key, @Nullable Reduced reduced) {
+        return key.length() + (reduced == null ? 0 : reduced.old().length + reduced.current().length);
+    }
+
+    /**
+     * Remove the unchanged members from both versions
+     *
+     * @return the reduced versions or {@code null} if no member is unchanged or the classes cannot be parsed
+     */
+    public static @Nullable Reduced reduce(byte[] old, byte[] current) {
+        try {
+            ClassFile oldClass = read(old);
+            ClassFile currentClass = read(current);
+            Map<String, String> oldMembers = BytecodeDisassembler.disassembleMembers(oldClass);
+            Map<String, String> currentMembers = BytecodeDisassembler.disassembleMembers(currentClass);
+            Set<String> unchanged = new HashSet<>();
+            oldMembers.forEach((key, text) -> {
+                if (text.equals(currentMembers.get(key))) {
+                    unchanged.add(key);
+                }
+            });
+            if (unchanged.isEmpty()) {
+                return null;
+            }
+            Set<String> keptOld = strip(oldClass, unchanged);
+            Set<String> keptCurrent = strip(currentClass, unchanged);
+            int collapsedFields = 0;
+            int collapsedMethods = 0;
+            for (String key : unchanged) {
+                if (!keptOld.contains(key) && !keptCurrent.contains(key)) {
+                    if (key.startsWith("field ")) {
+                        collapsedFields++;
+                    } else {
+                        collapsedMethods++;
+                    }
+                }
+            }
+            if (collapsedFields + collapsedMethods == 0) {
+                return null;
+            }
+            return new Reduced(write(oldClass), write(currentClass), collapsedFields, collapsedMethods);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ClassFile read(byte[] bytecode) throws IOException {
+        return new ClassFile(new DataInputStream(new ByteArrayInputStream(bytecode)));
+    }
+
+    private static byte[] write(ClassFile classFile) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        classFile.write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Remove the unchanged members that are not needed as context
+     *
+     * @return keys of the kept members
+     */
+    private static Set<String> strip(ClassFile classFile, Set<String> unchanged) {
+        Map<String, MethodInfo> methods = new HashMap<>();
+        Set<String> kept = new HashSet<>();
+        Deque<MethodInfo> todo = new ArrayDeque<>();
+        for (MethodInfo method : classFile.getMethods()) {
+            String key = BytecodeDisassembler.getKey(method);
+            methods.put(key, method);
+            if (!unchanged.contains(key)) {
+                kept.add(key);
+                todo.add(method);
+            }
+        }
+        while (!todo.isEmpty()) {
+            for (String key : getReferencedMethods(classFile, todo.poll())) {
+                MethodInfo method = methods.get(key);
+                if (method != null && (method.getAccessFlags() & AccessFlag.SYNTHETIC) != 0 && kept.add(key)) {
+                    todo.add(method);
+                }
+            }
+        }
+        classFile.getMethods().removeIf(m -> !kept.contains(BytecodeDisassembler.getKey(m)));
+        // the decompiler needs the fields of records to find the components
+        if (classFile.getAttribute("Record") != null) {
+            classFile.getFields().forEach(f -> kept.add(BytecodeDisassembler.getKey(f)));
+        } else {
+            classFile.getFields().forEach(f -> {
+                if (!unchanged.contains(BytecodeDisassembler.getKey(f))) {
+                    kept.add(BytecodeDisassembler.getKey(f));
+                }
+            });
+            classFile.getFields().removeIf(f -> !kept.contains(BytecodeDisassembler.getKey(f)));
+        }
+        return kept;
+    }
+
+    /**
+     * Methods of the class that are called by the method or used as the target of a method handle
+     * in one of its {@code invokedynamic} instructions
+     */
+    private static Set<String> getReferencedMethods(ClassFile classFile, MethodInfo method) {
+        Set<String> referenced = new HashSet<>();
+        CodeAttribute code = method.getCodeAttribute();
+        if (code == null) {
+            return referenced;
+        }
+        ConstPool pool = classFile.getConstPool();
+        var bootstrapMethods = (BootstrapMethodsAttribute) classFile.getAttribute(BootstrapMethodsAttribute.tag);
+        CodeIterator iterator = code.iterator();
+        try {
+            while (iterator.hasNext()) {
+                int pos = iterator.next();
+                switch (iterator.byteAt(pos)) {
+                    case Opcode.INVOKEVIRTUAL, Opcode.INVOKESPECIAL, Opcode.INVOKESTATIC, Opcode.INVOKEINTERFACE ->
+                            addMethod(classFile, pool, iterator.u16bitAt(pos + 1), referenced);
+                    case Opcode.INVOKEDYNAMIC -> {
+                        if (bootstrapMethods == null) {
+                            continue;
+                        }
+                        int bootstrap = pool.getInvokeDynamicBootstrap(iterator.u16bitAt(pos + 1));
+                        for (int argument : bootstrapMethods.getMethods()[bootstrap].arguments) {
+                            if (pool.getTag(argument) == ConstPool.CONST_MethodHandle) {
+                                addMethod(classFile, pool, pool.getMethodHandleIndex(argument), referenced);
+                            }
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        } catch (BadBytecode e) {
+            // keep what has been found so far
+        }
+        return referenced;
+    }
+
+    private static void addMethod(ClassFile classFile, ConstPool pool, int memberRef, Set<String> referenced) {
+        int tag = pool.getTag(memberRef);
+        if ((tag == ConstPool.CONST_Methodref || tag == ConstPool.CONST_InterfaceMethodref)
+                && classFile.getName().equals(pool.getClassInfo(pool.getMemberClass(memberRef)))) {
+            int nameAndType = pool.getMemberNameAndType(memberRef);
+            referenced.add(BytecodeDisassembler.getMethodKey(pool.getUtf8Info(pool.getNameAndTypeName(nameAndType)),
+                    pool.getUtf8Info(pool.getNameAndTypeDescriptor(nameAndType))));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package me.bechberger.meta;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader of the memory-mapped ring buffer {@code /tmp/njvm<pid>.ring} that the native wrapper agent
+ * writes to with the {@code ring=<MB>} option, see {@code native_agent.c} for the layout
+ * <p>
+ * Writers reserve space by advancing the head and commit a record by setting its length last,
+ * the reader zeroes the consumed records before advancing the tail, so that uncommitted records
+ * always have a zero length.
+ */
+class NativeRingBuffer {
+
+    private static final int MAGIC = 0x4E4A5242;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 256;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int TAIL_OFFSET = 128;
+    private static final int SPILLED_OFFSET = 192;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * A committed record
+     */
+    record Record(String agentName, String className, byte[] oldBytes, byte[] newBytes) {
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private long tail;
+
+    private NativeRingBuffer(MappedByteBuffer buffer, int capacity) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.tail = (long) LONG.getAcquire(buffer, TAIL_OFFSET);
+    }
+
+    static Path getPath(long pid) {
+        return Path.of("/tmp/njvm" + pid + ".ring");
+    }
+
+    /**
+     * Map the ring buffer of the native agent
+     *
+     * @return the ring buffer or {@code null} if it doesn't exist or is not yet initialized
+     */
+    static @Nullable NativeRingBuffer open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if ((int) INT.getAcquire(buffer, 0) != MAGIC) {
+            return null;
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported ring buffer version " + buffer.getInt(4) + " in " + path);
+        }
+        long capacity = (long) LONG.get(buffer, CAPACITY_OFFSET);
+        if (Long.bitCount(capacity) != 1 || HEADER_SIZE + capacity != buffer.capacity()) {
+            throw new IOException("Invalid ring buffer capacity " + capacity + " in " + path);
+        }
+        return new NativeRingBuffer(buffer, (int) capacity);
+    }
+
+    /**
+     * Number of records that the native agent wrote to files instead, only increases
+     */
+    long getSpilledCount() {
+        return (long) LONG.getAcquire(buffer, SPILLED_OFFSET);
+    }
+
+    /**
+     * Read and consume the next committed record
+     *
+     * @return the record or {@code null} if there is none
+     */
+    @Nullable
+    Record poll() {
+        int recordOffset = offset(tail);
+        int length = (int) INT.getAcquire(buffer, recordOffset);
+        if (length == 0) {
+            return null;
+        }
+        long position = tail + RECORD_HEADER_SIZE;
+        long end = position + length;
+        StringBuilder line = new StringBuilder();
+        String[] header = new String[4];
+        for (int i = 0; i < header.length && position < end; position++) {
+            byte b = buffer.get(offset(position));
+            if (b == '\n') {
+                header[i++] = line.toString();
+                line.setLength(0);
+            } else {
+                line.append((char) b);
+            }
+        }
+        byte[] oldBytes = new byte[Integer.parseInt(header[2])];
+        position = copy(position, oldBytes);
+        byte[] newBytes = new byte[Integer.parseInt(header[3])];
+        copy(position, newBytes);
+        long total = (RECORD_HEADER_SIZE + length + 7) & ~7L;
+        for (long p = tail; p < tail + total; p += 8) {
+            buffer.putLong(offset(p), 0);
+        }
+        tail += total;
+        LONG.setRelease(buffer, TAIL_OFFSET, tail);
+        return new Record(new String(header[0].getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8),
+                new String(header[1].getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8),
+                oldBytes, newBytes);
+    }
+
+    private int offset(long position) {
+        return HEADER_SIZE + (int) (position & mask);
+    }
+
+    /**
+     * Copy from the ring into the array, wrapping around the end of the ring
+     *
+     * @return the position after the copied bytes
+     */
+    private long copy(long position, byte[] dest) {
+        int start = (int) (position & mask);
+        int first = Math.min(dest.length, capacity - start);
+        buffer.get(HEADER_SIZE + start, dest, 0, first);
+        buffer.get(HEADER_SIZE, dest, first, dest.length - first);
+        return position + dest.length;
+    }
+}
@@ -3,10 +3,16 @@ package me.bechberger.meta;
 import me.bechberger.meta.runtime.InstrumentationHandler;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -14,19 +20,57 @@ import java.util.stream.Stream;
  * and regularly adds their content via {@link InstrumentationHandler#addDiff(String, String, byte[], byte[])}.
  * <p>
  * This implementation doesn't use a file watcher, because the API can't deal with so
- * many files generated in fast succession.
+ * many files generated in fast succession. Instead, it uses that the files are numbered
+ * by a counter and opens the next expected file directly; the directory is only listed when
+ * nothing arrived for a while, to pick up files that were renamed out of order or skipped.
+ * The class data of a file is read directly into the arrays that are passed on, and the diffs
+ * are added by worker threads, the diffs of a class always by the same worker, so that their order is kept.
+ * If the native agent uses a ring buffer ({@code ring=<MB>}), the records are read from it
+ * and the directory is only listed when the agent spilled records into files.
  */
 public class NativeWrapperLoop implements Runnable {
 
+    /**
+     * Time without new files after which the directory is listed
+     */
+    private static final long LIST_AFTER_IDLE_MS = 200;
+
+    /**
+     * Bytes read at first, enough for the header (the native agent limits agent names to 256
+     * and paths to 1024 bytes), the rest of them is the start of the class data
+     */
+    private static final int HEADER_READ_SIZE = 4096;
+
     private final AtomicBoolean stop;
+    private final List<ExecutorService> workers;
 
-    public NativeWrapperLoop(AtomicBoolean stop) {
+    public NativeWrapperLoop(AtomicBoolean stop, int threads) {
         this.stop = stop;
+        this.workers = IntStream.range(0, Math.max(1, threads))
+                .mapToObj(i -> Executors.newSingleThreadExecutor(r -> {
+                    Thread thread = new Thread(r, "meta-agent-native-" + i);
+                    thread.setDaemon(true);
+                    return thread;
+                }))
+                .toList();
     }
 
-    public static void startThread() {
+    /**
+     * Number of transformations that the native agent dropped because its queue was full
+     * ({@code drop=true}), read from the {@code dropped} file that its writer thread maintains
+     */
+    public static long getDroppedCount() {
+        Path file = Paths.get("/tmp/njvm" + ProcessHandle.current().pid(), "dropped");
+        try {
+            return Long.parseLong(Files.readString(file).trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public static void startThread(int threads) {
         AtomicBoolean stop = new AtomicBoolean(false);
-        Thread t = new Thread(new NativeWrapperLoop(stop));
+        Thread t = new Thread(new NativeWrapperLoop(stop, threads));
         t.setName("NativeWrapperLoop");
         t.start();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> stop.set(false)));
@@ -36,34 +80,111 @@ public class NativeWrapperLoop implements Runnable {
     public void run() {
         long pid = ProcessHandle.current().pid();
         Path directory = Paths.get("/tmp/njvm" + pid);
+        Path ringPath = NativeRingBuffer.getPath(pid);
+        NativeRingBuffer ring = null;
+        boolean ringFailed = false;
+        long listedSpilledCount = -1;
+        long next = 0;
+        long lastFileTime = System.currentTimeMillis();
+        boolean listed = false;
         while (!stop.get()) {
-            AtomicBoolean hasFiles = new AtomicBoolean(false);
-            try (Stream<Path> stream = Files.list(directory)) {
-                stream.sorted(Comparator.comparing(p -> Integer.parseInt(p.getFileName().toString()))).forEach(entry -> {
-                    try {
-                        processFile(directory.resolve(entry.getFileName()));
-                        Files.deleteIfExists(entry);
-                    } catch (Exception e) {
-                    }
-                    hasFiles.set(true);
-                });
-                if (!hasFiles.get()) {
-                    Thread.sleep(10);
-                }
-            } catch (NoSuchFileException e) {
-                // Directory does not exist yet, wait and try again
+            boolean processed = false;
+            if (ring == null && !ringFailed && Files.exists(ringPath)) {
                 try {
-                    Thread.sleep(100);
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
+                    ring = NativeRingBuffer.open(ringPath);
+                } catch (IOException e) {
+                    // the records are lost, but spilled files are still processed
+                    e.printStackTrace();
+                    ringFailed = true;
                 }
+            }
+            if (ring != null) {
+                NativeRingBuffer.Record record;
+                while ((record = ring.poll()) != null) {
+                    NativeRingBuffer.Record r = record;
+                    submit(r.className(), () -> InstrumentationHandler.addDiff(r.agentName(), r.className(),
+                            r.oldBytes(), r.newBytes()));
+                    processed = true;
+                }
+                long spilledCount = ring.getSpilledCount();
+                if (spilledCount != listedSpilledCount) {
+                    // spilled files may be numbered from anywhere, so don't wait for them
+                    listedSpilledCount = spilledCount;
+                    next = processDirectory(directory, next);
+                    continue;
+                }
+                if (!processed) {
+                    sleep(10);
+                }
+                continue;
+            }
+            if (!Files.isDirectory(directory)) {
+                // Directory does not exist yet, wait and try again
+                sleep(100);
+                continue;
+            }
+            while (processFile(directory.resolve(Long.toString(next)))) {
+                next++;
+                processed = true;
+            }
+            long now = System.currentTimeMillis();
+            if (processed) {
+                lastFileTime = now;
+                listed = false;
+            } else if (!listed && now - lastFileTime > LIST_AFTER_IDLE_MS) {
+                next = processDirectory(directory, next);
+                listed = true;
+            } else {
+                sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Process all files in the directory in the order of their numbers
+     *
+     * @return the number of the next expected file
+     */
+    private long processDirectory(Path directory, long next) {
+        List<Long> numbers;
+        try (Stream<Path> stream = Files.list(directory)) {
+            numbers = stream.map(p -> p.getFileName().toString())
+                    .filter(name -> !name.isEmpty() && name.chars().allMatch(Character::isDigit))
+                    .map(Long::parseLong).sorted().toList();
+        } catch (NoSuchFileException e) {
+            return next;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return next;
+        }
+        for (long number : numbers) {
+            processFile(directory.resolve(Long.toString(number)));
+            next = Math.max(next, number + 1);
+        }
+        return next;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(String className, Runnable task) {
+        workers.get(Math.floorMod(className.hashCode(), workers.size())).execute(() -> {
+            try {
+                task.run();
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        }
+        });
     }
 
     /**
+     * Read the file, delete it and pass its content to a worker
+     * <p>
      * File format:
      * - Line 1: agent_name (e.g., "agent_minimal_cfh")
      * - Line 2: class_name (e.g., "java/lang/String" or "unknown")
@@ -71,33 +192,71 @@ public class NativeWrapperLoop implements Runnable {
      * - Line 4: new_len (decimal number, e.g., "1456")
      * - Binary data: old_len bytes of original class data
      * - Binary data: new_len bytes of transformed class data
+     *
+     * @return whether the file existed
      */
-    private void processFile(Path filePath) {
-        try (var in = Files.newInputStream(filePath)) {
-            String agentName = readLine(in);
-            String className = readLine(in);
-            int oldLen = Integer.parseInt(readLine(in));
-            int newLen = Integer.parseInt(readLine(in));
-            byte[] oldBytes = in.readNBytes(oldLen);
-            byte[] newBytes = in.readNBytes(newLen);
-            InstrumentationHandler.addDiff(agentName, className, oldBytes, newBytes);
+    private boolean processFile(Path filePath) {
+        String agentName;
+        String className;
+        byte[] oldBytes;
+        byte[] newBytes;
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate((int) Math.min(channel.size(), HEADER_READ_SIZE));
+            readFully(channel, header);
+            header.flip();
+            agentName = readLine(header);
+            className = readLine(header);
+            oldBytes = new byte[Integer.parseInt(readLine(header))];
+            newBytes = new byte[Integer.parseInt(readLine(header))];
+            ByteBuffer[] data = {ByteBuffer.wrap(oldBytes), ByteBuffer.wrap(newBytes)};
+            // the rest of the header buffer is the start of the class data
+            for (ByteBuffer target : data) {
+                int length = Math.min(header.remaining(), target.remaining());
+                target.put(header.slice(header.position(), length));
+                header.position(header.position() + length);
+            }
+            while (data[0].hasRemaining() || data[1].hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    throw new EOFException("truncated class data");
+                }
+            }
         } catch (NoSuchFileException e) {
-            // just ignore if file is not found, this can only occur during shutdown
+            return false;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Invalid file " + filePath + " of the native agent: " + e);
+            delete(filePath);
+            return true;
+        }
+        delete(filePath);
+        submit(className, () -> InstrumentationHandler.addDiff(agentName, className, oldBytes, newBytes));
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("truncated header");
+            }
+        }
+    }
+
+    private static void delete(Path filePath) {
+        try {
+            Files.deleteIfExists(filePath);
         } catch (IOException e) {
-            // this is not expected, print stack trace
             e.printStackTrace();
         }
     }
 
-    private String readLine(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int b;
-        while ((b = in.read()) != -1) {
-            if (b == '\n') {
-                break;
-            }
-            sb.append((char) b);
+    private static String readLine(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = start;
+        while (buffer.get(end) != '\n') {
+            end++;
         }
-        return sb.toString();
+        buffer.position(end + 1);
+        byte[] line = new byte[end - start];
+        buffer.get(start, line);
+        return new String(line, StandardCharsets.UTF_8);
     }
-}
\ No newline at end of file
+}
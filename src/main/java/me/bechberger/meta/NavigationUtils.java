@@ -25,7 +25,9 @@ public class NavigationUtils {
             "HOME_CLASS", isActive(currentPath, "/", "/help"),
             "INSTRS_CLASS", isInstrumentatorsActive(currentPath),
             "CLASSES_CLASS", isClassesActive(currentPath),
-            "ALL_CLASSES_CLASS", currentPath.startsWith("/all/")
+            "ALL_CLASSES_CLASS", currentPath.startsWith("/all/"),
+            "LIVE_CLASS", currentPath.startsWith("/live"),
+            "SEARCH_CLASS", currentPath.startsWith("/search")
         );
 
         String template = """
@@ -38,6 +40,8 @@ public class NavigationUtils {
                     <a href="/instrumentators" $INSTRS_CLASS$>Instrumentators</a>
                     <a href="/classes" $CLASSES_CLASS$>Classes</a>
                     <a href="/all/classes" $ALL_CLASSES_CLASS$>All Classes</a>
+                    <a href="/live" $LIVE_CLASS$>Live</a>
+                    <a href="/search" $SEARCH_CLASS$>Search</a>
                 </div>
                 <div class="nav-right">
                     <span class="meta-info">
@@ -294,7 +298,7 @@ public class NavigationUtils {
     /**
      * Escape HTML special characters
      */
-    private static String escapeHtml(String text) {
+    static String escapeHtml(String text) {
         return text.replace("&", "&amp;")
                    .replace("<", "&lt;")
                    .replace(">", "&gt;")
@@ -0,0 +1,147 @@
+package me.bechberger.meta;
+
+import me.bechberger.meta.runtime.BytecodeDiff;
+import me.bechberger.meta.runtime.InstrumentationHandler;
+import me.bechberger.meta.runtime.Klass;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Decompiles and diffs the versions of recorded diffs in the background while the machine is idle,
+ * so that the diff and decompilation pages are served from the {@link me.bechberger.meta.runtime.DecompilationCache}
+ * and the {@link DiffCache}
+ * <p>
+ * Diffs of instrumentators that match the watched pattern come first, then the most recent ones.
+ * The worker processes diffs in slices of {@link #WORK_SLICE_MS} and checks the system CPU load
+ * since the previous check between the slices, without its own share, so it doesn't pause while
+ * the machine is idle and waits while the load is above the threshold.
+ */
+public class Prewarmer {
+
+    private static final long WORK_SLICE_MS = 500;
+    private static final long IDLE_CHECK_INTERVAL_MS = 1000;
+
+    private record Entry(BytecodeDiff diff, boolean watched, long sequence) {
+    }
+
+    private final Pattern watchedInstrumentators;
+    private final double cpuThreshold;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>(64,
+            Comparator.comparing(Entry::watched).thenComparingLong(Entry::sequence).reversed());
+
+    /**
+     * @param watchedInstrumentators instrumentators whose diffs are processed first
+     * @param cpuThreshold           maximum system CPU load (0 to 1) to process the next diff
+     */
+    public Prewarmer(Pattern watchedInstrumentators, double cpuThreshold) {
+        this.watchedInstrumentators = watchedInstrumentators;
+        this.cpuThreshold = cpuThreshold;
+        Thread thread = new Thread(this::run, "meta-agent-prewarm");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Schedule the diff, called on the recording thread
+     */
+    public void onDiff(BytecodeDiff diff) {
+        queue.add(new Entry(diff, watchedInstrumentators.matcher(diff.instrumentator().name()).matches(),
+                sequence.incrementAndGet()));
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public long getProcessedCount() {
+        return processed.get();
+    }
+
+    private void run() {
+        LoadMeter load = new LoadMeter();
+        while (true) {
+            try {
+                Entry entry = queue.take();
+                while (load.getOtherLoad() > cpuThreshold) {
+                    Thread.sleep(IDLE_CHECK_INTERVAL_MS);
+                }
+                long sliceEnd = System.currentTimeMillis() + WORK_SLICE_MS;
+                while (entry != null) {
+                    prewarm(entry.diff);
+                    processed.incrementAndGet();
+                    entry = System.currentTimeMillis() < sliceEnd ? queue.poll() : null;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Measures the system CPU load without the CPU time of the calling thread
+     */
+    private static class LoadMeter {
+        private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private long lastTime = System.nanoTime();
+        private long lastCpuTime = getOwnCpuTime();
+
+        LoadMeter() {
+            // the first call only starts the measurement
+            getOtherLoad();
+        }
+
+        private long getOwnCpuTime() {
+            return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+        }
+
+        /**
+         * CPU load of everything but the calling thread since the last call, between 0 and 1
+         * <p>
+         * Falls back to the one minute load average if the CPU load is not available, which
+         * changes slowly, so the thread's own share is subtracted from it too.
+         */
+        double getOtherLoad() {
+            long time = System.nanoTime();
+            long cpuTime = getOwnCpuTime();
+            // in cores
+            double own = (cpuTime - lastCpuTime) / (double) Math.max(1, time - lastTime);
+            lastTime = time;
+            lastCpuTime = cpuTime;
+            int processors = os.getAvailableProcessors();
+            if (os instanceof com.sun.management.OperatingSystemMXBean sunOs) {
+                double load = sunOs.getCpuLoad();
+                if (load >= 0) {
+                    return Math.max(0, load - own / processors);
+                }
+            }
+            return Math.max(0, os.getSystemLoadAverage() - own) / processors;
+        }
+    }
+
+    /**
+     * Compute the diff that the diff pages show with the default options (Java, collapsed members),
+     * which decompiles its versions, and decompile the version that the decompile page shows
+     */
+    private static void prewarm(BytecodeDiff diff) {
+        Klass klass = diff.klass();
+        BytecodeDiffUtils.diff(Map.of(klass, new SimpleBytecodeDiff(diff.old(), diff.current())), DiffSourceMode.JAVA,
+                false, true);
+        if (InstrumentationHandler.isInstrumented(klass)) {
+            Decompilation.decompileClasses(Map.of(klass, InstrumentationHandler.getCurrentBytecode(klass)),
+                    DiffSourceMode.JAVA);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package me.bechberger.meta;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders expensive pages in the background
+ * <p>
+ * Pages are made up of sections (typically one per class to decompile or diff), which the workers
+ * compute in parallel. Pages with more sections than the threshold are rendered as a job, the request
+ * only gets a progress page. Finished pages are kept for the configured time, so that reloads and
+ * shared links are served directly from memory, the oldest finished pages are dropped earlier
+ * when all kept pages together exceed the configured size. Jobs are identified by the path and the sorted
+ * query parameters of the page. Each job also records the generation (the number of recorded diffs)
+ * it was started at: a finished job of an older generation is outdated and rendered again, a running one
+ * is still used, so that pages finish even while new diffs keep arriving.
+ */
+public class RenderJobs {
+
+    public enum State {
+        RUNNING, DONE, FAILED
+    }
+
+    public static class Job {
+        private final String id;
+        private final String url;
+        private final int total;
+        private final long generation;
+        private final long startTime = System.currentTimeMillis();
+        private final AtomicInteger done = new AtomicInteger();
+        private volatile State state = State.RUNNING;
+        private volatile long finishTime;
+        private volatile byte @Nullable [] result;
+        private volatile @Nullable String error;
+
+        private Job(String id, String url, int total, long generation) {
+            this.id = id;
+            this.url = url;
+            this.total = total;
+            this.generation = generation;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public String url() {
+            return url;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        public int done() {
+            return done.get();
+        }
+
+        public int total() {
+            return total;
+        }
+
+        public @Nullable String error() {
+            return error;
+        }
+
+        public byte @Nullable [] result() {
+            return result;
+        }
+
+        public long runtimeMs() {
+            return (state == State.RUNNING ? System.currentTimeMillis() : finishTime) - startTime;
+        }
+
+        private synchronized void fail(Throwable e) {
+            if (state == State.RUNNING) {
+                error = e.getMessage() == null ? e.toString() : e.getMessage();
+                finishTime = System.currentTimeMillis();
+                state = State.FAILED;
+            }
+        }
+
+        private synchronized void finish(byte[] result) {
+            if (state == State.RUNNING) {
+                this.result = result;
+                finishTime = System.currentTimeMillis();
+                state = State.DONE;
+            }
+        }
+    }
+
+    private final int threshold;
+    private final long ttlMs;
+    private final long maxResultBytes;
+    private final ExecutorService workers;
+    private final AtomicLong idCounter = new AtomicLong();
+    private final Map<String, Job> jobsByKey = new ConcurrentHashMap<>();
+    private final Map<String, Job> jobsById = new ConcurrentHashMap<>();
+
+    /**
+     * @param threshold pages with more sections are rendered in the background
+     * @param ttlSeconds how long finished pages are kept
+     * @param maxResultBytes maximum size of all kept pages, in bytes
+     * @param threads number of worker threads
+     */
+    public RenderJobs(int threshold, int ttlSeconds, long maxResultBytes, int threads) {
+        this.threshold = threshold;
+        this.ttlMs = ttlSeconds * 1000L;
+        this.maxResultBytes = maxResultBytes;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "meta-agent-render");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    /**
+     * Whether a page with the given number of sections should be rendered as a job
+     */
+    public boolean isExpensive(int sectionCount) {
+        return sectionCount > threshold;
+    }
+
+    /**
+     * Obtain the running or finished job for the page with the given key,
+     * starting a new one if there is none (or only a failed or outdated one)
+     *
+     * @param generation current generation of the underlying data
+     */
+    public Job submit(String key, long generation, String url, String header, List<Callable<String>> sections,
+                      String footer) {
+        removeExpired();
+        return jobsByKey.compute(key, (k, existing) -> {
+            if (existing != null && existing.state != State.FAILED && isCurrent(existing, generation)) {
+                return existing;
+            }
+            return start(url, generation, header, sections, footer);
+        });
+    }
+
+    /**
+     * Obtain the running job or the finished job of the given generation for the page with the given key,
+     * if there is one
+     */
+    public @Nullable Job getByKey(String key, long generation) {
+        removeExpired();
+        Job job = jobsByKey.get(key);
+        return job != null && isCurrent(job, generation) ? job : null;
+    }
+
+    private static boolean isCurrent(Job job, long generation) {
+        return job.state == State.RUNNING || job.generation == generation;
+    }
+
+    public @Nullable Job get(String id) {
+        removeExpired();
+        return jobsById.get(id);
+    }
+
+    /**
+     * All known jobs, most recent first
+     */
+    public List<Job> getJobs() {
+        removeExpired();
+        return jobsById.values().stream().sorted(Comparator.comparingLong((Job j) -> j.startTime).reversed()).toList();
+    }
+
+    private Job start(String url, long generation, String header, List<Callable<String>> sections, String footer) {
+        Job job = new Job(Long.toString(idCounter.incrementAndGet()), url, sections.size(), generation);
+        jobsById.put(job.id, job);
+        String[] results = new String[sections.size()];
+        Runnable assemble = () -> {
+            StringBuilder sb = new StringBuilder(header);
+            for (String result : results) {
+                sb.append(result);
+            }
+            sb.append(footer);
+            job.finish(sb.toString().getBytes(StandardCharsets.UTF_8));
+        };
+        if (sections.isEmpty()) {
+            assemble.run();
+            return job;
+        }
+        for (int i = 0; i < sections.size(); i++) {
+            int index = i;
+            workers.execute(() -> {
+                if (job.state != State.RUNNING) {
+                    return;
+                }
+                try {
+                    results[index] = sections.get(index).call();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    job.fail(e);
+                    return;
+                }
+                // the last section to finish assembles the page, the counter establishes the happens-before
+                if (job.done.incrementAndGet() == job.total) {
+                    assemble.run();
+                    removeExpired();
+                }
+            });
+        }
+        return job;
+    }
+
+    /**
+     * Size of the kept pages, in bytes
+     */
+    public long getResultSize() {
+        return jobsById.values().stream().mapToLong(RenderJobs::getResultSize).sum();
+    }
+
+    private static long getResultSize(Job job) {
+        byte[] result = job.result;
+        return result == null ? 0 : result.length;
+    }
+
+    /**
+     * Remove the finished jobs that exceeded the time to live and then the oldest finished jobs until the kept
+     * pages fit into the size limit, the most recently finished job is always kept, as its page is still
+     * being requested
+     */
+    private synchronized void removeExpired() {
+        long now = System.currentTimeMillis();
+        jobsById.values().removeIf(job -> job.state != State.RUNNING && now - job.finishTime > ttlMs);
+        List<Job> finished = jobsById.values().stream()
+                .filter(job -> job.state != State.RUNNING)
+                .sorted(Comparator.comparingLong((Job job) -> job.finishTime))
+                .toList();
+        long size = finished.stream().mapToLong(RenderJobs::getResultSize).sum();
+        for (int i = 0; i < finished.size() - 1 && size > maxResultBytes; i++) {
+            size -= getResultSize(finished.get(i));
+            jobsById.remove(finished.get(i).id);
+        }
+        jobsByKey.values().removeIf(job -> !jobsById.containsKey(job.id));
+    }
+}
@@ -0,0 +1,134 @@
+package me.bechberger.meta;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Response of a command handler
+ * <p>
+ * The body is written directly to the (chunked) response stream, so that large pages
+ * don't have to be assembled in memory before the first byte is sent.
+ */
+record Response(String contentType, Map<String, String> headers, Body body) {
+
+    static final String HTML = "text/html; charset=utf-8";
+    static final String TEXT = "text/plain; charset=utf-8";
+    static final String JSON = "application/json; charset=utf-8";
+
+    /**
+     * Writes the body of a response
+     */
+    @FunctionalInterface
+    interface Body {
+        void writeTo(OutputStream out) throws Exception;
+    }
+
+    /**
+     * Writes the body of a JSON response
+     */
+    @FunctionalInterface
+    interface JsonBody {
+        void writeTo(JsonWriter writer) throws Exception;
+    }
+
+    /**
+     * Writes a part of a section
+     */
+    @FunctionalInterface
+    interface PartWriter {
+        void write(String part) throws IOException;
+    }
+
+    /**
+     * Section that is computed in parts, each part is flushed to the client as soon as it is ready
+     * <p>
+     * {@link #call()} collects all parts, for pages that are rendered in the background.
+     */
+    @FunctionalInterface
+    interface StreamingSection extends Callable<String> {
+        void writeTo(PartWriter writer) throws Exception;
+
+        @Override
+        default String call() throws Exception {
+            StringBuilder sb = new StringBuilder();
+            writeTo(sb::append);
+            return sb.toString();
+        }
+    }
+
+    Response(String contentType, Body body) {
+        this(contentType, Map.of(), body);
+    }
+
+    Response(String response, boolean html) {
+        this(html ? HTML : TEXT, out -> out.write(response.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Copy of this response with an additional header
+     */
+    Response withHeader(String name, String value) {
+        Map<String, String> newHeaders = new HashMap<>(headers);
+        newHeaders.put(name, value);
+        return new Response(contentType, newHeaders, body);
+    }
+
+    /**
+     * Create a response whose sections are computed one after another and each
+     * flushed to the client as soon as it is ready
+     *
+     * @param header   written directly
+     * @param sections computed lazily, in order, {@link StreamingSection}s are flushed part by part
+     * @param footer   written after all sections
+     */
+    static Response sections(boolean html, String header, List<Callable<String>> sections, String footer) {
+        return new Response(html ? HTML : TEXT, out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write(header);
+            writer.flush();
+            for (Callable<String> section : sections) {
+                if (section instanceof StreamingSection streaming) {
+                    streaming.writeTo(part -> {
+                        writer.write(part);
+                        writer.flush();
+                    });
+                } else {
+                    writer.write(section.call());
+                    writer.flush();
+                }
+            }
+            writer.write(footer);
+            writer.flush();
+        });
+    }
+
+    static Response json(JsonBody body) {
+        return new Response(JSON, out -> {
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            body.writeTo(writer);
+            writer.flush();
+        });
+    }
+
+    /**
+     * Whether it makes sense to gzip the body, archives are already compressed
+     */
+    boolean isCompressible() {
+        return !contentType.equals("application/zip");
+    }
+
+    void writeTo(OutputStream out) throws Exception {
+        body.writeTo(out);
+    }
+
+    static void writeError(OutputStream out, Throwable e) throws IOException {
+        out.write(("\nError: " + e.getMessage()).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,249 @@
+package me.bechberger.meta;
+
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import me.bechberger.meta.runtime.BytecodeDiff;
+import me.bechberger.meta.runtime.BytecodeHashes;
+import me.bechberger.meta.runtime.DecompilationCache;
+import me.bechberger.meta.runtime.InstrumentationHandler;
+import me.bechberger.meta.runtime.Klass;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index over the latest bytecode of the transformed classes, the output of their last transformation
+ * <p>
+ * The tokens are the referenced classes (including the ones in descriptors), methods and fields
+ * ({@code owner.name}) and the string constants, class names use the Java notation ({@code java.util.List}).
+ * Classes are (re-)indexed on a background thread whenever a diff is recorded.
+ * Identifiers of decompiled Java sources are added when the sources are computed anyway,
+ * and when a class is (re-)indexed and the source of its current bytecode is already in the
+ * {@link DecompilationCache}.
+ */
+public class SearchIndex {
+
+    public enum MatchMode {
+        EXACT, PREFIX, SUBSTRING
+    }
+
+    /**
+     * Where the query matched
+     *
+     * @param bytecodeTokens matching constant pool tokens
+     * @param sourceTokens   matching identifiers of the decompiled source
+     */
+    public record Hit(Klass klass, SortedSet<String> bytecodeTokens, SortedSet<String> sourceTokens) {
+    }
+
+    private static final Pattern DESCRIPTOR_CLASS = Pattern.compile("L([^;<>()]+)[;<]");
+    private static final Pattern QUALIFIED_IDENTIFIER =
+            Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*(\\.[A-Za-z_$][A-Za-z0-9_$]*)*");
+
+    private static class Index {
+        private final NavigableMap<String, Set<Klass>> classesPerToken = new ConcurrentSkipListMap<>();
+        private final Map<Klass, Set<String>> tokensPerClass = new ConcurrentHashMap<>();
+
+        /**
+         * Replace the tokens of the class, only called from a single thread at a time
+         */
+        synchronized void put(Klass klass, Set<String> tokens) {
+            Set<String> old = tokensPerClass.put(klass, tokens);
+            if (old != null) {
+                for (String token : old) {
+                    if (!tokens.contains(token)) {
+                        Set<Klass> classes = classesPerToken.get(token);
+                        classes.remove(klass);
+                        if (classes.isEmpty()) {
+                            classesPerToken.remove(token);
+                        }
+                    }
+                }
+            }
+            for (String token : tokens) {
+                classesPerToken.computeIfAbsent(token, t -> ConcurrentHashMap.newKeySet()).add(klass);
+            }
+        }
+
+        synchronized void remove(Klass klass) {
+            put(klass, Set.of());
+            tokensPerClass.remove(klass);
+        }
+
+        void find(String query, MatchMode mode, Map<Klass, SortedSet<String>> result) {
+            Map<String, Set<Klass>> matching = switch (mode) {
+                case EXACT -> classesPerToken.containsKey(query) ? Map.of(query, classesPerToken.get(query)) : Map.of();
+                case PREFIX -> classesPerToken.subMap(query, true, query + Character.MAX_VALUE, false);
+                case SUBSTRING -> {
+                    Map<String, Set<Klass>> map = new HashMap<>();
+                    classesPerToken.forEach((token, classes) -> {
+                        if (token.contains(query)) {
+                            map.put(token, classes);
+                        }
+                    });
+                    yield map;
+                }
+            };
+            matching.forEach((token, classes) -> {
+                for (Klass klass : classes) {
+                    result.computeIfAbsent(klass, k -> new TreeSet<>()).add(token);
+                }
+            });
+        }
+    }
+
+    private final Index bytecodeIndex = new Index();
+    private final Index sourceIndex = new Index();
+    private final BlockingQueue<Klass> queue = new LinkedBlockingQueue<>();
+    private final Set<Klass> queued = ConcurrentHashMap.newKeySet();
+
+    public SearchIndex() {
+        Thread thread = new Thread(this::run, "meta-agent-search-index");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Schedule the class of the diff for (re-)indexing, called on the recording thread
+     */
+    public void onDiff(BytecodeDiff diff) {
+        if (queued.add(diff.klass())) {
+            queue.add(diff.klass());
+        }
+    }
+
+    /**
+     * Schedule all classes that have been transformed so far
+     */
+    public void addRecordedClasses() {
+        for (Klass klass : InstrumentationHandler.getClassDiffs().keySet()) {
+            if (queued.add(klass)) {
+                queue.add(klass);
+            }
+        }
+    }
+
+    /**
+     * Number of classes that still have to be indexed
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    public int getIndexedCount() {
+        return bytecodeIndex.tokensPerClass.size();
+    }
+
+    private void run() {
+        while (true) {
+            Klass klass;
+            try {
+                klass = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // remove before reading the bytecode, so that a later diff schedules the class again
+            queued.remove(klass);
+            try {
+                byte[] bytecode = InstrumentationHandler.getLatestBytecode(klass);
+                bytecodeIndex.put(klass, getBytecodeTokens(bytecode));
+                // the source of the current version might have been decompiled before, the indexed one belongs
+                // to an older version
+                String source = DecompilationCache.getIfInMemory(BytecodeHashes.hash(bytecode), DiffSourceMode.JAVA.param);
+                if (source != null) {
+                    sourceIndex.put(klass, getSourceTokens(source));
+                } else {
+                    sourceIndex.remove(klass);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Add the identifiers of the newly decompiled Java sources, ignored for classes whose bytecode
+     * is not the bytecode of their last transformation
+     */
+    public void addSources(Map<Klass, byte[]> bytecodePerClass, Map<Klass, String> sourcePerClass) {
+        sourcePerClass.forEach((klass, source) -> {
+            if (!InstrumentationHandler.isInstrumented(klass)
+                    || !Arrays.equals(bytecodePerClass.get(klass), InstrumentationHandler.getLatestBytecode(klass))) {
+                return;
+            }
+            sourceIndex.put(klass, getSourceTokens(source));
+        });
+    }
+
+    private static Set<String> getSourceTokens(String source) {
+        Set<String> tokens = new HashSet<>();
+        Matcher matcher = QUALIFIED_IDENTIFIER.matcher(source);
+        while (matcher.find()) {
+            tokens.add(matcher.group());
+        }
+        return tokens;
+    }
+
+    static Set<String> getBytecodeTokens(byte[] bytecode) throws IOException {
+        ClassFile classFile = new ClassFile(new DataInputStream(new ByteArrayInputStream(bytecode)));
+        ConstPool pool = classFile.getConstPool();
+        Set<String> tokens = new HashSet<>();
+        for (int i = 1; i < pool.getSize(); i++) {
+            int tag = pool.getTag(i);
+            if (tag == ConstPool.CONST_Class) {
+                tokens.add(pool.getClassInfo(i));
+            } else if (tag == ConstPool.CONST_Methodref) {
+                tokens.add(pool.getMethodrefClassName(i) + "." + pool.getMethodrefName(i));
+            } else if (tag == ConstPool.CONST_InterfaceMethodref) {
+                tokens.add(pool.getInterfaceMethodrefClassName(i) + "." + pool.getInterfaceMethodrefName(i));
+            } else if (tag == ConstPool.CONST_Fieldref) {
+                tokens.add(pool.getFieldrefClassName(i) + "." + pool.getFieldrefName(i));
+            } else if (tag == ConstPool.CONST_String) {
+                tokens.add(pool.getStringInfo(i));
+            } else if (tag == ConstPool.CONST_Utf8) {
+                // classes that are only mentioned in descriptors and signatures
+                Matcher matcher = DESCRIPTOR_CLASS.matcher(pool.getUtf8Info(i));
+                while (matcher.find()) {
+                    tokens.add(matcher.group(1).replace('/', '.'));
+                }
+            }
+            // long and double entries take two slots
+            if (tag == ConstPool.CONST_Long || tag == ConstPool.CONST_Double) {
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Find the classes whose current bytecode or decompiled source contains a matching token,
+     * internal names ({@code java/util/List}) are converted to the Java notation
+     *
+     * @return hits sorted by class name
+     */
+    public List<Hit> search(String query, MatchMode mode) {
+        String normalized = query.replace('/', '.');
+        Map<Klass, SortedSet<String>> bytecodeMatches = new HashMap<>();
+        Map<Klass, SortedSet<String>> sourceMatches = new HashMap<>();
+        for (String q : new LinkedHashSet<>(List.of(query, normalized))) {
+            bytecodeIndex.find(q, mode, bytecodeMatches);
+            sourceIndex.find(q, mode, sourceMatches);
+        }
+        Set<Klass> classes = new HashSet<>(bytecodeMatches.keySet());
+        classes.addAll(sourceMatches.keySet());
+        return classes.stream()
+                .sorted(Comparator.comparing(Klass::getName))
+                .map(k -> new Hit(k, bytecodeMatches.getOrDefault(k, Collections.emptySortedSet()),
+                        sourceMatches.getOrDefault(k, Collections.emptySortedSet())))
+                .toList();
+    }
+}
@@ -0,0 +1,104 @@
+package me.bechberger.meta;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import me.bechberger.meta.runtime.BytecodeHashes;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the static resources (CSS and JavaScript) of the web UI from an in-memory cache
+ * <p>
+ * Every resource is read from the class path once and stored together with a pre-gzipped version,
+ * clients can revalidate their copy using the strong ETag.
+ */
+public class StaticResources {
+
+    private static final Map<String, String> suffixToMime = Map.of("css", "text/css", "js", "text/javascript");
+
+    private static final String CACHE_CONTROL = "public, max-age=3600";
+
+    private record Resource(String contentType, byte[] content, byte[] gzipped, String etag) {
+    }
+
+    /**
+     * Only contains existing resources, so that requests for arbitrary names don't grow it
+     */
+    private static final Map<String, Resource> cache = new ConcurrentHashMap<>();
+
+    private static @Nullable Resource load(String name) {
+        var suffix = name.substring(name.lastIndexOf(".") + 1);
+        if (!suffixToMime.containsKey(suffix) || name.contains("/")) {
+            return null;
+        }
+        try (InputStream in = StaticResources.class.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) {
+                return null;
+            }
+            byte[] content = in.readAllBytes();
+            return new Resource(suffixToMime.get(suffix), content, gzip(content), BytecodeHashes.hash(content));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static @Nullable Resource get(String name) {
+        // misses are not stored, as computeIfAbsent ignores null values
+        return cache.computeIfAbsent(name, StaticResources::load);
+    }
+
+    static boolean acceptsGzip(HttpExchange exchange) {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        return acceptEncoding != null && acceptEncoding.contains("gzip");
+    }
+
+    public static HttpHandler handler() {
+        return exchange -> {
+            String name = exchange.getRequestURI().getPath().substring("/file/".length());
+            Resource resource = get(name);
+            if (resource == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            boolean gzip = acceptsGzip(exchange);
+            // the two encodings are different representations, so they need different strong ETags
+            String etag = "\"" + resource.etag + (gzip ? "-gzip" : "") + "\"";
+            var headers = exchange.getResponseHeaders();
+            headers.add("ETag", etag);
+            headers.add("Cache-Control", CACHE_CONTROL);
+            headers.add("Vary", "Accept-Encoding");
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null && ifNoneMatch.contains(etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            headers.add("Content-Type", resource.contentType);
+            byte[] body = resource.content;
+            if (gzip) {
+                headers.add("Content-Encoding", "gzip");
+                body = resource.gzipped;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        };
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 3);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+}
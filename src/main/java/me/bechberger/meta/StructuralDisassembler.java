@@ -0,0 +1,459 @@
+package me.bechberger.meta;
+
+import javassist.bytecode.*;
+import javassist.bytecode.annotation.Annotation;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static me.bechberger.meta.BytecodeDisassembler.*;
+
+/**
+ * Prints the structure of a class file in a normalized form that only changes where the class changes,
+ * so that diffing the output of two versions compares the classes structurally
+ * <p>
+ * Fields and methods are sorted by name and descriptor, so that moved members are not reported.
+ * Constant pool references are resolved to the referenced classes, members and values,
+ * and bytecode offsets are replaced by labels that are named after the instructions they label
+ * (like {@code L3f2a}), up to the next label. Labels are therefore independent of the position
+ * of the labelled code, so that instructions, branches and exception handlers inserted elsewhere
+ * in the method do not rename them, and an insertion only changes the lines it adds and the labels
+ * of the blocks that it is inserted into.
+ * All attributes are printed (annotations, stack map frames, bootstrap methods, ...) except for
+ * the line number tables, which change with every modified method.
+ */
+public class StructuralDisassembler {
+
+    private final ClassFile classFile;
+    private final ConstPool pool;
+    private final StringBuilder out = new StringBuilder();
+
+    private StructuralDisassembler(ClassFile classFile) {
+        this.classFile = classFile;
+        this.pool = classFile.getConstPool();
+    }
+
+    /**
+     * @throws IOException if the bytecode is not a valid class file
+     */
+    public static String disassemble(byte[] bytecode) throws IOException {
+        ClassFile classFile = new ClassFile(new DataInputStream(new ByteArrayInputStream(bytecode)));
+        return new StructuralDisassembler(classFile).disassemble();
+    }
+
+    private String disassemble() {
+        out.append("class ").append(classFile.getName()).append("\n");
+        out.append("  version: ").append(classFile.getMajorVersion()).append(".").append(classFile.getMinorVersion()).append("\n");
+        out.append("  flags: ").append(flags(classFile.getAccessFlags(), CLASS_FLAGS)).append("\n");
+        out.append("  super: ").append(classFile.getSuperclass()).append("\n");
+        for (String anInterface : classFile.getInterfaces()) {
+            out.append("  implements: ").append(anInterface).append("\n");
+        }
+        printAttributes(classFile.getAttributes(), "  ");
+        List<FieldInfo> fields = new ArrayList<>(classFile.getFields());
+        fields.sort(Comparator.comparing(BytecodeDisassembler::getKey));
+        for (FieldInfo field : fields) {
+            out.append("\n").append(getKey(field)).append("\n");
+            out.append("  flags: ").append(flags(field.getAccessFlags(), FIELD_FLAGS)).append("\n");
+            printAttributes(field.getAttributes(), "  ");
+        }
+        List<MethodInfo> methods = new ArrayList<>(classFile.getMethods());
+        methods.sort(Comparator.comparing(BytecodeDisassembler::getKey));
+        for (MethodInfo method : methods) {
+            out.append("\n").append(getKey(method)).append("\n");
+            out.append("  flags: ").append(flags(method.getAccessFlags(), METHOD_FLAGS)).append("\n");
+            printAttributes(method.getAttributes(), "  ");
+        }
+        return out.toString();
+    }
+
+    private void printAttributes(List<AttributeInfo> attributes, String indent) {
+        List<AttributeInfo> sorted = new ArrayList<>(attributes);
+        sorted.sort(Comparator.comparing(AttributeInfo::getName));
+        for (AttributeInfo attribute : sorted) {
+            if (attribute instanceof CodeAttribute code) {
+                new Code(code, indent).print();
+            } else if (!(attribute instanceof LineNumberAttribute)) {
+                printAttribute(attribute, indent, null);
+            }
+        }
+    }
+
+    /**
+     * @param labels labels of the surrounding code, for attributes that reference bytecode offsets
+     */
+    private void printAttribute(AttributeInfo attribute, String indent, Code labels) {
+        out.append(indent).append(attribute.getName()).append(":");
+        if (attribute instanceof SourceFileAttribute sourceFile) {
+            out.append(" \"").append(sourceFile.getFileName()).append("\"\n");
+        } else if (attribute instanceof SignatureAttribute signature) {
+            out.append(" ").append(signature.getSignature()).append("\n");
+        } else if (attribute instanceof ConstantAttribute constant) {
+            out.append(" ").append(constant(pool, constant.getConstantValue())).append("\n");
+        } else if (attribute instanceof ExceptionsAttribute exceptions) {
+            out.append("\n");
+            String[] names = exceptions.getExceptions();
+            for (String name : names == null ? new String[0] : names) {
+                out.append(indent).append("  ").append(name).append("\n");
+            }
+        } else if (attribute instanceof AnnotationsAttribute annotations) {
+            out.append("\n");
+            for (Annotation annotation : annotations.getAnnotations()) {
+                out.append(indent).append("  ").append(annotation).append("\n");
+            }
+        } else if (attribute instanceof ParameterAnnotationsAttribute annotations) {
+            out.append("\n");
+            Annotation[][] perParameter = annotations.getAnnotations();
+            for (int i = 0; i < perParameter.length; i++) {
+                for (Annotation annotation : perParameter[i]) {
+                    out.append(indent).append("  parameter ").append(i).append(": ").append(annotation).append("\n");
+                }
+            }
+        } else if (attribute instanceof AnnotationDefaultAttribute annotationDefault) {
+            out.append(" ").append(annotationDefault.getDefaultValue()).append("\n");
+        } else if (attribute instanceof BootstrapMethodsAttribute bootstrapMethods) {
+            out.append("\n");
+            BootstrapMethodsAttribute.BootstrapMethod[] methods = bootstrapMethods.getMethods();
+            for (int i = 0; i < methods.length; i++) {
+                out.append(indent).append("  ").append(i).append(": ").append(methodHandle(pool, methods[i].methodRef)).append("\n");
+                for (int argument : methods[i].arguments) {
+                    out.append(indent).append("    ").append(constant(pool, argument)).append("\n");
+                }
+            }
+        } else if (attribute instanceof InnerClassesAttribute innerClasses) {
+            out.append("\n");
+            for (int i = 0; i < innerClasses.tableLength(); i++) {
+                out.append(indent).append("  ").append(innerClasses.innerClass(i))
+                        .append(" outer ").append(innerClasses.outerClass(i))
+                        .append(" name ").append(innerClasses.innerName(i))
+                        .append(String.format(" flags 0x%04x", innerClasses.accessFlags(i))).append("\n");
+            }
+        } else if (attribute instanceof EnclosingMethodAttribute enclosingMethod) {
+            out.append(" ").append(enclosingMethod.className());
+            if (enclosingMethod.methodIndex() != 0) {
+                out.append(".").append(enclosingMethod.methodName()).append(":").append(enclosingMethod.methodDescriptor());
+            }
+            out.append("\n");
+        } else if (attribute instanceof NestHostAttribute nestHost) {
+            out.append(" ").append(pool.getClassInfo(nestHost.hostClassIndex())).append("\n");
+        } else if (attribute instanceof NestMembersAttribute nestMembers) {
+            out.append("\n");
+            for (int i = 0; i < nestMembers.numberOfClasses(); i++) {
+                out.append(indent).append("  ").append(pool.getClassInfo(nestMembers.memberClass(i))).append("\n");
+            }
+        } else if (attribute instanceof MethodParametersAttribute parameters) {
+            out.append("\n");
+            for (int i = 0; i < parameters.size(); i++) {
+                out.append(indent).append("  ").append(parameters.name(i) == 0 ? "<unnamed>" : parameters.parameterName(i))
+                        .append(String.format(" flags 0x%04x", parameters.accessFlags(i))).append("\n");
+            }
+        } else if (attribute instanceof LocalVariableAttribute variables && labels != null) {
+            out.append("\n");
+            for (int i = 0; i < variables.tableLength(); i++) {
+                out.append(indent).append("  ").append(labels.label(variables.startPc(i))).append("-")
+                        .append(labels.label(variables.startPc(i) + variables.codeLength(i)))
+                        .append(" slot ").append(variables.index(i)).append(" ").append(variables.variableName(i))
+                        .append(" ").append(variables.descriptor(i)).append("\n");
+            }
+        } else if (attribute instanceof StackMapTable stackMap && labels != null) {
+            out.append("\n");
+            labels.printFrames(stackMap, indent + "  ");
+        } else {
+            // unknown attributes might contain constant pool indices, so they can only be compared by length
+            out.append(" length = ").append(attribute.length()).append("\n");
+        }
+    }
+
+    /**
+     * Prints a code attribute with labels instead of bytecode offsets
+     */
+    private class Code {
+        private final CodeAttribute code;
+        private final String indent;
+        private final TreeMap<Integer, String> labels = new TreeMap<>();
+        /**
+         * Whether the instructions are printed to name the labels, references to labels are then masked
+         */
+        private boolean naming = false;
+
+        Code(CodeAttribute code, String indent) {
+            this.code = code;
+            this.indent = indent;
+        }
+
+        String label(int offset) {
+            if (naming) {
+                return "L";
+            }
+            return labels.getOrDefault(offset, "@" + offset);
+        }
+
+        void print() {
+            out.append(indent).append("Code: stack=").append(code.getMaxStack()).append(", locals=")
+                    .append(code.getMaxLocals()).append("\n");
+            try {
+                collectLabels();
+                CodeIterator iterator = code.iterator();
+                while (iterator.hasNext()) {
+                    int pos = iterator.next();
+                    printLabel(pos);
+                    out.append(indent).append("    ").append(instruction(iterator, pos)).append("\n");
+                }
+                printLabel(code.getCodeLength());
+            } catch (BadBytecode e) {
+                out.append(indent).append("  // invalid bytecode: ").append(e.getMessage()).append("\n");
+                return;
+            }
+            ExceptionTable table = code.getExceptionTable();
+            for (int i = 0; i < table.size(); i++) {
+                int catchType = table.catchType(i);
+                out.append(indent).append("  try ").append(label(table.startPc(i))).append("-").append(label(table.endPc(i)))
+                        .append(" catch ").append(catchType == 0 ? "any" : pool.getClassInfo(catchType))
+                        .append(" ").append(label(table.handlerPc(i))).append("\n");
+            }
+            List<AttributeInfo> attributes = new ArrayList<>(code.getAttributes());
+            attributes.sort(Comparator.comparing(AttributeInfo::getName));
+            for (AttributeInfo attribute : attributes) {
+                if (!(attribute instanceof LineNumberAttribute)) {
+                    printAttribute(attribute, indent + "  ", this);
+                }
+            }
+        }
+
+        private void printLabel(int pos) {
+            String label = labels.get(pos);
+            if (label != null) {
+                out.append(indent).append("  ").append(label).append(":\n");
+            }
+        }
+
+        /**
+         * Collect all offsets that are referenced by instructions and attributes and name them
+         * after the instructions that follow them
+         */
+        private void collectLabels() throws BadBytecode {
+            Set<Integer> offsets = new TreeSet<>();
+            CodeIterator iterator = code.iterator();
+            while (iterator.hasNext()) {
+                int pos = iterator.next();
+                offsets.addAll(getTargets(iterator, pos));
+            }
+            ExceptionTable table = code.getExceptionTable();
+            for (int i = 0; i < table.size(); i++) {
+                offsets.add(table.startPc(i));
+                offsets.add(table.endPc(i));
+                offsets.add(table.handlerPc(i));
+            }
+            for (AttributeInfo attribute : code.getAttributes()) {
+                if (attribute instanceof LocalVariableAttribute variables) {
+                    for (int i = 0; i < variables.tableLength(); i++) {
+                        offsets.add(variables.startPc(i));
+                        offsets.add(variables.startPc(i) + variables.codeLength(i));
+                    }
+                } else if (attribute instanceof StackMapTable stackMap) {
+                    new FrameWalker(stackMap, offsets, null).parse();
+                }
+            }
+            nameLabels(offsets);
+        }
+
+        /**
+         * Name every label after a hash of the instructions up to the next label (with the referenced labels
+         * masked, as their names are not known yet), equal blocks are numbered in order
+         */
+        private void nameLabels(Set<Integer> offsets) throws BadBytecode {
+            Map<Integer, StringBuilder> blocks = new TreeMap<>();
+            offsets.forEach(offset -> blocks.put(offset, new StringBuilder()));
+            StringBuilder block = null;
+            naming = true;
+            try {
+                CodeIterator iterator = code.iterator();
+                while (iterator.hasNext()) {
+                    int pos = iterator.next();
+                    block = blocks.getOrDefault(pos, block);
+                    if (block != null) {
+                        block.append(instruction(iterator, pos)).append("\n");
+                    }
+                }
+            } finally {
+                naming = false;
+            }
+            Map<String, Integer> counts = new HashMap<>();
+            blocks.forEach((offset, text) -> {
+                String name;
+                if (offset == code.getCodeLength()) {
+                    name = "Lend";
+                } else {
+                    int hash = text.toString().hashCode();
+                    name = String.format("L%04x", (hash ^ (hash >>> 16)) & 0xffff);
+                }
+                int count = counts.merge(name, 1, Integer::sum);
+                labels.put(offset, count == 1 ? name : name + "_" + count);
+            });
+        }
+
+        private List<Integer> getTargets(CodeIterator iterator, int pos) {
+            int opcode = iterator.byteAt(pos);
+            if ((opcode >= Opcode.IFEQ && opcode <= Opcode.JSR) || opcode == Opcode.IFNULL || opcode == Opcode.IFNONNULL) {
+                return List.of(pos + iterator.s16bitAt(pos + 1));
+            }
+            if (opcode == Opcode.GOTO_W || opcode == Opcode.JSR_W) {
+                return List.of(pos + iterator.s32bitAt(pos + 1));
+            }
+            if (opcode == Opcode.TABLESWITCH || opcode == Opcode.LOOKUPSWITCH) {
+                List<Integer> targets = new ArrayList<>();
+                int index = (pos & ~3) + 4;
+                targets.add(pos + iterator.s32bitAt(index));
+                if (opcode == Opcode.TABLESWITCH) {
+                    int low = iterator.s32bitAt(index + 4);
+                    int high = iterator.s32bitAt(index + 8);
+                    for (int i = 0; i <= high - low; i++) {
+                        targets.add(pos + iterator.s32bitAt(index + 12 + i * 4));
+                    }
+                } else {
+                    int pairs = iterator.s32bitAt(index + 4);
+                    for (int i = 0; i < pairs; i++) {
+                        targets.add(pos + iterator.s32bitAt(index + 12 + i * 8));
+                    }
+                }
+                return targets;
+            }
+            return List.of();
+        }
+
+        private String instruction(CodeIterator iterator, int pos) {
+            int opcode = iterator.byteAt(pos);
+            String mnemonic = Mnemonic.OPCODE[opcode];
+            switch (opcode) {
+                case Opcode.TABLESWITCH, Opcode.LOOKUPSWITCH -> {
+                    List<Integer> targets = getTargets(iterator, pos);
+                    int index = (pos & ~3) + 4;
+                    StringBuilder sb = new StringBuilder(mnemonic).append(" {");
+                    for (int i = 1; i < targets.size(); i++) {
+                        int key = opcode == Opcode.TABLESWITCH ? iterator.s32bitAt(index + 4) + i - 1
+                                : iterator.s32bitAt(index + 8 + (i - 1) * 8);
+                        sb.append(" ").append(key).append(": ").append(label(targets.get(i))).append(";");
+                    }
+                    return sb.append(" default: ").append(label(targets.get(0))).append(" }").toString();
+                }
+                case Opcode.GETSTATIC, Opcode.PUTSTATIC, Opcode.GETFIELD, Opcode.PUTFIELD,
+                        Opcode.INVOKEVIRTUAL, Opcode.INVOKESPECIAL, Opcode.INVOKESTATIC, Opcode.INVOKEINTERFACE -> {
+                    return mnemonic + " " + member(pool, iterator.u16bitAt(pos + 1));
+                }
+                case Opcode.INVOKEDYNAMIC, Opcode.LDC_W, Opcode.LDC2_W -> {
+                    return mnemonic + " " + constant(pool, iterator.u16bitAt(pos + 1));
+                }
+                case Opcode.LDC -> {
+                    return mnemonic + " " + constant(pool, iterator.byteAt(pos + 1));
+                }
+                case Opcode.NEW, Opcode.ANEWARRAY, Opcode.CHECKCAST, Opcode.INSTANCEOF -> {
+                    return mnemonic + " " + pool.getClassInfo(iterator.u16bitAt(pos + 1));
+                }
+                case Opcode.MULTIANEWARRAY -> {
+                    return mnemonic + " " + pool.getClassInfo(iterator.u16bitAt(pos + 1)) + " " + iterator.byteAt(pos + 3);
+                }
+                default -> {
+                    List<Integer> targets = getTargets(iterator, pos);
+                    if (!targets.isEmpty()) {
+                        return mnemonic + " " + label(targets.get(0));
+                    }
+                    // the remaining instructions only have immediate operands
+                    return InstructionPrinter.instructionString(iterator, pos, pool);
+                }
+            }
+        }
+
+        void printFrames(StackMapTable stackMap, String frameIndent) {
+            try {
+                new FrameWalker(stackMap, null, frameIndent).parse();
+            } catch (BadBytecode e) {
+                out.append(frameIndent).append("// invalid stack map: ").append(e.getMessage()).append("\n");
+            }
+        }
+
+        /**
+         * Collects the offsets of the stack map frames or prints them, absolute offsets are computed
+         * from the offset deltas
+         */
+        private class FrameWalker extends StackMapTable.Walker {
+            private final Set<Integer> offsets;
+            private final String frameIndent;
+            private int offset = -1;
+
+            /**
+             * @param offsets     set to collect the offsets into, or {@code null} to print the frames
+             * @param frameIndent indentation of the printed frames
+             */
+            FrameWalker(StackMapTable stackMap, Set<Integer> offsets, String frameIndent) {
+                super(stackMap);
+                this.offsets = offsets;
+                this.frameIndent = frameIndent;
+            }
+
+            private void frame(int offsetDelta, String description) {
+                offset += offsetDelta + 1;
+                if (offsets != null) {
+                    offsets.add(offset);
+                } else {
+                    out.append(frameIndent).append(label(offset)).append(": ").append(description).append("\n");
+                }
+            }
+
+            private String types(int[] tags, int[] data) {
+                StringJoiner joiner = new StringJoiner(", ", "[", "]");
+                for (int i = 0; i < tags.length; i++) {
+                    joiner.add(type(tags[i], data[i]));
+                }
+                return joiner.toString();
+            }
+
+            private String type(int tag, int data) {
+                return switch (tag) {
+                    case StackMapTable.TOP -> "top";
+                    case StackMapTable.INTEGER -> "int";
+                    case StackMapTable.FLOAT -> "float";
+                    case StackMapTable.DOUBLE -> "double";
+                    case StackMapTable.LONG -> "long";
+                    case StackMapTable.NULL -> "null";
+                    case StackMapTable.THIS -> "uninitialized_this";
+                    case StackMapTable.OBJECT -> pool.getClassInfo(data);
+                    case StackMapTable.UNINIT -> {
+                        if (offsets != null) {
+                            offsets.add(data);
+                        }
+                        yield "uninitialized " + label(data);
+                    }
+                    default -> "<tag " + tag + ">";
+                };
+            }
+
+            @Override
+            public void sameFrame(int pos, int offsetDelta) {
+                frame(offsetDelta, "same");
+            }
+
+            @Override
+            public void sameLocals(int pos, int offsetDelta, int stackTag, int stackData) {
+                frame(offsetDelta, "same_locals stack " + types(new int[]{stackTag}, new int[]{stackData}));
+            }
+
+            @Override
+            public void chopFrame(int pos, int offsetDelta, int k) {
+                frame(offsetDelta, "chop " + k);
+            }
+
+            @Override
+            public void appendFrame(int pos, int offsetDelta, int[] tags, int[] data) {
+                frame(offsetDelta, "append " + types(tags, data));
+            }
+
+            @Override
+            public void fullFrame(int pos, int offsetDelta, int[] localTags, int[] localData, int[] stackTags,
+                                  int[] stackData) {
+                frame(offsetDelta, "full locals " + types(localTags, localData) + " stack " + types(stackTags, stackData));
+            }
+        }
+    }
+}
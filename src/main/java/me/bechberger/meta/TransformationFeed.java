@@ -0,0 +1,209 @@
+package me.bechberger.meta;
+
+import com.sun.net.httpserver.HttpExchange;
+import me.bechberger.meta.runtime.BytecodeDiff;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Live feed of the recorded transformations, served as server-sent events
+ * <p>
+ * Recording a diff only stores a small event in a ring buffer and offers it to the bounded queue
+ * of every subscriber, events for subscribers that don't keep up are dropped (and counted),
+ * so slow clients never block the recording.
+ * New subscribers first get the events from the ring buffer that they haven't seen yet.
+ */
+public class TransformationFeed {
+
+    private static final long KEEP_ALIVE_MS = 15_000;
+
+    public record Event(long id, long timestamp, String instrumentator, String className, int oldSize, int newSize) {
+    }
+
+    private class Subscriber {
+        private final Pattern classPattern;
+        private final Pattern instrPattern;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(clientQueueSize);
+        private final AtomicLong dropped = new AtomicLong();
+
+        Subscriber(Pattern classPattern, Pattern instrPattern) {
+            this.classPattern = classPattern;
+            this.instrPattern = instrPattern;
+        }
+
+        boolean matches(Event event) {
+            return classPattern.matcher(event.className).matches() && instrPattern.matcher(event.instrumentator).matches();
+        }
+
+        void offer(Event event) {
+            if (matches(event) && !queue.offer(event)) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private final Event[] ring;
+    private final int clientQueueSize;
+    private long nextId = 0;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    public TransformationFeed(int bufferSize, int clientQueueSize) {
+        this.ring = new Event[bufferSize];
+        this.clientQueueSize = clientQueueSize;
+    }
+
+    /**
+     * Record the diff, called for every diff on the recording thread
+     */
+    public void publish(BytecodeDiff diff) {
+        Event event;
+        synchronized (ring) {
+            event = new Event(nextId, System.currentTimeMillis(), diff.instrumentator().name(),
+                    diff.klass().getName(), diff.old().length, diff.current().length);
+            ring[(int) (nextId % ring.length)] = event;
+            nextId++;
+            // diffs are recorded on multiple threads, offering under the lock keeps the queues ordered by id,
+            // which the subscribers rely on to skip the events that they already got from the ring buffer
+            for (Subscriber subscriber : subscribers) {
+                subscriber.offer(event);
+            }
+        }
+    }
+
+    /**
+     * Events in the ring buffer with an id larger than the passed one
+     */
+    private List<Event> getEventsAfter(long lastId) {
+        synchronized (ring) {
+            List<Event> events = new ArrayList<>();
+            for (long id = Math.max(lastId + 1, nextId - ring.length); id < nextId; id++) {
+                events.add(ring[(int) (id % ring.length)]);
+            }
+            return events;
+        }
+    }
+
+    /**
+     * Stream the events matching the {@code pattern} (class) and {@code instr} parameters
+     * <p>
+     * Resumes after the {@code Last-Event-ID} header (sent by the browser when reconnecting)
+     * or the {@code since} parameter, starts with the buffered events otherwise
+     */
+    Response events(HttpExchange exchange) {
+        Map<String, String> params = MainLoop.getURLParameters(exchange);
+        Pattern instrPattern = params.containsKey("instr") ? MainLoop.getMatchPattern(params.get("instr")) : Pattern.compile(".*");
+        Subscriber subscriber = new Subscriber(MainLoop.getMatchPattern(exchange), instrPattern);
+        Long lastEventId = parseId(exchange.getRequestHeaders().getFirst("Last-Event-ID"));
+        Long since = parseId(params.get("since"));
+        long lastId = lastEventId != null ? lastEventId : since != null ? since : -1;
+        return new Response("text/event-stream; charset=utf-8", out -> {
+            subscribers.add(subscriber);
+            try {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                long lastSent = lastId;
+                for (Event event : getEventsAfter(lastId)) {
+                    if (subscriber.matches(event)) {
+                        writeEvent(writer, event);
+                        lastSent = event.id;
+                    }
+                }
+                writer.flush();
+                long reportedDrops = 0;
+                while (true) {
+                    Event event = subscriber.queue.poll(KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+                    long dropped = subscriber.dropped.get();
+                    if (dropped != reportedDrops) {
+                        writer.write("event: dropped\ndata: " + dropped + "\n\n");
+                        reportedDrops = dropped;
+                    }
+                    if (event == null) {
+                        // comment lines keep the connection open and detect closed connections
+                        writer.write(": keep-alive\n\n");
+                    } else if (event.id > lastSent) {
+                        // skip events that were already sent from the ring buffer
+                        writeEvent(writer, event);
+                        lastSent = event.id;
+                    }
+                    writer.flush();
+                }
+            } finally {
+                subscribers.remove(subscriber);
+            }
+        }).withHeader("Cache-Control", "no-cache");
+    }
+
+    /**
+     * @return the event id or {@code null} if the value is missing or not a number
+     */
+    private static @Nullable Long parseId(@Nullable String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void writeEvent(Writer writer, Event event) throws IOException {
+        StringWriter data = new StringWriter();
+        new JsonWriter(data).beginObject()
+                .field("id", event.id)
+                .field("timestamp", event.timestamp)
+                .field("instrumentator", event.instrumentator)
+                .field("class", event.className)
+                .field("oldSize", event.oldSize)
+                .field("newSize", event.newSize)
+                .endObject();
+        writer.write("id: " + event.id + "\nevent: transformation\ndata: " + data + "\n\n");
+    }
+
+    /**
+     * Page that shows the events of the feed as they arrive
+     */
+    static Response livePage(HttpExchange exchange, String header) {
+        @Nullable String query = exchange.getRequestURI().getRawQuery();
+        // passed via an attribute, so that the query is never interpreted as script
+        return new Response(header
+                + "<h1>Live Transformations</h1>"
+                + "<table id='events' data-query='" + NavigationUtils.escapeHtml(query == null ? "" : "?" + query) + "'>"
+                + "<tr><th>Time</th><th>Instrumentator</th><th>Class</th><th>Old size</th><th>New size</th></tr></table>"
+                + """
+                <script>
+                var table = document.getElementById('events');
+                var source = new EventSource('/events' + table.dataset.query);
+                source.addEventListener('transformation', function(e) {
+                    var event = JSON.parse(e.data);
+                    var row = table.insertRow(1);
+                    row.insertCell().textContent = new Date(event.timestamp).toLocaleTimeString();
+                    row.insertCell().textContent = event.instrumentator;
+                    var link = document.createElement('a');
+                    link.href = '/full-diff/class?pattern=' + encodeURIComponent(event.class);
+                    link.textContent = event.class;
+                    row.insertCell().appendChild(link);
+                    row.insertCell().textContent = event.oldSize;
+                    row.insertCell().textContent = event.newSize;
+                });
+                source.addEventListener('dropped', function(e) {
+                    console.warn('Dropped ' + e.data + ' events');
+                });
+                </script>
+                """
+                + "</div></body></html>", true);
+    }
+}
@@ -0,0 +1,508 @@
+package me.bechberger.meta;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * In-memory line diff that produces the same unified format as GNU {@code diff -U<context>}
+ * on two directories
+ * <p>
+ * Uses the linear space variant of Myers' O(ND) algorithm. Lines are never copied: they are
+ * referenced by their offsets into the texts and interned into integer ids, so that the algorithm
+ * only compares ints and the output is appended directly from the texts.
+ * <p>
+ * Like the "too expensive" heuristic of GNU diff, each bisection gives up after about the square root
+ * of the number of lines (at least {@value Myers#MIN_COST}) edit steps and splits at the furthest
+ * reaching path instead, so very different texts get a valid but not minimal diff in reasonable time.
+ */
+public class UnifiedDiff {
+
+    /**
+     * A file of the old and the new directory
+     *
+     * @param name    file name, relative to the directories
+     * @param old     content in the old directory
+     * @param current content in the new directory
+     */
+    public record File(String name, String old, String current) {
+    }
+
+    /**
+     * Lines of a text, line {@code i} spans {@code starts[i]} to {@code starts[i + 1]}, including the line break
+     */
+    private static class Lines {
+        private final String text;
+        private final int[] starts;
+        private final int count;
+
+        Lines(String text) {
+            this.text = text;
+            int lineBreaks = 0;
+            for (int i = text.indexOf('\n'); i != -1; i = text.indexOf('\n', i + 1)) {
+                lineBreaks++;
+            }
+            boolean endsWithLineBreak = text.isEmpty() || text.charAt(text.length() - 1) == '\n';
+            this.count = lineBreaks + (endsWithLineBreak ? 0 : 1);
+            this.starts = new int[count + 1];
+            int line = 1;
+            for (int i = text.indexOf('\n'); i != -1 && line < count; i = text.indexOf('\n', i + 1)) {
+                starts[line++] = i + 1;
+            }
+            starts[count] = text.length();
+        }
+
+        int length(int line) {
+            return starts[line + 1] - starts[line];
+        }
+
+        boolean hasLineBreak(int line) {
+            return starts[line + 1] > starts[line] && text.charAt(starts[line + 1] - 1) == '\n';
+        }
+
+        int hash(int line) {
+            int h = 0;
+            for (int i = starts[line]; i < starts[line + 1]; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            return h;
+        }
+
+        boolean equals(int line, Lines other, int otherLine) {
+            return length(line) == other.length(otherLine)
+                    && text.regionMatches(starts[line], other.text, other.starts[otherLine], length(line));
+        }
+    }
+
+    /**
+     * Maps the lines of both texts to ids, equal lines get the same id
+     */
+    private static class LineTable {
+        private final Lines old;
+        private final Lines current;
+        /** open addressing table of {@code id + 1}, 0 marks an empty slot */
+        private final int[] slots;
+        /** line of the first occurrence per id, negative ({@code -line - 1}) for lines of the new text */
+        private final int[] firstLines;
+        private int ids = 0;
+
+        LineTable(Lines old, Lines current) {
+            this.old = old;
+            this.current = current;
+            this.slots = new int[Integer.highestOneBit(Math.max(1, old.count + current.count)) * 4];
+            this.firstLines = new int[old.count + current.count];
+        }
+
+        int[] intern(Lines lines) {
+            int[] result = new int[lines.count];
+            int mask = slots.length - 1;
+            for (int line = 0; line < lines.count; line++) {
+                int slot = spread(lines.hash(line)) & mask;
+                while (true) {
+                    int id = slots[slot] - 1;
+                    if (id == -1) {
+                        id = ids++;
+                        slots[slot] = id + 1;
+                        firstLines[id] = lines == old ? line : -line - 1;
+                        result[line] = id;
+                        break;
+                    }
+                    int first = firstLines[id];
+                    boolean equal = first >= 0 ? lines.equals(line, old, first) : lines.equals(line, current, -first - 1);
+                    if (equal) {
+                        result[line] = id;
+                        break;
+                    }
+                    slot = (slot + 1) & mask;
+                }
+            }
+            return result;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * Computes which lines are deleted from the old and inserted into the new text
+     */
+    private static class Myers {
+        static final int MIN_COST = 256;
+
+        private final int[] a;
+        private final int[] b;
+        private final boolean[] deleted;
+        private final boolean[] inserted;
+        /** furthest reaching paths per diagonal, reused by all bisections */
+        private final int[] forward;
+        private final int[] backward;
+        /** number of edit steps after which a bisection takes the furthest reaching path as split */
+        private final int maxCost;
+
+        Myers(int[] a, int[] b) {
+            this.a = a;
+            this.b = b;
+            this.deleted = new boolean[a.length];
+            this.inserted = new boolean[b.length];
+            int size = 2 * ((a.length + b.length + 1) / 2) + 2;
+            this.forward = new int[size];
+            this.backward = new int[size];
+            this.maxCost = Math.max(MIN_COST, (int) Math.sqrt(a.length + b.length));
+        }
+
+        void compare(int aStart, int aEnd, int bStart, int bEnd) {
+            while (true) {
+                while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) {
+                    aStart++;
+                    bStart++;
+                }
+                while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) {
+                    aEnd--;
+                    bEnd--;
+                }
+                if (aStart == aEnd || bStart == bEnd) {
+                    Arrays.fill(deleted, aStart, aEnd, true);
+                    Arrays.fill(inserted, bStart, bEnd, true);
+                    return;
+                }
+                long split = bisect(aStart, aEnd, bStart, bEnd);
+                if (split == -1) {
+                    Arrays.fill(deleted, aStart, aEnd, true);
+                    Arrays.fill(inserted, bStart, bEnd, true);
+                    return;
+                }
+                int x = aStart + (int) (split >>> 32);
+                int y = bStart + (int) split;
+                // recurse into the smaller half and loop on the larger one, the splits of expensive
+                // comparisons are close to one end, which would otherwise make the recursion deep
+                if (x - aStart + y - bStart < aEnd - x + bEnd - y) {
+                    compare(aStart, x, bStart, y);
+                    aStart = x;
+                    bStart = y;
+                } else {
+                    compare(x, aEnd, y, bEnd);
+                    aEnd = x;
+                    bEnd = y;
+                }
+            }
+        }
+
+        /**
+         * Slide runs of changes over equal lines, like GNU diff, so that adjacent runs merge and deletions
+         * line up with insertions
+         */
+        void shiftBoundaries() {
+            boolean[] paddedDeleted = pad(deleted);
+            boolean[] paddedInserted = pad(inserted);
+            shiftBoundaries(a, paddedDeleted, paddedInserted);
+            shiftBoundaries(b, paddedInserted, paddedDeleted);
+            System.arraycopy(paddedDeleted, 1, deleted, 0, deleted.length);
+            System.arraycopy(paddedInserted, 1, inserted, 0, inserted.length);
+        }
+
+        private static boolean[] pad(boolean[] changed) {
+            boolean[] padded = new boolean[changed.length + 2];
+            System.arraycopy(changed, 0, padded, 1, changed.length);
+            return padded;
+        }
+
+        /**
+         * @param changed      changed lines of the file, with an unchanged line before and after
+         * @param otherChanged changed lines of the other file, padded the same way
+         */
+        private static void shiftBoundaries(int[] ids, boolean[] changed, boolean[] otherChanged) {
+            int end = ids.length + 1;
+            int i = 1;
+            int j = 1;
+            while (true) {
+                // find the next run of changes and the corresponding position in the other file
+                while (i < end && !changed[i]) {
+                    while (otherChanged[j++]) {
+                    }
+                    i++;
+                }
+                if (i == end) {
+                    return;
+                }
+                int start = i;
+                while (changed[++i]) {
+                }
+                // the run of the other file at the corresponding position has to be skipped too
+                while (otherChanged[j]) {
+                    j++;
+                }
+                int runLength;
+                int corresponding;
+                do {
+                    runLength = i - start;
+                    // move the run up while the previous unchanged line equals the last changed one
+                    while (start > 1 && ids[start - 2] == ids[i - 2]) {
+                        changed[--start] = true;
+                        changed[--i] = false;
+                        while (changed[start - 1]) {
+                            start--;
+                        }
+                        while (otherChanged[--j]) {
+                        }
+                    }
+                    // the last end of the run that is next to a run of changes in the other file
+                    corresponding = otherChanged[j - 1] ? i : end;
+                    // move the run down while the first changed line equals the next unchanged one
+                    while (i != end && ids[start - 1] == ids[i - 1]) {
+                        changed[start++] = false;
+                        changed[i++] = true;
+                        while (changed[i]) {
+                            i++;
+                        }
+                        while (otherChanged[++j]) {
+                            corresponding = i;
+                        }
+                    }
+                } while (runLength != i - start);
+                // move the merged run back next to the run of changes in the other file
+                while (corresponding < i) {
+                    changed[--start] = true;
+                    changed[--i] = false;
+                    while (otherChanged[--j]) {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Find the middle snake of the shortest edit script
+         *
+         * @return the split point relative to the starts, x in the upper and y in the lower 32 bits,
+         * or -1 if the ranges have no line in common
+         */
+        private long bisect(int aStart, int aEnd, int bStart, int bEnd) {
+            int n = aEnd - aStart;
+            int m = bEnd - bStart;
+            int maxD = (n + m + 1) / 2;
+            int offset = maxD;
+            // only the diagonals that can be reached before the cost limit are used
+            int lowest = offset - Math.min(maxD, maxCost + 1);
+            int highest = offset + Math.min(maxD, maxCost + 1);
+            Arrays.fill(forward, lowest, highest + 2, -1);
+            Arrays.fill(backward, lowest, highest + 2, -1);
+            forward[offset + 1] = 0;
+            backward[offset + 1] = 0;
+            int delta = n - m;
+            // the paths overlap first in the forward pass if delta is odd
+            boolean front = (delta & 1) != 0;
+            int kForwardStart = 0;
+            int kForwardEnd = 0;
+            int kBackwardStart = 0;
+            int kBackwardEnd = 0;
+            for (int d = 0; d < maxD; d++) {
+                for (int k = -d + kForwardStart; k <= d - kForwardEnd; k += 2) {
+                    int kOffset = offset + k;
+                    int x = k == -d || (k != d && forward[kOffset - 1] < forward[kOffset + 1])
+                            ? forward[kOffset + 1] : forward[kOffset - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a[aStart + x] == b[bStart + y]) {
+                        x++;
+                        y++;
+                    }
+                    forward[kOffset] = x;
+                    if (x > n) {
+                        kForwardEnd += 2;
+                    } else if (y > m) {
+                        kForwardStart += 2;
+                    } else if (front) {
+                        int backwardOffset = offset + delta - k;
+                        if (backwardOffset >= lowest && backwardOffset <= highest && backward[backwardOffset] != -1
+                                && x >= n - backward[backwardOffset]) {
+                            return ((long) x << 32) | y;
+                        }
+                    }
+                }
+                for (int k = -d + kBackwardStart; k <= d - kBackwardEnd; k += 2) {
+                    int kOffset = offset + k;
+                    int x = k == -d || (k != d && backward[kOffset - 1] < backward[kOffset + 1])
+                            ? backward[kOffset + 1] : backward[kOffset - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a[aEnd - 1 - x] == b[bEnd - 1 - y]) {
+                        x++;
+                        y++;
+                    }
+                    backward[kOffset] = x;
+                    if (x > n) {
+                        kBackwardEnd += 2;
+                    } else if (y > m) {
+                        kBackwardStart += 2;
+                    } else if (!front) {
+                        int forwardOffset = offset + delta - k;
+                        if (forwardOffset >= lowest && forwardOffset <= highest && forward[forwardOffset] != -1) {
+                            int forwardX = forward[forwardOffset];
+                            int forwardY = offset + forwardX - forwardOffset;
+                            if (forwardX >= n - x) {
+                                return ((long) forwardX << 32) | forwardY;
+                            }
+                        }
+                    }
+                }
+                if (d >= maxCost) {
+                    return furthestReaching(n, m, offset, d);
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * The end of the forward or start of the backward path that got furthest after {@code d} steps,
+         * or -1 if no path got anywhere
+         */
+        private long furthestReaching(int n, int m, int offset, int d) {
+            long best = -1;
+            int bestProgress = 0;
+            for (int k = -d; k <= d; k += 2) {
+                int x = forward[offset + k];
+                int y = x - k;
+                if (x >= 0 && x <= n && y >= 0 && y <= m && x + y > bestProgress && x + y < n + m) {
+                    best = ((long) x << 32) | y;
+                    bestProgress = x + y;
+                }
+                x = backward[offset + k];
+                y = x - k;
+                if (x >= 0 && x <= n && y >= 0 && y <= m && x + y > bestProgress && x + y < n + m) {
+                    best = ((long) (n - x) << 32) | (m - y);
+                    bestProgress = x + y;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Diff the files in parallel, files without changes are omitted
+     *
+     * @param files   files, the output is sorted by name
+     * @param context number of unchanged lines around each change
+     * @return the output of {@code diff -U<context> old new}, without time stamps and the trailing line break
+     */
+    public static String diff(List<File> files, int context) {
+        return join(files.stream()
+                .sorted(Comparator.comparing(File::name))
+                .toList()
+                .parallelStream()
+                .map(f -> diff(f, context))
+                .toList());
+    }
+
+    /**
+     * Combine the diffs of single files, which have to be sorted by file name, into the output of a directory diff
+     */
+    public static String join(List<String> fileDiffs) {
+        String result = String.join("", fileDiffs);
+        return result.endsWith("\n") ? result.substring(0, result.length() - 1) : result;
+    }
+
+    /**
+     * @return the unified diff of the file, with file header and trailing line break,
+     * or an empty string if both versions are equal
+     */
+    public static String diff(File file, int context) {
+        if (file.old().equals(file.current())) {
+            return "";
+        }
+        Lines old = new Lines(file.old());
+        Lines current = new Lines(file.current());
+        LineTable table = new LineTable(old, current);
+        Myers myers = new Myers(table.intern(old), table.intern(current));
+        myers.compare(0, old.count, 0, current.count);
+        myers.shiftBoundaries();
+        StringBuilder sb = new StringBuilder(Math.max(file.old().length(), file.current().length()) / 4);
+        sb.append("diff -U").append(context).append(" old/").append(file.name()).append(" new/").append(file.name()).append('\n');
+        sb.append("--- old/").append(file.name()).append('\n');
+        sb.append("+++ new/").append(file.name()).append('\n');
+        appendHunks(sb, old, current, myers.deleted, myers.inserted, context);
+        return sb.toString();
+    }
+
+    /**
+     * Append the hunks, changes that are at most {@code 2 * context} lines apart share a hunk
+     */
+    private static void appendHunks(StringBuilder sb, Lines old, Lines current, boolean[] deleted, boolean[] inserted,
+                                    int context) {
+        int i = 0;
+        int j = 0;
+        while (true) {
+            // find the start of the next change, the unchanged lines are in sync
+            while (i < old.count && j < current.count && !deleted[i] && !inserted[j]) {
+                i++;
+                j++;
+            }
+            if (i == old.count && j == current.count) {
+                return;
+            }
+            int hunkOldStart = Math.max(0, i - context);
+            int hunkNewStart = j - (i - hunkOldStart);
+            // find the end of the hunk, the end of the last change that is followed by more than 2 * context unchanged lines
+            int oldEnd = i;
+            int newEnd = j;
+            while (true) {
+                while (oldEnd < old.count && deleted[oldEnd]) {
+                    oldEnd++;
+                }
+                while (newEnd < current.count && inserted[newEnd]) {
+                    newEnd++;
+                }
+                int unchanged = 0;
+                while (oldEnd + unchanged < old.count && newEnd + unchanged < current.count
+                        && !deleted[oldEnd + unchanged] && !inserted[newEnd + unchanged] && unchanged <= 2 * context) {
+                    unchanged++;
+                }
+                boolean atEnd = oldEnd + unchanged == old.count && newEnd + unchanged == current.count;
+                if (unchanged > 2 * context || atEnd) {
+                    break;
+                }
+                oldEnd += unchanged;
+                newEnd += unchanged;
+            }
+            int trailing = Math.min(context, Math.min(old.count - oldEnd, current.count - newEnd));
+            int hunkOldEnd = oldEnd + trailing;
+            int hunkNewEnd = newEnd + trailing;
+            sb.append("@@ -");
+            appendRange(sb, hunkOldStart, hunkOldEnd - hunkOldStart);
+            sb.append(" +");
+            appendRange(sb, hunkNewStart, hunkNewEnd - hunkNewStart);
+            sb.append(" @@\n");
+            i = hunkOldStart;
+            j = hunkNewStart;
+            while (i < hunkOldEnd || j < hunkNewEnd) {
+                if (i < hunkOldEnd && deleted[i]) {
+                    appendLine(sb, '-', old, i++);
+                } else if (j < hunkNewEnd && inserted[j]) {
+                    appendLine(sb, '+', current, j++);
+                } else {
+                    appendLine(sb, ' ', old, i++);
+                    j++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a range like GNU diff: empty ranges are given by the line before them, single lines without length
+     */
+    private static void appendRange(StringBuilder sb, int start, int length) {
+        if (length == 0) {
+            sb.append(start).append(",0");
+        } else if (length == 1) {
+            sb.append(start + 1);
+        } else {
+            sb.append(start + 1).append(',').append(length);
+        }
+    }
+
+    private static void appendLine(StringBuilder sb, char prefix, Lines lines, int line) {
+        sb.append(prefix);
+        if (lines.hasLineBreak(line)) {
+            sb.append(lines.text, lines.starts[line], lines.starts[line + 1]);
+        } else {
+            sb.append(lines.text, lines.starts[line], lines.starts[line + 1]).append("\n\\ No newline at end of file\n");
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package me.bechberger.meta.runtime;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Content hashes of bytecode (and other data), used to identify equal class versions
+ */
+public class BytecodeHashes {
+
+    /**
+     * SHA-256 of the passed bytes as a hex string
+     */
+    public static String hash(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package me.bechberger.meta.runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sizes of a class file (or the differences between two class files), counted with a single pass
+ * over the bytes, as it is computed on the recording thread and this package can't use javassist
+ *
+ * @param bytes               size of the class file
+ * @param constantPoolEntries number of constant pool slots (longs and doubles take two)
+ * @param codeBytes           summed up code length of all methods
+ * @param syntheticMembers    number of synthetic methods and fields, like lambda bodies and accessors
+ * @param innerClasses        number of entries in the {@code InnerClasses} attribute
+ */
+public record ClassFileStats(long bytes, long constantPoolEntries, long methods, long fields, long codeBytes,
+                             long bootstrapMethods, long syntheticMembers, long innerClasses) {
+
+    public static final ClassFileStats EMPTY = new ClassFileStats(0, 0, 0, 0, 0, 0, 0, 0);
+
+    private static final int ACC_SYNTHETIC = 0x1000;
+
+    /*
+     * Rough sizes of the HotSpot metadata (64 bit, JDK 17) in Metaspace,
+     * the symbols (UTF-8 constants) are stored outside of Metaspace
+     */
+    private static final int CONSTANT_POOL_ENTRY_METASPACE = 9; // slot + tag
+    private static final int METHOD_METASPACE = 144; // Method + ConstMethod without the code
+    private static final int FIELD_METASPACE = 12; // FieldInfo
+    private static final int BOOTSTRAP_METHOD_METASPACE = 8; // operands array entries
+    private static final int INNER_CLASS_METASPACE = 8; // InnerClasses array entry
+
+    /**
+     * @throws IllegalArgumentException if the bytecode is not a valid class file
+     */
+    public static ClassFileStats of(byte[] bytecode) {
+        try {
+            return parse(ByteBuffer.wrap(bytecode));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid class file: " + e, e);
+        }
+    }
+
+    private static ClassFileStats parse(ByteBuffer buffer) {
+        if (buffer.getInt() != 0xCAFEBABE) {
+            throw new IllegalArgumentException("wrong magic");
+        }
+        buffer.getInt(); // minor and major version
+        int poolCount = buffer.getShort() & 0xFFFF;
+        int[] utf8Offsets = new int[poolCount];
+        for (int i = 1; i < poolCount; i++) {
+            int tag = buffer.get();
+            switch (tag) {
+                case 1 -> {
+                    utf8Offsets[i] = buffer.position();
+                    skip(buffer, buffer.getShort() & 0xFFFF);
+                }
+                case 7, 8, 16, 19, 20 -> skip(buffer, 2);
+                case 15 -> skip(buffer, 3);
+                case 3, 4, 9, 10, 11, 12, 17, 18 -> skip(buffer, 4);
+                case 5, 6 -> {
+                    skip(buffer, 8);
+                    i++;
+                }
+                default -> throw new IllegalArgumentException("unknown constant pool tag " + tag);
+            }
+        }
+        skip(buffer, 6); // access flags, this and super class
+        skip(buffer, 2 * (buffer.getShort() & 0xFFFF));
+        long synthetic = 0;
+        int fields = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < fields; i++) {
+            synthetic += parseMember(buffer, utf8Offsets, null);
+        }
+        long[] codeBytes = new long[1];
+        int methods = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < methods; i++) {
+            synthetic += parseMember(buffer, utf8Offsets, codeBytes);
+        }
+        long bootstrapMethods = 0;
+        long innerClasses = 0;
+        int attributes = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < attributes; i++) {
+            int name = buffer.getShort() & 0xFFFF;
+            int length = buffer.getInt();
+            int end = buffer.position() + length;
+            if (isUtf8(buffer, utf8Offsets, name, "BootstrapMethods")) {
+                bootstrapMethods = buffer.getShort() & 0xFFFF;
+            } else if (isUtf8(buffer, utf8Offsets, name, "InnerClasses")) {
+                innerClasses = buffer.getShort() & 0xFFFF;
+            }
+            buffer.position(end);
+        }
+        return new ClassFileStats(buffer.limit(), poolCount - 1, methods, fields, codeBytes[0],
+                bootstrapMethods, synthetic, innerClasses);
+    }
+
+    /**
+     * @param codeBytes adds the code length to the first element, {@code null} for fields
+     * @return 1 if the member is synthetic, 0 otherwise
+     */
+    private static int parseMember(ByteBuffer buffer, int[] utf8Offsets, long[] codeBytes) {
+        int access = buffer.getShort() & 0xFFFF;
+        skip(buffer, 4); // name and descriptor
+        boolean synthetic = (access & ACC_SYNTHETIC) != 0;
+        int attributes = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < attributes; i++) {
+            int name = buffer.getShort() & 0xFFFF;
+            int length = buffer.getInt();
+            int end = buffer.position() + length;
+            if (codeBytes != null && isUtf8(buffer, utf8Offsets, name, "Code")) {
+                skip(buffer, 4); // max stack and locals
+                codeBytes[0] += buffer.getInt();
+            } else if (isUtf8(buffer, utf8Offsets, name, "Synthetic")) {
+                synthetic = true;
+            }
+            buffer.position(end);
+        }
+        return synthetic ? 1 : 0;
+    }
+
+    private static boolean isUtf8(ByteBuffer buffer, int[] utf8Offsets, int index, String value) {
+        int offset = utf8Offsets[index];
+        if (offset == 0 || (buffer.getShort(offset) & 0xFFFF) != value.length()) {
+            return false;
+        }
+        byte[] expected = value.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer.get(offset + 2 + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skip(ByteBuffer buffer, int bytes) {
+        buffer.position(buffer.position() + bytes);
+    }
+
+    public ClassFileStats plus(ClassFileStats other) {
+        return new ClassFileStats(bytes + other.bytes, constantPoolEntries + other.constantPoolEntries,
+                methods + other.methods, fields + other.fields, codeBytes + other.codeBytes,
+                bootstrapMethods + other.bootstrapMethods, syntheticMembers + other.syntheticMembers,
+                innerClasses + other.innerClasses);
+    }
+
+    public ClassFileStats minus(ClassFileStats other) {
+        return new ClassFileStats(bytes - other.bytes, constantPoolEntries - other.constantPoolEntries,
+                methods - other.methods, fields - other.fields, codeBytes - other.codeBytes,
+                bootstrapMethods - other.bootstrapMethods, syntheticMembers - other.syntheticMembers,
+                innerClasses - other.innerClasses);
+    }
+
+    /**
+     * Estimated size of the class metadata in Metaspace that depends on these sizes
+     * (without the parts that every class has, like the {@code InstanceKlass})
+     */
+    public long estimateMetaspaceBytes() {
+        return constantPoolEntries * CONSTANT_POOL_ENTRY_METASPACE
+                + methods * METHOD_METASPACE
+                + codeBytes
+                + fields * FIELD_METASPACE
+                + bootstrapMethods * BOOTSTRAP_METHOD_METASPACE
+                + innerClasses * INNER_CLASS_METASPACE;
+    }
+}
@@ -0,0 +1,269 @@
+package me.bechberger.meta.runtime;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Cache for decompiled classes, keyed by the hash of the bytecode and the decompilation mode
+ * <p>
+ * The sources are kept in memory up to the configured size, evicting the least recently used ones.
+ * If a directory is configured, every source is also written to it and the directory is consulted
+ * on misses, so that the sources survive evictions and restarts. The directory is bounded too:
+ * the least recently used files (by modification time, which is updated on every disk hit)
+ * are deleted when it grows beyond its maximum size.
+ */
+public class DecompilationCache {
+
+    private static long maxSize = 64 * 1024 * 1024;
+    private static @Nullable Path directory = null;
+    private static long maxDirectorySize = 512 * 1024 * 1024;
+
+    /**
+     * Access ordered, so that iteration starts with the least recently used entry
+     */
+    private static final LinkedHashMap<String, String> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long size = 0;
+
+    /**
+     * Size of the files in the directory, access ordered like the in-memory cache
+     */
+    private static final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private static long directorySize = 0;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong diskHits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxSizeBytes          maximum size of the in-memory cache, in bytes
+     * @param directory             directory to persist the sources to, {@code null} to only cache in memory
+     * @param maxDirectorySizeBytes maximum size of the files in the directory, in bytes
+     */
+    public static synchronized void configure(long maxSizeBytes, @Nullable Path directory, long maxDirectorySizeBytes) {
+        DecompilationCache.maxSize = maxSizeBytes;
+        DecompilationCache.directory = directory;
+        DecompilationCache.maxDirectorySize = maxDirectorySizeBytes;
+        files.clear();
+        directorySize = 0;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+                loadDirectory(directory);
+            } catch (IOException e) {
+                System.err.println("Cannot create decompilation cache directory " + directory + ": " + e.getMessage());
+                DecompilationCache.directory = null;
+            }
+        }
+        evict();
+        pruneDirectory();
+    }
+
+    /**
+     * Register the existing files of the directory, the least recently used first
+     */
+    private static void loadDirectory(Path directory) throws IOException {
+        record CachedFile(String name, long size, FileTime modified) {
+        }
+        try (Stream<Path> stream = Files.list(directory)) {
+            stream.filter(Files::isRegularFile)
+                    .filter(p -> !p.getFileName().toString().endsWith(".tmp"))
+                    .map(p -> {
+                        try {
+                            return new CachedFile(p.getFileName().toString(), Files.size(p), Files.getLastModifiedTime(p));
+                        } catch (IOException e) {
+                            return null;
+                        }
+                    })
+                    .filter(Objects::nonNull)
+                    .sorted(Comparator.comparing(CachedFile::modified))
+                    .forEach(f -> {
+                        files.put(f.name(), f.size());
+                        directorySize += f.size();
+                    });
+        }
+    }
+
+    private static String getKey(String hash, String mode) {
+        return hash + "-" + mode;
+    }
+
+    /**
+     * Size of a source in memory, Strings of non latin characters take two bytes per character
+     */
+    private static long getSize(String key, String source) {
+        return key.length() + source.length() * 2L;
+    }
+
+    /**
+     * Obtain the cached source
+     *
+     * @param hash hash of the bytecode, see {@link BytecodeHashes#hash(byte[])}
+     * @param mode decompilation mode, like {@code java} or {@code javap}
+     * @return the source or {@code null} if it is not cached
+     */
+    public static @Nullable String get(String hash, String mode) {
+        String key = getKey(hash, mode);
+        synchronized (DecompilationCache.class) {
+            String source = cache.get(key);
+            if (source != null) {
+                hits.incrementAndGet();
+                return source;
+            }
+        }
+        Path dir = directory;
+        if (dir != null) {
+            Path file = dir.resolve(key);
+            if (Files.exists(file)) {
+                try {
+                    String source = Files.readString(file);
+                    diskHits.incrementAndGet();
+                    touchFile(key, file);
+                    putInMemory(key, source);
+                    return source;
+                } catch (IOException e) {
+                    // treat as a miss
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Obtain the source if it is cached in memory, without reading the directory or counting a hit or miss
+     */
+    public static synchronized @Nullable String getIfInMemory(String hash, String mode) {
+        return cache.get(getKey(hash, mode));
+    }
+
+    public static void put(String hash, String mode, String source) {
+        String key = getKey(hash, mode);
+        putInMemory(key, source);
+        Path dir = directory;
+        if (dir != null) {
+            try {
+                // write to a temporary file first, so that concurrent readers never see partial sources
+                Path tmp = Files.createTempFile(dir, key, ".tmp");
+                Files.writeString(tmp, source, StandardCharsets.UTF_8);
+                Files.move(tmp, dir.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                addFile(key, source.getBytes(StandardCharsets.UTF_8).length);
+            } catch (IOException e) {
+                System.err.println("Cannot write to decompilation cache directory " + dir + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static synchronized void putInMemory(String key, String source) {
+        String old = cache.put(key, source);
+        if (old != null) {
+            size -= getSize(key, old);
+        }
+        size += getSize(key, source);
+        evict();
+    }
+
+    private static synchronized void evict() {
+        Iterator<Map.Entry<String, String>> iterator = cache.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            var entry = iterator.next();
+            size -= getSize(entry.getKey(), entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Mark the file as recently used, also for later runs
+     */
+    private static void touchFile(String key, Path file) {
+        synchronized (DecompilationCache.class) {
+            files.get(key);
+        }
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // only affects the order of the pruning after a restart
+        }
+    }
+
+    private static synchronized void addFile(String key, long fileSize) {
+        Long old = files.put(key, fileSize);
+        directorySize += fileSize - (old == null ? 0 : old);
+        pruneDirectory();
+    }
+
+    /**
+     * Delete the least recently used files until the directory fits into its maximum size
+     */
+    private static synchronized void pruneDirectory() {
+        Path dir = directory;
+        if (dir == null) {
+            return;
+        }
+        Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+        while (directorySize > maxDirectorySize && iterator.hasNext()) {
+            var entry = iterator.next();
+            try {
+                Files.deleteIfExists(dir.resolve(entry.getKey()));
+            } catch (IOException e) {
+                System.err.println("Cannot delete from decompilation cache directory " + dir + ": " + e.getMessage());
+            }
+            directorySize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Obtain the cached source or decompile and cache it
+     *
+     * @param decompile called on a miss, might return {@code null} if the class cannot be decompiled
+     */
+    public static @Nullable String getOrCompute(byte[] bytecode, String mode, Function<byte[], @Nullable String> decompile) {
+        String hash = BytecodeHashes.hash(bytecode);
+        String source = get(hash, mode);
+        if (source == null) {
+            source = decompile.apply(bytecode);
+            if (source != null) {
+                put(hash, mode, source);
+            }
+        }
+        return source;
+    }
+
+    public static synchronized long getSize() {
+        return size;
+    }
+
+    public static synchronized int getEntryCount() {
+        return cache.size();
+    }
+
+    public static synchronized long getDirectorySize() {
+        return directorySize;
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+}
@@ -6,6 +6,10 @@ import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -20,13 +24,27 @@ public class InstrumentationHandler {
     private static final Map<Instrumentator, PerInstrumentator> diffs = new ConcurrentHashMap<>();
     private static final Map<Klass, PerClass> classDiffs = new ConcurrentHashMap<>();
 
+    private static final AtomicLong diffCount = new AtomicLong();
+
+    private static final List<Consumer<BytecodeDiff>> diffListeners = new CopyOnWriteArrayList<>();
+
     static void addDiff(Instrumentator instrumentator, Klass klass, byte[] old, byte[] current) {
         instrumentatorCache.put(instrumentator.name(), instrumentator);
         if (Arrays.equals(old, current) || current == null) {
             return;
         }
-        diffs.computeIfAbsent(instrumentator, PerInstrumentator::new).addDiff(klass, old, current);
-        classDiffs.computeIfAbsent(klass, c -> new PerClass()).addDiff(instrumentator, klass, old, current);
+        BytecodeDiff diff = new BytecodeDiff(instrumentator, klass, old, current);
+        diffs.computeIfAbsent(instrumentator, PerInstrumentator::new).addDiff(diff);
+        classDiffs.computeIfAbsent(klass, c -> new PerClass()).addDiff(diff);
+        diffCount.incrementAndGet();
+        for (Consumer<BytecodeDiff> listener : diffListeners) {
+            try {
+                listener.accept(diff);
+            } catch (Throwable t) {
+                // a broken listener must never break the transformation
+                t.printStackTrace();
+            }
+        }
     }
 
     public static void addDiff(String instrumentator, String clazz, byte[] old, byte[] current) {
@@ -34,6 +52,53 @@ public class InstrumentationHandler {
         addDiff(instr, new Klass(clazz), old, current);
     }
 
+    /**
+     * Register a listener that is called for every recorded diff
+     * <p>
+     * The listener is called on the thread that records the diff, which is often a class loading thread,
+     * so it has to be fast and must never block
+     */
+    public static void addDiffListener(Consumer<BytecodeDiff> listener) {
+        diffListeners.add(listener);
+    }
+
+    /**
+     * Register a listener like {@link #addDiffListener(Consumer)} and pass all diffs that have been recorded
+     * before to it, every diff exactly once
+     * <p>
+     * A diff that is recorded while the listener is registered could otherwise be passed twice,
+     * directly and as a recorded diff. The recorded diffs are passed on the calling thread.
+     */
+    public static void addDiffListenerWithRecordedDiffs(Consumer<BytecodeDiff> listener) {
+        // diffs passed until all recorded diffs have been passed, doesn't grow afterward
+        Set<BytecodeDiff> passed = ConcurrentHashMap.newKeySet();
+        AtomicBoolean replayed = new AtomicBoolean();
+        addDiffListener(diff -> {
+            if (replayed.get() ? !passed.contains(diff) : passed.add(diff)) {
+                listener.accept(diff);
+            }
+        });
+        for (PerClass perClass : classDiffs.values()) {
+            for (BytecodeDiff diff : new ArrayList<>(perClass.getDiffs())) {
+                if (passed.add(diff)) {
+                    listener.accept(diff);
+                }
+            }
+        }
+        replayed.set(true);
+    }
+
+    public static void removeDiffListener(Consumer<BytecodeDiff> listener) {
+        diffListeners.remove(listener);
+    }
+
+    /**
+     * Number of diffs recorded so far, changes whenever a new diff is recorded
+     */
+    public static long getDiffCount() {
+        return diffCount.get();
+    }
+
     public static Map<Instrumentator, PerInstrumentator> getDiffs() {
         return Collections.unmodifiableMap(diffs);
     }
@@ -121,6 +186,15 @@ public class InstrumentationHandler {
         return classDiffs.get(clazz).getDiffs().get(0).current();
     }
 
+    /**
+     * Bytecode produced by the last recorded transformation of the class
+     */
+    public static byte[] getLatestBytecode(Klass clazz) {
+        List<BytecodeDiff> classDiffs = InstrumentationHandler.classDiffs.get(clazz).getDiffs();
+        // diffs are only ever appended
+        return classDiffs.get(classDiffs.size() - 1).current();
+    }
+
     public static List<String> getInstrumentatorNames(Pattern pattern) {
         return getDiffs().keySet().stream()
                 .filter(instrumentator -> pattern.matcher(instrumentator.name()).matches())
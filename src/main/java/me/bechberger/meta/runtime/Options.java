@@ -1,12 +1,39 @@
 package me.bechberger.meta.runtime;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.util.HashSet;
 import java.util.Set;
 
 public class Options {
     public boolean server = false;
     public boolean _native = true;
+    public int nativeThreads = 2;
     public int port = 7071;
     public boolean help = false;
     public Set<String> callbackClasses = new HashSet<>();
+    public int feedBufferSize = 1024;
+    public int feedClientQueueSize = 256;
+    public int renderJobThreshold = 64;
+    public int renderJobTtlSeconds = 600;
+    public long renderJobCacheSize = 64 * 1024 * 1024;
+    public long decompilationCacheSize = 64 * 1024 * 1024;
+    public @Nullable String decompilationCacheDir = null;
+    public long decompilationCacheDirSize = 512 * 1024 * 1024;
+    public long diffCacheSize = 16 * 1024 * 1024;
+    public int decompilationThreads = Runtime.getRuntime().availableProcessors();
+    public long decompilationClassTimeoutMs = 30_000;
+    public long decompilationBatchTimeoutMs = 120_000;
+    public int decompilationMaxTimeouts = 2;
+    public boolean prewarm = false;
+    public @Nullable String prewarmPattern = null;
+    public double prewarmCpuThreshold = 0.5;
+    public @Nullable String aiCommand = null;
+    public int aiConcurrency = 2;
+    public long aiTimeoutMs = 300_000;
+    /** -1: use the value of the JVM */
+    public int jitMaxInlineSize = -1;
+    public int jitFreqInlineSize = -1;
+    public int jitHugeMethodLimit = -1;
+    public int renderJobThreads = Runtime.getRuntime().availableProcessors();
 }
@@ -14,8 +14,8 @@ public class PerClass {
     public PerClass() {
     }
 
-    void addDiff(Instrumentator instrumentator, Klass clazz, byte[] old, byte[] current) {
-        diffs.add(new BytecodeDiff(instrumentator, clazz, old, current));
+    void addDiff(BytecodeDiff diff) {
+        diffs.add(diff);
     }
 
     public List<BytecodeDiff> getDiffs() {
@@ -15,14 +15,54 @@ public class PerInstrumentator {
 
     private final Map<Klass, List<BytecodeDiff>> diffs = new ConcurrentHashMap<>();
 
+    /**
+     * Growth of the latest diff per class, a retransformation replaces the growth of the previous version
+     */
+    private final Map<Klass, ClassFileStats> growthPerClass = new ConcurrentHashMap<>();
+    private ClassFileStats growth = ClassFileStats.EMPTY;
+    private int unparsableDiffs = 0;
+
     public PerInstrumentator(Instrumentator instrumentator) {
         this.instrumentator = instrumentator;
     }
 
-    void addDiff(Klass clazz, byte[] old, byte[] current) {
+    void addDiff(BytecodeDiff diff) {
         diffs
-                .computeIfAbsent(clazz, k -> Collections.synchronizedList(new ArrayList<>()))
-                .add(new BytecodeDiff(instrumentator, clazz, old, current));
+                .computeIfAbsent(diff.klass(), k -> Collections.synchronizedList(new ArrayList<>()))
+                .add(diff);
+        updateGrowth(diff);
+    }
+
+    private void updateGrowth(BytecodeDiff diff) {
+        ClassFileStats diffGrowth;
+        try {
+            // parse outside the lock, so that diffs can be recorded in parallel
+            diffGrowth = ClassFileStats.of(diff.current())
+                    .minus(diff.old() == null ? ClassFileStats.EMPTY : ClassFileStats.of(diff.old()));
+        } catch (IllegalArgumentException e) {
+            synchronized (this) {
+                unparsableDiffs++;
+            }
+            return;
+        }
+        synchronized (this) {
+            ClassFileStats previous = growthPerClass.put(diff.klass(), diffGrowth);
+            growth = growth.plus(diffGrowth).minus(previous == null ? ClassFileStats.EMPTY : previous);
+        }
+    }
+
+    /**
+     * Summed up growth of the current versions of all transformed classes, updated with every diff
+     */
+    public synchronized ClassFileStats getGrowth() {
+        return growth;
+    }
+
+    /**
+     * Number of diffs that are not part of the growth, as one of the versions couldn't be parsed
+     */
+    public synchronized int getUnparsableDiffs() {
+        return unparsableDiffs;
     }
 
     public Map<Klass, List<BytecodeDiff>> getDiffs() {
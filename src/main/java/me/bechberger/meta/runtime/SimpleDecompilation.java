@@ -1,56 +1,347 @@
 package me.bechberger.meta.runtime;
 
 import org.jetbrains.annotations.Nullable;
-import org.jetbrains.java.decompiler.main.decompiler.ConsoleDecompiler;
+import org.jetbrains.java.decompiler.main.DecompilerContext;
+import org.jetbrains.java.decompiler.main.Fernflower;
+import org.jetbrains.java.decompiler.main.decompiler.CancelationManager;
+import org.jetbrains.java.decompiler.main.extern.IContextSource;
+import org.jetbrains.java.decompiler.main.extern.IFernflowerLogger;
+import org.jetbrains.java.decompiler.main.extern.IFernflowerPreferences;
+import org.jetbrains.java.decompiler.main.extern.IResultSaver;
 
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.Manifest;
 
+/**
+ * Decompiles classes with Vineflower, completely in memory
+ * <p>
+ * The bytecode is passed via a context source and the sources are collected by its output sink,
+ * so there is no file system access and nothing is printed. Vineflower keeps its state in
+ * a thread local context, so multiple decompilations can run in parallel.
+ * <p>
+ * Every class is decompiled in its own run, as the output for a class would otherwise depend on
+ * the other classes of the run (inner classes are inlined into their outer class), which would
+ * break the {@link DecompilationCache}. The runs of multiple classes are executed in parallel
+ * on a shared fork join pool, the overhead of a separate run per class is small.
+ * <p>
+ * Every class has a time budget that starts when its decompilation starts, and all classes of a call share
+ * a budget. Callers stop waiting for classes that exceed a budget and report them as timed out.
+ * Vineflower is told to cancel such a decompilation, which it does before starting the next method.
+ * Classes that are still queued when the batch budget is exceeded are not started at all and are reported
+ * as skipped, as they did not exceed a budget of their own.
+ */
 public class SimpleDecompilation {
 
-    public static void deleteFolder(@Nullable Path folder) {
-        if (folder == null) {
+    /**
+     * Mode of Java sources in the {@link DecompilationCache}
+     */
+    public static final String JAVA_MODE = "java";
+
+    /**
+     * Granularity of checking whether a class that started in the meantime exceeded its budget
+     */
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static volatile long classTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+    private static volatile long batchTimeoutNanos = TimeUnit.SECONDS.toNanos(120);
+
+    /**
+     * Result of decompiling multiple classes
+     *
+     * @param sources  source per internal class name, classes that could not be decompiled are missing
+     * @param timedOut internal names of the classes that exceeded a time budget while being decompiled
+     * @param skipped  internal names of the classes that were not started before the batch budget was exceeded
+     */
+    public record Result(Map<String, String> sources, Set<String> timedOut, Set<String> skipped) {
+    }
+
+    /**
+     * Decompilation of a single class on the pool
+     */
+    private static class Job {
+        private final String name;
+        private final byte[] bytecode;
+        private final CompletableFuture<@Nullable String> result = new CompletableFuture<>();
+        private volatile boolean started = false;
+        private volatile long deadline;
+        private volatile boolean cancelled = false;
+
+        Job(String name, byte[] bytecode) {
+            this.name = name;
+            this.bytecode = bytecode;
+        }
+    }
+
+    /**
+     * Jobs by the Vineflower context that decompiles them, as the cancellation checker is global
+     */
+    private static final Map<DecompilerContext, Job> runningJobs = new ConcurrentHashMap<>();
+
+    static {
+        CancelationManager.setCancelationChecker(() -> {
+            Job job = runningJobs.get(DecompilerContext.getCurrentContext());
+            if (job != null && (job.cancelled || System.nanoTime() - job.deadline > 0)) {
+                CancelationManager.cancel();
+            }
+        });
+    }
+
+    private static volatile ForkJoinPool pool = createPool(Runtime.getRuntime().availableProcessors());
+
+    private static ForkJoinPool createPool(int threads) {
+        return new ForkJoinPool(Math.max(1, threads), p -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("meta-agent-decompile-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    public static int getThreads() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Set the number of threads used to decompile
+     */
+    public static void setThreads(int threads) {
+        ForkJoinPool old = pool;
+        if (old.getParallelism() != threads) {
+            pool = createPool(threads);
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Set the time budgets
+     *
+     * @param classTimeoutMs budget of a single class
+     * @param batchTimeoutMs budget of all classes decompiled in one call
+     */
+    public static void setTimeouts(long classTimeoutMs, long batchTimeoutMs) {
+        classTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(classTimeoutMs);
+        batchTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(batchTimeoutMs);
+    }
+
+    /**
+     * Options equivalent to the former {@code -jrt=1 -rbr=0 -rsy=0} console arguments
+     */
+    private static Map<String, Object> getDefaultOptions() {
+        Map<String, Object> options = new HashMap<>();
+        options.put(IFernflowerPreferences.INCLUDE_JAVA_RUNTIME, "1");
+        options.put(IFernflowerPreferences.REMOVE_BRIDGE, "0");
+        options.put(IFernflowerPreferences.REMOVE_SYNTHETIC, "0");
+        // the classes are already decompiled in parallel
+        options.put(IFernflowerPreferences.THREADS, "1");
+        return options;
+    }
+
+    /**
+     * Provides the classes and collects the decompiled sources
+     */
+    private static class MemoryContextSource implements IContextSource {
+
+        private final Map<String, byte[]> bytecodePerClass;
+        private final Map<String, String> sources = new ConcurrentHashMap<>();
+
+        MemoryContextSource(Map<String, byte[]> bytecodePerClass) {
+            this.bytecodePerClass = bytecodePerClass;
+        }
+
+        @Override
+        public String getName() {
+            return "meta-agent";
+        }
+
+        @Override
+        public Entries getEntries() {
+            List<Entry> classes = bytecodePerClass.keySet().stream().map(Entry::atBase).toList();
+            return new Entries(classes, List.of(), List.of());
+        }
+
+        @Override
+        public byte[] getClassBytes(String className) {
+            return bytecodePerClass.get(className);
+        }
+
+        @Override
+        public InputStream getInputStream(String resource) {
+            String name = resource.endsWith(CLASS_SUFFIX)
+                    ? resource.substring(0, resource.length() - CLASS_SUFFIX.length())
+                    : resource;
+            byte[] bytecode = bytecodePerClass.get(name);
+            return bytecode == null ? null : new ByteArrayInputStream(bytecode);
+        }
+
+        @Override
+        public IOutputSink createOutputSink(IResultSaver saver) {
+            return new IOutputSink() {
+                @Override
+                public void begin() {
+                }
+
+                @Override
+                public void acceptClass(String qualifiedName, String fileName, String content, int[] mapping) {
+                    if (content != null) {
+                        sources.put(qualifiedName, content);
+                    }
+                }
+
+                @Override
+                public void acceptDirectory(String directory) {
+                }
+
+                @Override
+                public void acceptOther(String path) {
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+
+    /**
+     * All output goes through the output sink of the context source
+     */
+    private static final IResultSaver NO_OP_SAVER = new IResultSaver() {
+        @Override
+        public void saveFolder(String path) {
+        }
+
+        @Override
+        public void copyFile(String source, String path, String entryName) {
+        }
+
+        @Override
+        public void saveClassFile(String path, String qualifiedName, String entryName, String content, int[] mapping) {
+        }
+
+        @Override
+        public void createArchive(String path, String archiveName, Manifest manifest) {
+        }
+
+        @Override
+        public void saveDirEntry(String path, String archiveName, String entryName) {
+        }
+
+        @Override
+        public void copyEntry(String source, String path, String archiveName, String entry) {
+        }
+
+        @Override
+        public void saveClassEntry(String path, String archiveName, String qualifiedName, String entryName, String content) {
+        }
+
+        @Override
+        public void closeArchive(String path, String archiveName) {
+        }
+    };
+
+    /**
+     * Decompile the passed classes, each on its own and in parallel, within the time budgets
+     *
+     * @param bytecodePerClass bytecode per internal class name ({@code java/util/List})
+     */
+    public static Result decompile(Map<String, byte[]> bytecodePerClass) {
+        long batchDeadline = System.nanoTime() + batchTimeoutNanos;
+        List<Job> jobs = new ArrayList<>();
+        bytecodePerClass.forEach((name, bytecode) -> {
+            Job job = new Job(name, bytecode);
+            jobs.add(job);
+            pool.execute(() -> run(job));
+        });
+        Map<String, String> sources = new HashMap<>();
+        Set<String> timedOut = new HashSet<>();
+        Set<String> skipped = new HashSet<>();
+        for (Job job : jobs) {
+            try {
+                String source = await(job, batchDeadline);
+                if (source != null) {
+                    sources.put(job.name, source);
+                }
+            } catch (TimeoutException e) {
+                // await cancelled the job before checking, so it either started before or never starts
+                (job.started ? timedOut : skipped).add(job.name);
+            } catch (ExecutionException e) {
+                System.err.println("Could not decompile " + job.name + ": " + e.getCause());
+            }
+        }
+        return new Result(sources, timedOut, skipped);
+    }
+
+    /**
+     * Wait for the job, cancelling it if it exceeds its own or the batch budget
+     */
+    private static @Nullable String await(Job job, long batchDeadline) throws TimeoutException, ExecutionException {
+        while (true) {
+            long deadline = job.started ? Math.min(job.deadline, batchDeadline) : batchDeadline;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                job.cancelled = true;
+                throw new TimeoutException();
+            }
+            try {
+                return job.result.get(Math.min(remaining, POLL_NANOS), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                // check the deadlines again
+            } catch (InterruptedException e) {
+                job.cancelled = true;
+                Thread.currentThread().interrupt();
+                throw new TimeoutException();
+            }
+        }
+    }
+
+    private static void run(Job job) {
+        if (job.cancelled) {
+            job.result.complete(null);
             return;
         }
+        job.deadline = System.nanoTime() + classTimeoutNanos;
+        job.started = true;
         try {
-            Files.walk(folder).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
-        } catch (IOException e) {
+            job.result.complete(decompile(job));
+        } catch (CancelationManager.CanceledException e) {
+            job.result.complete(null);
+        } catch (Throwable e) {
+            job.result.completeExceptionally(e);
         }
     }
 
-    public static String decompileClass(
-            ClassArtifact artifact) {
-        var oldOut = System.out;
-        Path tmpDir = null;
+    /**
+     * Decompile a single class in its own Vineflower run
+     */
+    private static @Nullable String decompile(Job job) {
+        MemoryContextSource source = new MemoryContextSource(Map.of(job.name, job.bytecode));
+        Fernflower fernflower = new Fernflower(NO_OP_SAVER, getDefaultOptions(), IFernflowerLogger.NO_OP);
+        // the constructor sets the context of the current thread
+        DecompilerContext context = DecompilerContext.getCurrentContext();
+        runningJobs.put(context, job);
         try {
-            System.setOut(
-                    new java.io.PrintStream(
-                            new java.io.OutputStream() {
-                                @Override
-                                public void write(int b) {
-                                }
-                            }));
-            tmpDir = Files.createTempDirectory("classviewer");
-            var packageName = artifact.klass().getPackageName();
-            var path = packageName.isEmpty() ? tmpDir : tmpDir.resolve(packageName.replace(".", "/"));
-            Path classPath = path.resolve(artifact.klass().getSimpleName() + ".class");
-            Files.createDirectories(path);
-            Files.write(classPath, artifact.bytecode());
-            String[] addArgs = "-jrt=1 -rbr=0 -rsy=0".split(" ");
-            String[] args = new String[2 + addArgs.length];
-            System.arraycopy(addArgs, 0, args, 0, addArgs.length);
-            args[addArgs.length] = classPath.toString();
-            args[args.length - 1] = tmpDir.toString();
-            ConsoleDecompiler.main(args);
-            return Files.readString(tmpDir.resolve(artifact.klass().getSimpleName() + ".java"));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            fernflower.addSource(source);
+            fernflower.decompileContext();
         } finally {
-            System.setOut(oldOut);
-            deleteFolder(tmpDir);
+            runningJobs.remove(context);
+            fernflower.clearContext();
+        }
+        return source.sources.get(job.name);
+    }
+
+    /**
+     * Decompile the class to Java, using the {@link DecompilationCache}
+     */
+    public static String decompileClass(ClassArtifact artifact) {
+        String name = artifact.klass().name();
+        String result = DecompilationCache.getOrCompute(artifact.bytecode(), JAVA_MODE,
+                bytecode -> decompile(Map.of(name, bytecode)).sources().get(name));
+        if (result == null) {
+            throw new RuntimeException("Could not decompile " + artifact.klass().getName());
         }
+        return result;
     }
 }
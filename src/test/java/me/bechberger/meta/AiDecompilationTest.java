@@ -0,0 +1,157 @@
+package me.bechberger.meta;
+
+import me.bechberger.meta.runtime.Klass;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static me.bechberger.meta.InMemoryCompiler.compileClass;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AiDecompilationTest {
+
+    /**
+     * Members whose literals, comments and bodies contain braces and semicolons
+     */
+    private static final List<String> MEMBERS = List.of("""
+                String text%1$d = \"""
+                        { ; } \\\""" "quoted" }
+                        \""";
+            """, """
+                char open%1$d = '{', close%1$d = '}', quote%1$d = '"', semicolon%1$d = ';', escaped%1$d = '\\'';
+            """, """
+                Runnable runnable%1$d = new Runnable() {
+                    public void run() {
+                        System.out.println("}");
+                    }
+                };
+            """, """
+                /* } */
+                int value%1$d(int a) { // {
+                    Runnable r = () -> { System.out.println('{'); };
+                    return a + %1$d;
+                }
+            """, """
+                enum Kind%1$d {
+                    A { int value() { return 1; } },
+                    B { int value() { return 2; } };
+                    abstract int value();
+                }
+            """);
+
+    @AfterEach
+    public void resetConfiguration() {
+        AiDecompilation.configure("ollama run " + AiDecompilation.DEFAULT_MODEL, 2);
+        AiDecompilation.setTimeout(300_000);
+    }
+
+    @Test
+    public void testSmallClassNotSplit() {
+        String source = "public class Test {\n}\n";
+        assertEquals(List.of(new AiDecompilation.Part(source, true, false)), AiDecompilation.split(source));
+    }
+
+    @Test
+    public void testSplitAtMembers() {
+        assertSplitAtMembers("public class Test {\n", "", "}\n");
+    }
+
+    @Test
+    public void testSplitEnumWithConstantBodies() {
+        // the constants are a single member, as their bodies are followed by a comma or semicolon
+        assertSplitAtMembers("public enum Test {\n", """
+                    A {
+                        int value() { return 1; }
+                    },
+                    B { };
+                """, "}\n");
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void testImproveWithStubCommand(@TempDir Path dir) throws IOException {
+        // skips the first line of the prompt (the instruction) and answers with the renamed source
+        AiDecompilation.configure(createScript(dir, """
+                echo '```java'
+                tail -n +2 | sed 's/value/renamed/g'
+                echo '```'
+                """).toString(), 3);
+        String source = createSource("public class Test {\n", "", "}\n", 1);
+        List<String> parts = new ArrayList<>();
+        String improved = AiDecompilation.improve(new Klass("Test"), source, parts::add);
+        assertEquals(source.replace("value", "renamed"), improved);
+        assertEquals(AiDecompilation.split(source).size(), parts.size());
+        assertEquals(improved, String.join("", parts));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    public void testSlowCommandKeepsSource(@TempDir Path dir) throws IOException {
+        AiDecompilation.configure(createScript(dir, "exec sleep 60\n").toString(), 1);
+        AiDecompilation.setTimeout(500);
+        String source = "public class Test {\n    int value() { return 1; }\n}\n";
+        long start = System.nanoTime();
+        assertEquals(source, AiDecompilation.improve(new Klass("Test"), source, part -> {
+        }));
+        assertTrue(System.nanoTime() - start < 30_000_000_000L, "should not wait for the command");
+    }
+
+    private static Path createScript(Path dir, String body) throws IOException {
+        Path script = dir.resolve("stub.sh");
+        Files.writeString(script, "#!/bin/sh\n" + body);
+        assertTrue(script.toFile().setExecutable(true));
+        return script;
+    }
+
+    /**
+     * Repeat the members until the source is long enough to be split into the given number of prompts
+     *
+     * @param first member that is only added once, before the others
+     */
+    private static String createSource(String header, String first, String footer, int minParts) {
+        StringBuilder sb = new StringBuilder(header).append(first);
+        for (int i = 0; sb.length() < minParts * AiDecompilation.MAX_PROMPT_SOURCE_CHARS; i++) {
+            for (String member : MEMBERS) {
+                sb.append(member.formatted(i));
+            }
+        }
+        return sb.append(footer).toString();
+    }
+
+    private static void assertSplitAtMembers(String header, String first, String footer) {
+        String source = createSource(header, first, footer, 3);
+        assertNotNull(compileClass("Test", source));
+        Set<Integer> memberStarts = new HashSet<>(Set.of(header.length()));
+        int pos = header.length() + first.length();
+        for (int i = 0; pos < source.length() - footer.length(); i++) {
+            for (String member : MEMBERS) {
+                memberStarts.add(pos);
+                pos += member.formatted(i).length();
+            }
+        }
+        List<AiDecompilation.Part> parts = AiDecompilation.split(source);
+        assertEquals(source, parts.stream().map(AiDecompilation.Part::source).collect(Collectors.joining()));
+        assertEquals(new AiDecompilation.Part(header, false, false), parts.get(0));
+        assertEquals(new AiDecompilation.Part(footer, false, false), parts.get(parts.size() - 1));
+        List<AiDecompilation.Part> memberParts = parts.subList(1, parts.size() - 1);
+        assertTrue(memberParts.size() >= 3, "expected multiple prompts, got " + memberParts.size());
+        int start = header.length();
+        for (AiDecompilation.Part part : memberParts) {
+            assertTrue(part.improve() && part.members());
+            assertTrue(memberStarts.contains(start), "part does not start at a member: " + part.source());
+            assertTrue(part.source().length() <= AiDecompilation.MAX_PROMPT_SOURCE_CHARS);
+            start += part.source().length();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package me.bechberger.meta;
+
+import javassist.bytecode.ClassFile;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import static me.bechberger.meta.InMemoryCompiler.compileClass;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BytecodeDisassemblerTest {
+
+    private static final String SOURCE = """
+            public class Test {
+                static final int C = 5;
+                String a(int x) {
+                    if (x > 0) {
+                        return "hello";
+                    }
+                    return null;
+                }
+            }
+            """;
+
+    @Test
+    public void testDisassemble() throws IOException {
+        String text = BytecodeDisassembler.disassemble(compileClass("Test", SOURCE), false);
+        assertTrue(text.contains("java.lang.String a(int);"), text);
+        assertTrue(text.contains("ifle 7"), text);
+        assertTrue(text.contains("String \"hello\""), text);
+        assertFalse(text.contains("Constant pool:"), text);
+    }
+
+    @Test
+    public void testVerboseDisassemble() throws IOException {
+        String text = BytecodeDisassembler.disassemble(compileClass("Test", SOURCE), true);
+        assertTrue(text.contains("Constant pool:"), text);
+        assertTrue(text.contains("major version: "), text);
+        assertTrue(text.contains("ConstantValue: int 5"), text);
+        assertTrue(text.contains("flags: (0x0018) ACC_STATIC, ACC_FINAL"), text);
+        assertFalse(text.contains("\r"), "lines should end with \\n on every platform");
+    }
+
+    @Test
+    public void testMembersIgnoreConstantPoolIndices() throws IOException {
+        byte[] old = compileClass("Test", SOURCE);
+        byte[] current = compileClass("Test", SOURCE.replace("static final int C = 5;",
+                "static final int C = 5;\n    long added() { return System.nanoTime() + 100000L; }"));
+        // the constants of the added method come first and shift the index of "hello"
+        assertNotEquals(getLdcLine(old), getLdcLine(current));
+        Map<String, String> oldMembers = BytecodeDisassembler.disassembleMembers(read(old));
+        Map<String, String> currentMembers = BytecodeDisassembler.disassembleMembers(read(current));
+        assertEquals(oldMembers.get("method a:(I)Ljava/lang/String;"),
+                currentMembers.get("method a:(I)Ljava/lang/String;"));
+        assertEquals(oldMembers.get("field C:I"), currentMembers.get("field C:I"));
+        assertFalse(oldMembers.containsKey("method added:()J"));
+        assertTrue(currentMembers.containsKey("method added:()J"));
+    }
+
+    @Test
+    public void testInvalidBytecode() {
+        assertThrows(IOException.class, () -> BytecodeDisassembler.disassemble(new byte[]{1, 2, 3, 4}, false));
+    }
+
+    private static String getLdcLine(byte[] bytecode) throws IOException {
+        return BytecodeDisassembler.disassemble(bytecode, false).lines()
+                .filter(l -> l.contains("ldc")).findFirst().orElseThrow();
+    }
+
+    private static ClassFile read(byte[] bytecode) throws IOException {
+        return new ClassFile(new DataInputStream(new ByteArrayInputStream(bytecode)));
+    }
+}
@@ -0,0 +1,56 @@
+package me.bechberger.meta;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles Java sources in memory, to obtain the bytecode of test classes in different versions
+ */
+class InMemoryCompiler {
+
+    /**
+     * Compile a single source file without debug information
+     *
+     * @return the bytecode of the compiled classes by class name
+     */
+    static Map<String, byte[]> compile(String className, String source) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Map<String, ByteArrayOutputStream> outputs = new HashMap<>();
+        JavaFileManager fileManager = new ForwardingJavaFileManager<>(compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind,
+                                                       FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return outputs.computeIfAbsent(name, n -> new ByteArrayOutputStream());
+                    }
+                };
+            }
+        };
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/')
+                + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        StringWriter log = new StringWriter();
+        if (!compiler.getTask(log, fileManager, null, List.of("-g:none"), null, List.of(file)).call()) {
+            throw new IllegalArgumentException("Cannot compile " + className + ": " + log);
+        }
+        Map<String, byte[]> classes = new HashMap<>();
+        outputs.forEach((name, out) -> classes.put(name, out.toByteArray()));
+        return classes;
+    }
+
+    static byte[] compileClass(String className, String source) {
+        return compile(className, source).get(className);
+    }
+}
@@ -0,0 +1,122 @@
+package me.bechberger.meta;
+
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.MethodInfo;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static me.bechberger.meta.InMemoryCompiler.compileClass;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MemberDiffTest {
+
+    @Test
+    public void testUnchangedMembersCollapsed() throws IOException {
+        byte[] old = compileClass("Test", """
+                public class Test {
+                    int field = 1;
+                    int other;
+                    int a() { return 1; }
+                    int b() { return 1; }
+                }
+                """);
+        byte[] current = compileClass("Test", """
+                public class Test {
+                    int field = 1;
+                    int other;
+                    int a() { return 1; }
+                    int b() { return 2; }
+                }
+                """);
+        MemberDiff.Reduced reduced = MemberDiff.reduce(old, current);
+        assertNotNull(reduced);
+        // a() and the constructor are equal, the field initialization is part of the constructor
+        assertEquals(2, reduced.collapsedMethods());
+        assertEquals(2, reduced.collapsedFields());
+        assertEquals(Set.of("b"), getMethodNames(reduced.old()));
+        assertEquals(Set.of("b"), getMethodNames(reduced.current()));
+        assertEquals("// 2 unchanged methods and 2 unchanged fields collapsed, use collapse=false to show them\n",
+                reduced.getNote());
+    }
+
+    @Test
+    public void testReferencedSyntheticsKept() throws IOException {
+        String source = """
+                public class Test {
+                    int a() {
+                        Runnable r = () -> System.out.println("a");
+                        r.run();
+                        return 1;
+                    }
+                    int b() {
+                        Runnable r = () -> System.out.println("b");
+                        r.run();
+                        return %d;
+                    }
+                }
+                """;
+        MemberDiff.Reduced reduced = MemberDiff.reduce(compileClass("Test", source.formatted(1)),
+                compileClass("Test", source.formatted(2)));
+        assertNotNull(reduced);
+        // the lambda body of the changed method is needed to decompile it, the one of a() is not
+        assertEquals(Set.of("b", "lambda$b$1"), getMethodNames(reduced.current()));
+        assertEquals(Set.of("b", "lambda$b$1"), getMethodNames(reduced.old()));
+        assertEquals(3, reduced.collapsedMethods());
+    }
+
+    @Test
+    public void testConstantPoolIndexOnlyChangesIgnored() throws IOException {
+        byte[] old = compileClass("Test", """
+                public class Test {
+                    String a() { return "hello"; }
+                }
+                """);
+        // the new method comes first, so its constants shift the indices of the constants used by a()
+        byte[] current = compileClass("Test", """
+                public class Test {
+                    String added() { return "x" + System.nanoTime(); }
+                    String a() { return "hello"; }
+                }
+                """);
+        assertFalse(Arrays.equals(getCode(old, "a"), getCode(current, "a")), "constant pool indices should differ");
+        MemberDiff.Reduced reduced = MemberDiff.reduce(old, current);
+        assertNotNull(reduced);
+        assertEquals(Set.of(), getMethodNames(reduced.old()));
+        assertEquals(Set.of("added"), getMethodNames(reduced.current()));
+    }
+
+    @Test
+    public void testNothingToCollapse() {
+        byte[] old = compileClass("Test", "public class Test { int a() { return 1; } }");
+        byte[] current = compileClass("Test", "public class Test { Test() { System.gc(); } int a() { return 2; } }");
+        assertNull(MemberDiff.reduce(old, current));
+        assertNull(MemberDiff.reduce(old, new byte[]{1, 2, 3}));
+    }
+
+    @Test
+    public void testReduceCachedReusesResult() {
+        byte[] old = compileClass("Test", "public class Test { int a() { return 1; } int b() { return 1; } }");
+        byte[] current = compileClass("Test", "public class Test { int a() { return 1; } int b() { return 2; } }");
+        MemberDiff.Reduced reduced = MemberDiff.reduceCached(old, current);
+        assertNotNull(reduced);
+        assertSame(reduced, MemberDiff.reduceCached(old.clone(), current.clone()));
+    }
+
+    private static ClassFile read(byte[] bytecode) throws IOException {
+        return new ClassFile(new DataInputStream(new ByteArrayInputStream(bytecode)));
+    }
+
+    private static Set<String> getMethodNames(byte[] bytecode) throws IOException {
+        return read(bytecode).getMethods().stream().map(MethodInfo::getName).collect(Collectors.toSet());
+    }
+
+    private static byte[] getCode(byte[] bytecode, String method) throws IOException {
+        return read(bytecode).getMethod(method).getCodeAttribute().getCode();
+    }
+}
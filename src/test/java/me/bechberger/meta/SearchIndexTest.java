@@ -0,0 +1,49 @@
+package me.bechberger.meta;
+
+import me.bechberger.meta.runtime.InstrumentationHandler;
+import me.bechberger.meta.runtime.Klass;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static me.bechberger.meta.InMemoryCompiler.compileClass;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SearchIndexTest {
+
+    private static final String SOURCE = "public class TwiceTransformed { String a() { return \"%s\"; } }";
+
+    @Test
+    public void testClassTransformedTwice() throws InterruptedException {
+        Klass klass = new Klass("TwiceTransformed");
+        byte[] original = compileClass("TwiceTransformed", SOURCE.formatted("original"));
+        byte[] first = compileClass("TwiceTransformed", SOURCE.formatted("firstVersion"));
+        byte[] second = compileClass("TwiceTransformed", SOURCE.formatted("secondVersion"));
+        InstrumentationHandler.addDiff("first-instrumentator", klass.name(), original, first);
+        InstrumentationHandler.addDiff("second-instrumentator", klass.name(), first, second);
+        // schedule the class once, so that it is not re-indexed (dropping the sources) later in the test
+        SearchIndex index = new SearchIndex();
+        index.addRecordedClasses();
+
+        // the class is indexed with the bytecode of the second transformation
+        awaitHits(() -> index.search("secondVersion", SearchIndex.MatchMode.EXACT), 1);
+        assertEquals(List.of(), index.search("firstVersion", SearchIndex.MatchMode.EXACT));
+
+        // sources of older versions are ignored
+        index.addSources(Map.of(klass, first), Map.of(klass, "class TwiceTransformed { void oldIdentifier() {} }"));
+        index.addSources(Map.of(klass, second), Map.of(klass, "class TwiceTransformed { void newIdentifier() {} }"));
+        assertEquals(List.of(), index.search("oldIdentifier", SearchIndex.MatchMode.EXACT));
+        var hits = index.search("newIdentifier", SearchIndex.MatchMode.EXACT);
+        assertEquals(1, hits.size());
+        assertEquals(klass, hits.get(0).klass());
+    }
+
+    private static void awaitHits(Supplier<List<SearchIndex.Hit>> search, int count) throws InterruptedException {
+        for (int i = 0; i < 100 && search.get().size() != count; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, search.get().size());
+    }
+}
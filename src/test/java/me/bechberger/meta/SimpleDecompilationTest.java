@@ -0,0 +1,52 @@
+package me.bechberger.meta;
+
+import me.bechberger.meta.runtime.SimpleDecompilation;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static me.bechberger.meta.InMemoryCompiler.compileClass;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SimpleDecompilationTest {
+
+    @Test
+    public void testDecompile() {
+        var result = SimpleDecompilation.decompile(Map.of("Test", compileClass("Test",
+                "public class Test { int a() { return 42; } }")));
+        assertTrue(result.sources().get("Test").contains("return 42;"), result.sources().get("Test"));
+        assertEquals(Set.of(), result.timedOut());
+        assertEquals(Set.of(), result.skipped());
+    }
+
+    @Test
+    public void testQueuedClassIsSkippedNotTimedOut() {
+        int threads = SimpleDecompilation.getThreads();
+        SimpleDecompilation.setThreads(1);
+        SimpleDecompilation.setTimeouts(60_000, 300);
+        try {
+            // the slow class occupies the only thread until the batch budget is exceeded
+            Map<String, byte[]> classes = new LinkedHashMap<>();
+            classes.put("Slow", compileClass("Slow", getSlowSource()));
+            classes.put("Queued", compileClass("Queued", "public class Queued { int a() { return 1; } }"));
+            var result = SimpleDecompilation.decompile(classes);
+            assertEquals(Set.of("Slow"), result.timedOut());
+            assertEquals(Set.of("Queued"), result.skipped());
+            assertEquals(Map.of(), result.sources());
+        } finally {
+            SimpleDecompilation.setThreads(threads);
+            SimpleDecompilation.setTimeouts(30_000, 120_000);
+        }
+    }
+
+    private static String getSlowSource() {
+        StringBuilder sb = new StringBuilder("public class Slow {\n");
+        for (int i = 0; i < 2000; i++) {
+            sb.append("  int m").append(i).append("(int x) { for (int i = 0; i < x; i++) { if (x % ")
+                    .append(i + 2).append(" == i) { x += i; } else { x -= 1; } } return x; }\n");
+        }
+        return sb.append("}\n").toString();
+    }
+}
@@ -0,0 +1,113 @@
+package me.bechberger.meta;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static me.bechberger.meta.InMemoryCompiler.compileClass;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StructuralDisassemblerTest {
+
+    @Test
+    public void testMovedMembersIgnored() throws IOException {
+        String first = StructuralDisassembler.disassemble(compileClass("Test", """
+                public class Test {
+                    int x;
+                    int a() { return x; }
+                    String b() { return "b"; }
+                }
+                """));
+        String second = StructuralDisassembler.disassemble(compileClass("Test", """
+                public class Test {
+
+
+                    String b() { return "b"; }
+                    int a() { return x; }
+                    int x;
+                }
+                """));
+        assertEquals(first, second);
+        assertTrue(first.indexOf("method a:()I") < first.indexOf("method b:()Ljava/lang/String;"), first);
+    }
+
+    @Test
+    public void testBranchTargetsAreLabels() throws IOException {
+        String text = StructuralDisassembler.disassemble(compileClass("Test", """
+                public class Test {
+                    String a(int x) {
+                        if (x > 0) {
+                            return "hello";
+                        }
+                        return null;
+                    }
+                }
+                """));
+        Matcher matcher = Pattern.compile("ifle (L[0-9a-f]{4})\n").matcher(text);
+        assertTrue(matcher.find(), text);
+        assertTrue(text.contains("ldc String \"hello\""), text);
+        assertTrue(text.contains("    " + matcher.group(1) + ":\n"), text);
+    }
+
+    @Test
+    public void testInsertedInstructionOnlyAddsLines() throws IOException {
+        String source = """
+                public class Test {
+                    String a(int x) {
+                        %s
+                        if (x > 0) {
+                            return "hello";
+                        }
+                        return null;
+                    }
+                }
+                """;
+        String old = StructuralDisassembler.disassemble(compileClass("Test", source.formatted("")));
+        String current = StructuralDisassembler.disassemble(compileClass("Test", source.formatted("System.gc();")));
+        List<String> changed = UnifiedDiff.diff(new UnifiedDiff.File("Test", old, current), 0).lines()
+                .filter(l -> (l.startsWith("+") || l.startsWith("-")) && !l.startsWith("+++") && !l.startsWith("---"))
+                .toList();
+        assertEquals(List.of("+      invokestatic java.lang.System.gc:()V"), changed);
+    }
+
+    @Test
+    public void testInsertedBranchesAndHandlersOnlyAddLines() throws IOException {
+        String source = """
+                public class Test {
+                    String a(int x) {
+                        %s
+                        if (x > 0) {
+                            return "hello";
+                        }
+                        for (int i = 0; i < x; i++) {
+                            x += i;
+                        }
+                        return null;
+                    }
+                }
+                """;
+        String old = StructuralDisassembler.disassemble(compileClass("Test", source.formatted("")));
+        String current = StructuralDisassembler.disassemble(compileClass("Test", source.formatted("""
+                if (x < 0) {
+                    System.gc();
+                }
+                try {
+                    System.runFinalization();
+                } catch (RuntimeException e) {
+                    System.gc();
+                }
+                """)));
+        // the handler needs another local variable
+        List<String> changed = UnifiedDiff.diff(new UnifiedDiff.File("Test", old, current), 0).lines()
+                .filter(l -> (l.startsWith("+") || l.startsWith("-")) && !l.startsWith("+++") && !l.startsWith("---"))
+                .filter(l -> !l.contains("Code: stack="))
+                .toList();
+        assertEquals(List.of(), changed.stream().filter(l -> l.startsWith("-")).toList(), String.join("\n", changed));
+        assertTrue(changed.contains("+      invokestatic java.lang.System.runFinalization:()V"), String.join("\n", changed));
+        assertTrue(changed.stream().anyMatch(l -> l.matches("\\+    try L\\w+-L\\w+ catch java.lang.RuntimeException L\\w+")),
+                String.join("\n", changed));
+    }
+}
@@ -0,0 +1,132 @@
+package me.bechberger.meta;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class UnifiedDiffTest {
+
+    @Test
+    public void testRepeatedLinesShiftedOverOtherRun() {
+        // the run of changes slides up over the other file's run, this used to throw an exception
+        String diff = UnifiedDiff.diff(new UnifiedDiff.File("F", "a\na\na\na\na\n", "b\na\nb\n"), 3);
+        assertEquals("""
+                diff -U3 old/F new/F
+                --- old/F
+                +++ new/F
+                @@ -1,5 +1,3 @@
+                +b
+                 a
+                -a
+                -a
+                -a
+                -a
+                +b
+                """, diff);
+    }
+
+    @Test
+    public void testEqualFiles() {
+        assertEquals("", UnifiedDiff.diff(new UnifiedDiff.File("F", "a\nb\n", "a\nb\n"), 3));
+    }
+
+    @Test
+    public void testDisjointFilesAreFast() {
+        StringBuilder old = new StringBuilder();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) {
+            old.append("old ").append(i).append('\n');
+            current.append("new ").append(i).append('\n');
+        }
+        // without the cost limit, this takes minutes
+        String diff = assertTimeoutPreemptively(Duration.ofSeconds(30),
+                () -> UnifiedDiff.diff(new UnifiedDiff.File("F", old.toString(), current.toString()), 3));
+        assertEquals(3 + 1 + 200_000, diff.lines().count());
+        assertEquals("@@ -1,100000 +1,100000 @@", diff.lines().skip(3).findFirst().orElseThrow());
+    }
+
+    @Test
+    public void testRandomDiffsApplyWithPatch() throws IOException, InterruptedException {
+        assertRandomDiffsApply(500, 15, 3);
+    }
+
+    /**
+     * Texts that differ in so many lines that the cost limit is reached
+     */
+    @Test
+    public void testExpensiveRandomDiffsApplyWithPatch() throws IOException, InterruptedException {
+        assertRandomDiffsApply(5, 5000, 10);
+    }
+
+    private static void assertRandomDiffsApply(int count, int maxLines, int alphabet)
+            throws IOException, InterruptedException {
+        assumeTrue(isPatchAvailable(), "patch is not installed");
+        Random random = new Random(42);
+        Path directory = Files.createTempDirectory("unified-diff-test");
+        try {
+            for (int i = 0; i < count; i++) {
+                String old = randomText(random, maxLines, alphabet);
+                String current = randomText(random, maxLines, alphabet);
+                String diff = UnifiedDiff.diff(new UnifiedDiff.File("F", old, current), random.nextInt(4));
+                if (diff.isEmpty()) {
+                    assertEquals(old, current);
+                    continue;
+                }
+                assertEquals(current, applyPatch(directory, old, diff), () -> "Diff of\n" + old + "to\n" + current
+                        + "does not apply:\n" + diff);
+            }
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Lines from a small alphabet, so that there are many repeated lines, sometimes without a final line break
+     */
+    private static String randomText(Random random, int maxLines, int alphabet) {
+        StringBuilder sb = new StringBuilder();
+        int lines = random.nextInt(maxLines);
+        for (int i = 0; i < lines; i++) {
+            sb.append((char) ('a' + random.nextInt(alphabet))).append('\n');
+        }
+        if (lines > 0 && random.nextInt(8) == 0) {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isPatchAvailable() {
+        try {
+            return new ProcessBuilder("patch", "--version").redirectErrorStream(true).start().waitFor() == 0;
+        } catch (IOException | InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static String applyPatch(Path directory, String old, String diff) throws IOException, InterruptedException {
+        Path input = directory.resolve("input");
+        Path output = directory.resolve("output");
+        Path patchFile = directory.resolve("patch.diff");
+        Files.writeString(input, old);
+        Files.writeString(patchFile, diff);
+        Files.deleteIfExists(output);
+        Process process = new ProcessBuilder("patch", "-s", "-o", output.toString(), input.toString(), patchFile.toString())
+                .redirectErrorStream(true).start();
+        String log = new String(process.getInputStream().readAllBytes());
+        assertEquals(0, process.waitFor(), () -> "patch failed: " + log + "\n" + diff);
+        return Files.readString(output);
+    }
+}